@@ -222,6 +222,9 @@ public class CommandManager {
         public CommandBuilder setHandler(Function handler) {
             ensureCommand();
             command.setHandler(handler);
+            if (scriptRegistry != null) {
+                command.setOwner(scriptRegistry, scriptRegistry.getCurrentScript());
+            }
             plugin.getCommandRegistry().registerCommand(command);
             registeredCommands.put(name, command);
             
@@ -1,5 +1,6 @@
 package com.hosttale.simplescripting.commands;
 
+import com.hosttale.simplescripting.managers.ScriptRegistry;
 import com.hosttale.simplescripting.util.MessageHelper;
 import com.hypixel.hytale.component.Ref;
 import com.hypixel.hytale.component.Store;
@@ -27,6 +28,9 @@ import java.util.Map;
 public class JavaScriptCommand extends AbstractPlayerCommand {
     private final Scriptable scope;
     private Function handler;
+    // Script that registered the handler; handler runs are attributed to it
+    private ScriptRegistry scriptRegistry;
+    private String owner;
     // Store argument objects (RequiredArg or OptionalArg) - we use Object since they share no common interface
     private final Map<String, Object> argumentMap = new HashMap<>();
 
@@ -39,6 +43,16 @@ public class JavaScriptCommand extends AbstractPlayerCommand {
         this.handler = handler;
     }
 
+    /**
+     * Sets the script that owns this command's handler.
+     * @param scriptRegistry The registry used for attribution
+     * @param owner The owning script name, or null
+     */
+    public void setOwner(ScriptRegistry scriptRegistry, String owner) {
+        this.scriptRegistry = scriptRegistry;
+        this.owner = owner;
+    }
+
     public void setCommandPermissionGroup(GameMode gameMode) {
         setPermissionGroup(gameMode);
     }
@@ -95,6 +109,21 @@ public class JavaScriptCommand extends AbstractPlayerCommand {
             return;
         }
 
+        if (scriptRegistry != null) {
+            scriptRegistry.runAs(owner, () -> runHandler(commandContext, store, ref, playerRef, world));
+        } else {
+            runHandler(commandContext, store, ref, playerRef, world);
+        }
+    }
+
+    /**
+     * Calls the JavaScript handler with a wrapped command context.
+     */
+    private void runHandler(CommandContext commandContext,
+                            Store<EntityStore> store,
+                            Ref<EntityStore> ref,
+                            PlayerRef playerRef,
+                            World world) {
         Context cx = Context.enter();
         try {
             // Create enhanced wrapper with player info and argument map
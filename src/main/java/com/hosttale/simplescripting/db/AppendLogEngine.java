@@ -0,0 +1,366 @@
+package com.hosttale.simplescripting.db;
+
+import com.google.gson.Gson;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+import com.hosttale.simplescripting.util.Logger;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Append-only log engine.
+ * Each line of the log is one compact JSON record: {"k":key,"v":value} for a
+ * write or {"k":key,"d":1} for a delete. A flush appends only the dirty keys,
+ * so a write costs the size of the changed values instead of the whole file.
+ * An index of live record positions tracks garbage, and the log is compacted
+ * in the background once garbage outweighs live data.
+ * A plain JSON file with the same name is imported the first time it is opened.
+ * Transactions stage their records in a separate file that is appended on
+ * install, or on the next load if the server stopped in between.
+ */
+public class AppendLogEngine implements StorageEngine {
+    public static final String NAME = "log";
+    public static final String EXTENSION = ".log";
+
+    // Records committed by a transaction but not yet appended to the log
+    static final String PENDING_SUFFIX = ".pending";
+
+    // Suffix given to a JSON file after it has been imported into the log
+    private static final String IMPORTED_SUFFIX = ".imported";
+
+    // Compact once at least this much garbage has accumulated and it outweighs the live records
+    private static final long COMPACT_MIN_GARBAGE_BYTES = 64 * 1024;
+
+    private final Path logPath;
+    private final Path jsonPath;
+    private final Path pendingPath;
+    private final Gson gson;
+    private final Logger logger;
+    // Live record of each key, in first-write order
+    private final Map<String, Record> index;
+    private FileChannel channel;
+    private long fileSize;
+    private long liveBytes;
+    private long garbageBytes;
+
+    public AppendLogEngine(Path logPath, Path jsonPath, Logger logger) {
+        this.logPath = logPath;
+        this.jsonPath = jsonPath;
+        this.pendingPath = logPath.resolveSibling(logPath.getFileName() + PENDING_SUFFIX);
+        // Compact output: one record per line
+        this.gson = new Gson();
+        this.logger = logger;
+        this.index = new LinkedHashMap<>();
+    }
+
+    @Override
+    public String getName() {
+        return NAME;
+    }
+
+    @Override
+    public boolean exists() {
+        return Files.exists(logPath) || Files.exists(jsonPath);
+    }
+
+    @Override
+    public synchronized Map<String, JsonElement> load() throws IOException {
+        index.clear();
+        fileSize = 0;
+        liveBytes = 0;
+        garbageBytes = 0;
+
+        if (!Files.exists(logPath) && Files.exists(jsonPath)) {
+            return importJson();
+        }
+
+        Map<String, JsonElement> entries = new LinkedHashMap<>();
+        byte[] data = Files.exists(logPath) ? Files.readAllBytes(logPath) : new byte[0];
+        long validEnd = replayRecords(data, 0, entries, logPath);
+
+        channel = FileChannel.open(logPath, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        if (channel.size() > validEnd) {
+            channel.truncate(validEnd);
+        }
+        fileSize = validEnd;
+
+        // Records of a committed transaction that were not appended before a crash
+        if (Files.exists(pendingPath)) {
+            byte[] pending = Files.readAllBytes(pendingPath);
+            int pendingEnd = (int) replayRecords(pending, fileSize, entries, pendingPath);
+            writeFully(channel, ByteBuffer.wrap(pending, 0, pendingEnd), fileSize);
+            channel.force(false);
+            fileSize += pendingEnd;
+            Files.delete(pendingPath);
+        }
+        return entries;
+    }
+
+    /**
+     * Replays the records in a block of log data.
+     * @return Length of the valid data, excluding a torn last record
+     */
+    private long replayRecords(byte[] data, long baseOffset, Map<String, JsonElement> entries, Path source) {
+        long validEnd = 0;
+        int start = 0;
+        int lineNumber = 0;
+        while (start < data.length) {
+            int end = indexOf(data, (byte) '\n', start);
+            lineNumber++;
+            if (end < 0) {
+                // Torn write from a crash: drop the partial last record
+                logger.warning("Discarding incomplete record at the end of " + source.getFileName());
+                break;
+            }
+            int length = end - start + 1;
+            try {
+                JsonObject record = JsonParser.parseString(new String(data, start, end - start, StandardCharsets.UTF_8)).getAsJsonObject();
+                replay(record, entries, baseOffset + start, length);
+            } catch (Exception e) {
+                logger.warning("Skipping unreadable record at line " + lineNumber + " of " + source.getFileName() + ": " + e.getMessage());
+                garbageBytes += length;
+            }
+            start = end + 1;
+            validEnd = start;
+        }
+        return validEnd;
+    }
+
+    @Override
+    public PendingWrite prepare(Map<String, JsonElement> entries, Set<String> dirtyKeys, boolean sync) {
+        List<PendingRecord> records = new ArrayList<>(dirtyKeys.size());
+        for (String key : dirtyKeys) {
+            JsonObject record = new JsonObject();
+            record.addProperty("k", key);
+            JsonElement value = entries.get(key);
+            if (value != null) {
+                record.add("v", value);
+            } else {
+                record.addProperty("d", 1);
+            }
+            records.add(new PendingRecord(key, (gson.toJson(record) + "\n").getBytes(StandardCharsets.UTF_8), value == null));
+        }
+        return new PendingWrite() {
+            @Override
+            public void commit() throws IOException {
+                append(records);
+                if (sync) {
+                    synchronized (AppendLogEngine.this) {
+                        channel.force(false);
+                    }
+                }
+            }
+
+            @Override
+            public StagedWrite stage() throws IOException {
+                // Installed as <file>.log.pending, which is appended to the log and deleted
+                Path stagedPath = pendingPath.resolveSibling(pendingPath.getFileName() + StagedWrite.STAGED_SUFFIX);
+                ByteArrayOutputStream batch = new ByteArrayOutputStream();
+                for (PendingRecord record : records) {
+                    batch.write(record.bytes);
+                }
+                StagedWrite.writeSynced(stagedPath, batch.toByteArray());
+                return new StagedWrite(stagedPath, pendingPath, () -> {
+                    append(records);
+                    synchronized (AppendLogEngine.this) {
+                        channel.force(false);
+                    }
+                    Files.delete(pendingPath);
+                });
+            }
+        };
+    }
+
+    @Override
+    public synchronized void maintain() throws IOException {
+        if (channel == null || garbageBytes < COMPACT_MIN_GARBAGE_BYTES || garbageBytes <= liveBytes) {
+            return;
+        }
+        compact();
+    }
+
+    @Override
+    public synchronized boolean delete() throws IOException {
+        close();
+        index.clear();
+        Files.deleteIfExists(pendingPath);
+        return Files.deleteIfExists(logPath);
+    }
+
+    @Override
+    public synchronized void close() {
+        if (channel == null) {
+            return;
+        }
+        try {
+            channel.close();
+        } catch (IOException e) {
+            logger.warning("Error closing " + logPath.getFileName() + ": " + e.getMessage());
+        }
+        channel = null;
+    }
+
+    private void replay(JsonObject record, Map<String, JsonElement> entries, long offset, int length) {
+        String key = record.get("k").getAsString();
+        Record previous;
+        if (record.has("v")) {
+            entries.put(key, record.get("v"));
+            previous = index.put(key, new Record(offset, length));
+            liveBytes += length;
+        } else {
+            entries.remove(key);
+            previous = index.remove(key);
+            // A delete record is garbage as soon as it is written
+            garbageBytes += length;
+        }
+        if (previous != null) {
+            liveBytes -= previous.length;
+            garbageBytes += previous.length;
+        }
+    }
+
+    private synchronized void append(List<PendingRecord> records) throws IOException {
+        if (channel == null) {
+            throw new IOException(logPath.getFileName() + " is not open");
+        }
+        ByteArrayOutputStream batch = new ByteArrayOutputStream();
+        for (PendingRecord record : records) {
+            batch.write(record.bytes);
+        }
+        writeFully(channel, ByteBuffer.wrap(batch.toByteArray()), fileSize);
+
+        long offset = fileSize;
+        for (PendingRecord record : records) {
+            int length = record.bytes.length;
+            Record previous;
+            if (record.delete) {
+                previous = index.remove(record.key);
+                garbageBytes += length;
+            } else {
+                previous = index.put(record.key, new Record(offset, length));
+                liveBytes += length;
+            }
+            if (previous != null) {
+                liveBytes -= previous.length;
+                garbageBytes += previous.length;
+            }
+            offset += length;
+        }
+        fileSize = offset;
+    }
+
+    /**
+     * Converts the JSON file into a compacted log, then renames it aside.
+     */
+    private Map<String, JsonElement> importJson() throws IOException {
+        Map<String, JsonElement> entries = JsonFileEngine.read(jsonPath);
+        PendingWrite write = prepare(entries, entries.keySet(), false);
+
+        // Build the log under a temporary name so a crash mid-import leaves the JSON authoritative
+        Path tempPath = logPath.resolveSibling(logPath.getFileName() + ".tmp");
+        channel = FileChannel.open(tempPath, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+        write.commit();
+        channel.force(true);
+        channel.close();
+        Files.move(tempPath, logPath, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        channel = FileChannel.open(logPath, StandardOpenOption.READ, StandardOpenOption.WRITE);
+
+        Files.move(jsonPath, jsonPath.resolveSibling(jsonPath.getFileName() + IMPORTED_SUFFIX), StandardCopyOption.REPLACE_EXISTING);
+        logger.info("Imported " + entries.size() + " keys from " + jsonPath.getFileName() + " into " + logPath.getFileName());
+        return entries;
+    }
+
+    /**
+     * Copies the live records into a new log and swaps it in atomically.
+     */
+    private void compact() throws IOException {
+        Path tempPath = logPath.resolveSibling(logPath.getFileName() + ".tmp");
+        Map<String, Record> compacted = new LinkedHashMap<>();
+        long offset = 0;
+        try (FileChannel out = FileChannel.open(tempPath, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            for (Map.Entry<String, Record> entry : index.entrySet()) {
+                Record record = entry.getValue();
+                ByteBuffer buffer = ByteBuffer.allocate(record.length);
+                while (buffer.hasRemaining()) {
+                    if (channel.read(buffer, record.offset + buffer.position()) < 0) {
+                        throw new IOException("Unexpected end of " + logPath.getFileName());
+                    }
+                }
+                buffer.flip();
+                writeFully(out, buffer, offset);
+                compacted.put(entry.getKey(), new Record(offset, record.length));
+                offset += record.length;
+            }
+            out.force(true);
+        }
+
+        channel.close();
+        Files.move(tempPath, logPath, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        channel = FileChannel.open(logPath, StandardOpenOption.READ, StandardOpenOption.WRITE);
+
+        long reclaimed = fileSize - offset;
+        index.clear();
+        index.putAll(compacted);
+        fileSize = offset;
+        liveBytes = offset;
+        garbageBytes = 0;
+        logger.fine("Compacted " + logPath.getFileName() + ", reclaimed " + reclaimed + " bytes");
+    }
+
+    private static void writeFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            position += channel.write(buffer, position);
+        }
+    }
+
+    private static int indexOf(byte[] data, byte value, int from) {
+        for (int i = from; i < data.length; i++) {
+            if (data[i] == value) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * A serialized record waiting to be appended.
+     */
+    private static class PendingRecord {
+        final String key;
+        final byte[] bytes;
+        final boolean delete;
+
+        PendingRecord(String key, byte[] bytes, boolean delete) {
+            this.key = key;
+            this.bytes = bytes;
+            this.delete = delete;
+        }
+    }
+
+    /**
+     * Position of a live record in the log.
+     */
+    private static class Record {
+        final long offset;
+        final int length;
+
+        Record(long offset, int length) {
+            this.offset = offset;
+            this.length = length;
+        }
+    }
+}
@@ -0,0 +1,1129 @@
+package com.hosttale.simplescripting.db;
+
+import com.google.gson.Gson;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonParser;
+import com.hosttale.simplescripting.util.Logger;
+
+import javax.annotation.Nonnull;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.lang.foreign.Arena;
+import java.lang.foreign.MemorySegment;
+import java.lang.foreign.ValueLayout;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.BiConsumer;
+import java.util.function.UnaryOperator;
+import java.util.zip.CRC32;
+
+/**
+ * Collection stored in an on-disk B+tree of fixed-size pages.
+ * The file is memory-mapped in 1 MiB chunks through the FFM API, and only a
+ * bounded number of chunks stay mapped (least recently used are unmapped).
+ * get and has walk the tree comparing keys directly in the mapped pages;
+ * only the matching value is copied out and decoded, so nothing is
+ * deserialized up front and memory does not grow with the collection.
+ * Writes go to private copies of the touched pages. A flush first writes
+ * those page images to a redo log and syncs it, then writes them into the
+ * file, so a crash mid-flush never leaves a half-updated tree.
+ * Declared indexes are kept in memory: they are built by walking the leaves
+ * on the first query, and once built, writes read the old value of a key to
+ * update them.
+ * A Bloom filter of the keys, built from the leaves when the file is opened
+ * (10 to 20 bits per key), answers most lookups of missing keys without
+ * walking the tree. It is rebuilt during maintenance once removed keys or
+ * growth past its size make it less selective.
+ */
+public class BTreeDocumentStore extends DocumentStore {
+    public static final String NAME = "btree";
+    public static final String EXTENSION = ".btree";
+    public static final int MAX_KEY_BYTES = 512;
+
+    static final String WAL_SUFFIX = ".wal";
+    private static final String IMPORTED_SUFFIX = ".imported";
+
+    private static final int PAGE_SIZE = 4096;
+    private static final int CHUNK_PAGES = 256;
+    private static final long CHUNK_SIZE = (long) PAGE_SIZE * CHUNK_PAGES;
+    private static final int MIN_MAPPED_CHUNKS = 4;
+    // Commit early when this many pages are dirty, to bound memory between flushes
+    private static final int MAX_DIRTY_PAGES = 2048;
+    private static final int MAX_DEPTH = 32;
+
+    private static final int MAGIC = 0x53534254;
+    private static final int VERSION = 1;
+
+    // File header (page 0)
+    private static final int H_MAGIC = 0;
+    private static final int H_VERSION = 4;
+    private static final int H_PAGE_SIZE = 8;
+    private static final int H_ROOT = 12;
+    private static final int H_PAGE_COUNT = 16;
+    private static final int H_FREE_HEAD = 20;
+    private static final int H_ENTRY_COUNT = 24;
+
+    // Node pages: type(1) unused(1) cellCount(2) next(4), then the cell offset array.
+    // Cell content grows down from the end of the page.
+    private static final byte LEAF = 1;
+    private static final byte INTERNAL = 2;
+    private static final byte OVERFLOW = 3;
+    private static final byte FREE = 4;
+    private static final int NODE_HEADER = 8;
+    private static final int SLOT_SIZE = 2;
+
+    // Leaf cell: keyLen(2) flags(1) valueLen(4) key value-or-overflowPage(4)
+    private static final int LEAF_CELL_HEADER = 7;
+    private static final byte FLAG_OVERFLOW = 1;
+    // Larger cells move their value to overflow pages, so a leaf always holds several cells
+    private static final int MAX_INLINE_CELL = PAGE_SIZE / 4;
+    // Internal cell: keyLen(2) child(4) key; the child holds keys lower than the cell key
+    private static final int INTERNAL_CELL_HEADER = 6;
+    // Overflow page: type(1) unused(1) length(2) next(4) data
+    private static final int OVERFLOW_CAPACITY = PAGE_SIZE - NODE_HEADER;
+
+    private static final ValueLayout.OfShort SHORT = ValueLayout.JAVA_SHORT_UNALIGNED.withOrder(ByteOrder.BIG_ENDIAN);
+    private static final ValueLayout.OfInt INT = ValueLayout.JAVA_INT_UNALIGNED.withOrder(ByteOrder.BIG_ENDIAN);
+    private static final ValueLayout.OfLong LONG = ValueLayout.JAVA_LONG_UNALIGNED.withOrder(ByteOrder.BIG_ENDIAN);
+
+    private final Path filePath;
+    private final Path walPath;
+    private final Path jsonPath;
+    private final Gson gson;
+    private final Gson prettyGson;
+    private final Logger logger;
+    private final int maxMappedChunks;
+    private final LinkedHashMap<Integer, Chunk> chunks;
+    private final Map<Integer, MemorySegment> dirtyPages;
+    // Serializes commits of page changes; transactions hold it until their pages are installed
+    private final ReentrantLock commitLock;
+    // Declared indexes by field
+    private final Map<String, SecondaryIndex> indexes;
+    // Every key in the tree; set whenever the file is open
+    private BloomFilter filter;
+    private FileChannel channel;
+    private boolean dropped;
+
+    BTreeDocumentStore(String name, Path filePath, Path jsonPath, Gson prettyGson, Logger logger, int cacheSizeMb) {
+        super(name);
+        this.filePath = filePath;
+        this.walPath = filePath.resolveSibling(filePath.getFileName() + WAL_SUFFIX);
+        this.jsonPath = jsonPath;
+        // Values are stored compact
+        this.gson = new Gson();
+        this.prettyGson = prettyGson;
+        this.logger = logger;
+        this.maxMappedChunks = Math.max(MIN_MAPPED_CHUNKS, (int) (((long) cacheSizeMb << 20) / CHUNK_SIZE));
+        this.chunks = new LinkedHashMap<>(16, 0.75f, true);
+        this.dirtyPages = new HashMap<>();
+        this.commitLock = new ReentrantLock();
+        this.indexes = new LinkedHashMap<>();
+    }
+
+    @Override
+    void load() throws IOException {
+        synchronized (this) {
+            if (Files.exists(filePath)) {
+                openFile();
+            } else if (Files.exists(jsonPath)) {
+                importJson();
+            }
+            if (channel != null) {
+                rebuildFilter();
+            }
+        }
+        loaded();
+    }
+
+    @Override
+    public String getEngineName() {
+        return NAME;
+    }
+
+    @Override
+    synchronized JsonElement getStored(@Nonnull String key) {
+        if (channel == null) {
+            return null;
+        }
+        byte[] keyBytes = encodeKey(key);
+        if (!filter.mightContain(keyBytes)) {
+            return null;
+        }
+        int leaf = findLeaf(keyBytes);
+        MemorySegment page = page(leaf);
+        int slot = searchLeaf(page, keyBytes);
+        if (slot < 0) {
+            return null;
+        }
+        byte[] value = readValue(page, cellOffset(page, slot));
+        return JsonParser.parseString(new String(value, StandardCharsets.UTF_8));
+    }
+
+    @Override
+    public synchronized void put(@Nonnull String key, @Nonnull JsonElement value) {
+        byte[] keyBytes = encodeKey(key);
+        JsonElement previous = indexesBuilt() ? getStored(key) : null;
+        try {
+            ensureCreated();
+            insert(keyBytes, gson.toJson(value).getBytes(StandardCharsets.UTF_8));
+            commitIfTooDirty();
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        index(key, previous, value);
+        written(key);
+    }
+
+    @Override
+    public synchronized boolean remove(@Nonnull String key) {
+        if (channel == null) {
+            return false;
+        }
+        JsonElement previous = indexesBuilt() ? getStored(key) : null;
+        boolean removed = delete(encodeKey(key));
+        try {
+            commitIfTooDirty();
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        if (removed) {
+            index(key, previous, null);
+            written(key);
+        }
+        return removed;
+    }
+
+    @Override
+    synchronized JsonElement updateStored(@Nonnull String key, @Nonnull UnaryOperator<JsonElement> function) {
+        JsonElement stored = getStored(key);
+        JsonElement value = function.apply(stored);
+        if (value == stored) {
+            return value;
+        }
+        if (value == null) {
+            remove(key);
+        } else {
+            put(key, value);
+        }
+        return value;
+    }
+
+    @Override
+    public synchronized List<String> keys() {
+        List<String> keys = new ArrayList<>();
+        if (channel == null) {
+            return keys;
+        }
+        for (int leaf = leftmostLeaf(); leaf != 0; ) {
+            MemorySegment page = page(leaf);
+            int count = cellCount(page);
+            for (int i = 0; i < count; i++) {
+                int offset = cellOffset(page, i);
+                keys.add(new String(copy(page, offset + LEAF_CELL_HEADER, keyLength(page, offset)), StandardCharsets.UTF_8));
+            }
+            leaf = page.get(INT, 4);
+        }
+        return keys;
+    }
+
+    @Override
+    synchronized List<Map.Entry<String, JsonElement>> scanStored(@Nonnull String prefix, String after, int limit) {
+        List<Map.Entry<String, JsonElement>> page = new ArrayList<>();
+        if (channel == null) {
+            return page;
+        }
+        byte[] prefixBytes = encodeKey(prefix);
+        byte[] afterBytes = after != null ? after.getBytes(StandardCharsets.UTF_8) : null;
+        boolean fromAfter = afterBytes != null && Arrays.compareUnsigned(afterBytes, prefixBytes) >= 0;
+        byte[] start = fromAfter ? afterBytes : prefixBytes;
+
+        int leaf = findLeaf(start);
+        int slot = lowerBound(page(leaf), start);
+        while (leaf != 0) {
+            // Copy the leaf first: reading overflow values may unmap its chunk
+            List<byte[]> cells = readCells(page(leaf));
+            int next = page(leaf).get(INT, 4);
+            for (int i = slot; i < cells.size(); i++) {
+                MemorySegment cell = MemorySegment.ofArray(cells.get(i));
+                byte[] key = copy(cell, LEAF_CELL_HEADER, keyLength(cell, 0));
+                if (fromAfter && Arrays.equals(key, afterBytes)) {
+                    continue;
+                }
+                boolean inRange = key.length >= prefixBytes.length
+                        && Arrays.equals(key, 0, prefixBytes.length, prefixBytes, 0, prefixBytes.length);
+                if (page.size() >= limit || !inRange) {
+                    return page;
+                }
+                page.add(Map.entry(new String(key, StandardCharsets.UTF_8),
+                        JsonParser.parseString(new String(readValue(cell, 0), StandardCharsets.UTF_8))));
+            }
+            leaf = next;
+            slot = 0;
+        }
+        return page;
+    }
+
+    @Override
+    synchronized void addIndex(@Nonnull String field) {
+        indexes.putIfAbsent(field, new SecondaryIndex(field));
+    }
+
+    @Override
+    synchronized List<String> queryKeys(@Nonnull String field, @Nonnull JsonElement value) {
+        SecondaryIndex index = indexes.get(field);
+        if (index == null) {
+            throw new IllegalArgumentException("No index on field \"" + field + "\" of collection " + getName());
+        }
+        if (!index.isBuilt()) {
+            index.setBuilt(true);
+            forEachStored(index::add);
+        }
+        return index.find(value);
+    }
+
+    @Override
+    public synchronized int size() {
+        return channel == null ? 0 : (int) page(0).get(LONG, H_ENTRY_COUNT);
+    }
+
+    @Override
+    public synchronized boolean exists() {
+        return channel != null;
+    }
+
+    @Override
+    public synchronized boolean isDirty() {
+        return !dirtyPages.isEmpty();
+    }
+
+    @Override
+    public synchronized String toJson() {
+        Map<String, JsonElement> entries = new LinkedHashMap<>();
+        forEachStored(entries::put);
+        return JsonFileEngine.serialize(prettyGson, entries);
+    }
+
+    @Override
+    public void flush() throws IOException {
+        commitLock.lock();
+        try {
+            synchronized (this) {
+                if (!dropped) {
+                    commit();
+                }
+            }
+        } finally {
+            commitLock.unlock();
+        }
+    }
+
+    @Override
+    ReentrantLock commitLock() {
+        return commitLock;
+    }
+
+    @Override
+    synchronized List<StagedWrite> stage() throws IOException {
+        if (dirtyPages.isEmpty() || channel == null) {
+            return List.of();
+        }
+        // Copies: later writes keep modifying the live pages while the transaction installs
+        Map<Integer, MemorySegment> pages = new TreeMap<>();
+        for (Map.Entry<Integer, MemorySegment> entry : dirtyPages.entrySet()) {
+            pages.put(entry.getKey(), MemorySegment.ofArray(entry.getValue().toArray(ValueLayout.JAVA_BYTE)));
+        }
+        // Installed as the redo log, which the next load replays if the install is cut short
+        Path stagedPath = walPath.resolveSibling(walPath.getFileName() + StagedWrite.STAGED_SUFFIX);
+        writeRedoLog(stagedPath, pages);
+        return List.of(new StagedWrite(stagedPath, walPath, () -> installStaged(pages)));
+    }
+
+    @Override
+    void maintain() {
+        // Pages are reused through the free list; nothing to compact but the filter
+        synchronized (this) {
+            if (channel != null && filter.isSaturated(size())) {
+                rebuildFilter();
+                logger.fine("Rebuilt the key filter of " + filePath.getFileName());
+            }
+        }
+    }
+
+    @Override
+    synchronized void close() {
+        unmapAll();
+        if (channel != null) {
+            try {
+                channel.close();
+            } catch (IOException e) {
+                logger.warning("Error closing " + filePath.getFileName() + ": " + e.getMessage());
+            }
+            channel = null;
+        }
+        filter = null;
+        dirtyPages.clear();
+    }
+
+    @Override
+    synchronized boolean drop() throws IOException {
+        boolean existed = channel != null;
+        dropped = true;
+        close();
+        for (SecondaryIndex index : indexes.values()) {
+            index.setBuilt(false);
+        }
+        Files.deleteIfExists(walPath);
+        return Files.deleteIfExists(filePath) || existed;
+    }
+
+    /**
+     * Walks every entry in key order.
+     */
+    private void forEachStored(BiConsumer<String, JsonElement> action) {
+        if (channel == null) {
+            return;
+        }
+        for (int leaf = leftmostLeaf(); leaf != 0; ) {
+            // Copy the leaf first: reading overflow values may unmap its chunk
+            List<byte[]> cells = readCells(page(leaf));
+            int next = page(leaf).get(INT, 4);
+            for (byte[] cell : cells) {
+                MemorySegment segment = MemorySegment.ofArray(cell);
+                String key = new String(copy(segment, LEAF_CELL_HEADER, keyLength(segment, 0)), StandardCharsets.UTF_8);
+                action.accept(key, JsonParser.parseString(new String(readValue(segment, 0), StandardCharsets.UTF_8)));
+            }
+            leaf = next;
+        }
+    }
+
+    /**
+     * Sizes a new key filter for the current entries and adds their keys,
+     * reading only the leaves.
+     */
+    private void rebuildFilter() {
+        BloomFilter rebuilt = new BloomFilter(page(0).get(LONG, H_ENTRY_COUNT));
+        for (int leaf = leftmostLeaf(); leaf != 0; ) {
+            MemorySegment page = page(leaf);
+            int count = cellCount(page);
+            for (int i = 0; i < count; i++) {
+                int offset = cellOffset(page, i);
+                rebuilt.add(copy(page, offset + LEAF_CELL_HEADER, keyLength(page, offset)));
+            }
+            leaf = page.get(INT, 4);
+        }
+        filter = rebuilt;
+    }
+
+    private boolean indexesBuilt() {
+        for (SecondaryIndex index : indexes.values()) {
+            if (index.isBuilt()) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private void index(String key, JsonElement previous, JsonElement value) {
+        for (SecondaryIndex index : indexes.values()) {
+            index.update(key, previous, value);
+        }
+    }
+
+    // ---- Tree operations ----
+
+    private int findLeaf(byte[] key) {
+        int pageId = page(0).get(INT, H_ROOT);
+        MemorySegment page = page(pageId);
+        while (page.get(ValueLayout.JAVA_BYTE, 0) == INTERNAL) {
+            pageId = childFor(page, key);
+            page = page(pageId);
+        }
+        return pageId;
+    }
+
+    private int leftmostLeaf() {
+        int pageId = page(0).get(INT, H_ROOT);
+        MemorySegment page = page(pageId);
+        while (page.get(ValueLayout.JAVA_BYTE, 0) == INTERNAL) {
+            pageId = cellCount(page) > 0
+                    ? page.get(INT, cellOffset(page, 0) + 2)
+                    : page.get(INT, 4);
+            page = page(pageId);
+        }
+        return pageId;
+    }
+
+    /**
+     * Picks the child of an internal node that may contain the key.
+     */
+    private int childFor(MemorySegment page, byte[] key) {
+        int low = 0;
+        int high = cellCount(page);
+        // First cell whose key is greater than the search key
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            int offset = cellOffset(page, mid);
+            if (compare(page, offset + INTERNAL_CELL_HEADER, keyLength(page, offset), key) > 0) {
+                high = mid;
+            } else {
+                low = mid + 1;
+            }
+        }
+        return low < cellCount(page)
+                ? page.get(INT, cellOffset(page, low) + 2)
+                : page.get(INT, 4);
+    }
+
+    /**
+     * Finds the first slot of a leaf whose key is not less than the given key.
+     * @return The slot index; the cell count if every key is less
+     */
+    private int lowerBound(MemorySegment page, byte[] key) {
+        int low = 0;
+        int high = cellCount(page);
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            int offset = cellOffset(page, mid);
+            if (compare(page, offset + LEAF_CELL_HEADER, keyLength(page, offset), key) < 0) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+        return low;
+    }
+
+    /**
+     * Finds a key in a leaf without copying anything.
+     * @return The slot index, or -1 if not found
+     */
+    private int searchLeaf(MemorySegment page, byte[] key) {
+        int low = 0;
+        int high = cellCount(page) - 1;
+        while (low <= high) {
+            int mid = (low + high) >>> 1;
+            int offset = cellOffset(page, mid);
+            int cmp = compare(page, offset + LEAF_CELL_HEADER, keyLength(page, offset), key);
+            if (cmp < 0) {
+                low = mid + 1;
+            } else if (cmp > 0) {
+                high = mid - 1;
+            } else {
+                return mid;
+            }
+        }
+        return -1;
+    }
+
+    private void insert(byte[] key, byte[] value) {
+        int[] path = new int[MAX_DEPTH];
+        int depth = 0;
+        int pageId = page(0).get(INT, H_ROOT);
+        while (page(pageId).get(ValueLayout.JAVA_BYTE, 0) == INTERNAL) {
+            path[depth++] = pageId;
+            pageId = childFor(page(pageId), key);
+        }
+
+        List<byte[]> cells = readCells(page(pageId));
+        int next = page(pageId).get(INT, 4);
+        int index = searchCells(cells, key, LEAF_CELL_HEADER);
+        byte[] cell = leafCell(key, value);
+        if (index >= 0) {
+            freeOverflow(cells.get(index));
+            cells.set(index, cell);
+        } else {
+            cells.add(-index - 1, cell);
+            filter.add(key);
+            MemorySegment header = writable(0);
+            header.set(LONG, H_ENTRY_COUNT, header.get(LONG, H_ENTRY_COUNT) + 1);
+        }
+
+        if (fits(cells)) {
+            writeNode(pageId, LEAF, next, cells);
+            return;
+        }
+
+        int split = splitIndex(cells);
+        int rightId = allocatePage();
+        writeNode(rightId, LEAF, next, cells.subList(split, cells.size()));
+        writeNode(pageId, LEAF, rightId, cells.subList(0, split));
+        insertIntoParent(path, depth, pageId, cellKey(cells.get(split), LEAF_CELL_HEADER), rightId);
+    }
+
+    /**
+     * Adds a separator after a node split: keys below it stay in leftId,
+     * keys from it upwards are in rightId.
+     */
+    private void insertIntoParent(int[] path, int depth, int leftId, byte[] separator, int rightId) {
+        if (depth == 0) {
+            int rootId = allocatePage();
+            writeNode(rootId, INTERNAL, rightId, List.of(internalCell(separator, leftId)));
+            writable(0).set(INT, H_ROOT, rootId);
+            return;
+        }
+
+        int parentId = path[depth - 1];
+        List<byte[]> cells = readCells(page(parentId));
+        int rightmost = page(parentId).get(INT, 4);
+
+        int index = -1;
+        for (int i = 0; i < cells.size(); i++) {
+            if (childOf(cells.get(i)) == leftId) {
+                index = i;
+                break;
+            }
+        }
+        if (index >= 0) {
+            // The old cell now bounds the new right node
+            cells.set(index, internalCell(cellKey(cells.get(index), INTERNAL_CELL_HEADER), rightId));
+            cells.add(index, internalCell(separator, leftId));
+        } else {
+            cells.add(internalCell(separator, leftId));
+            rightmost = rightId;
+        }
+
+        if (fits(cells)) {
+            writeNode(parentId, INTERNAL, rightmost, cells);
+            return;
+        }
+
+        // The middle key moves up; its child becomes the left node's rightmost child
+        int split = splitIndex(cells);
+        byte[] promoted = cellKey(cells.get(split), INTERNAL_CELL_HEADER);
+        int newRightId = allocatePage();
+        writeNode(newRightId, INTERNAL, rightmost, cells.subList(split + 1, cells.size()));
+        writeNode(parentId, INTERNAL, childOf(cells.get(split)), cells.subList(0, split));
+        insertIntoParent(path, depth - 1, parentId, promoted, newRightId);
+    }
+
+    private boolean delete(byte[] key) {
+        int leaf = findLeaf(key);
+        List<byte[]> cells = readCells(page(leaf));
+        int index = searchCells(cells, key, LEAF_CELL_HEADER);
+        if (index < 0) {
+            return false;
+        }
+        freeOverflow(cells.remove(index));
+        // Underfull leaves are not merged; their space is reused by later inserts
+        writeNode(leaf, LEAF, page(leaf).get(INT, 4), cells);
+        MemorySegment header = writable(0);
+        header.set(LONG, H_ENTRY_COUNT, header.get(LONG, H_ENTRY_COUNT) - 1);
+        return true;
+    }
+
+    // ---- Cells ----
+
+    private byte[] leafCell(byte[] key, byte[] value) {
+        boolean overflow = LEAF_CELL_HEADER + key.length + value.length > MAX_INLINE_CELL;
+        byte[] cell = new byte[LEAF_CELL_HEADER + key.length + (overflow ? 4 : value.length)];
+        MemorySegment segment = MemorySegment.ofArray(cell);
+        segment.set(SHORT, 0, (short) key.length);
+        segment.set(ValueLayout.JAVA_BYTE, 2, overflow ? FLAG_OVERFLOW : 0);
+        segment.set(INT, 3, value.length);
+        MemorySegment.copy(MemorySegment.ofArray(key), 0, segment, LEAF_CELL_HEADER, key.length);
+        if (overflow) {
+            segment.set(INT, LEAF_CELL_HEADER + key.length, writeOverflow(value));
+        } else {
+            MemorySegment.copy(MemorySegment.ofArray(value), 0, segment, LEAF_CELL_HEADER + key.length, value.length);
+        }
+        return cell;
+    }
+
+    private static byte[] internalCell(byte[] key, int child) {
+        byte[] cell = new byte[INTERNAL_CELL_HEADER + key.length];
+        MemorySegment segment = MemorySegment.ofArray(cell);
+        segment.set(SHORT, 0, (short) key.length);
+        segment.set(INT, 2, child);
+        MemorySegment.copy(MemorySegment.ofArray(key), 0, segment, INTERNAL_CELL_HEADER, key.length);
+        return cell;
+    }
+
+    private static int childOf(byte[] internalCell) {
+        return MemorySegment.ofArray(internalCell).get(INT, 2);
+    }
+
+    private static byte[] cellKey(byte[] cell, int headerSize) {
+        int length = MemorySegment.ofArray(cell).get(SHORT, 0) & 0xFFFF;
+        byte[] key = new byte[length];
+        System.arraycopy(cell, headerSize, key, 0, length);
+        return key;
+    }
+
+    /**
+     * Reads a leaf cell's value, following its overflow chain if needed.
+     */
+    private byte[] readValue(MemorySegment page, int offset) {
+        int keyLength = keyLength(page, offset);
+        int valueLength = page.get(INT, offset + 3);
+        if ((page.get(ValueLayout.JAVA_BYTE, offset + 2) & FLAG_OVERFLOW) == 0) {
+            return copy(page, offset + LEAF_CELL_HEADER + keyLength, valueLength);
+        }
+
+        byte[] value = new byte[valueLength];
+        int pageId = page.get(INT, offset + LEAF_CELL_HEADER + keyLength);
+        int position = 0;
+        while (pageId != 0 && position < valueLength) {
+            MemorySegment overflow = page(pageId);
+            int length = overflow.get(SHORT, 2) & 0xFFFF;
+            MemorySegment.copy(overflow, NODE_HEADER, MemorySegment.ofArray(value), position, length);
+            position += length;
+            pageId = overflow.get(INT, 4);
+        }
+        return value;
+    }
+
+    private int writeOverflow(byte[] value) {
+        // Written back to front so each page can point at the next one
+        int next = 0;
+        int pages = (value.length + OVERFLOW_CAPACITY - 1) / OVERFLOW_CAPACITY;
+        for (int i = pages - 1; i >= 0; i--) {
+            int start = i * OVERFLOW_CAPACITY;
+            int length = Math.min(OVERFLOW_CAPACITY, value.length - start);
+            int pageId = allocatePage();
+            MemorySegment page = writable(pageId);
+            page.set(ValueLayout.JAVA_BYTE, 0, OVERFLOW);
+            page.set(SHORT, 2, (short) length);
+            page.set(INT, 4, next);
+            MemorySegment.copy(MemorySegment.ofArray(value), start, page, NODE_HEADER, length);
+            next = pageId;
+        }
+        return next;
+    }
+
+    private void freeOverflow(byte[] leafCell) {
+        MemorySegment cell = MemorySegment.ofArray(leafCell);
+        if ((cell.get(ValueLayout.JAVA_BYTE, 2) & FLAG_OVERFLOW) == 0) {
+            return;
+        }
+        int pageId = cell.get(INT, LEAF_CELL_HEADER + keyLength(cell, 0));
+        while (pageId != 0) {
+            int next = page(pageId).get(INT, 4);
+            freePage(pageId);
+            pageId = next;
+        }
+    }
+
+    private static int searchCells(List<byte[]> cells, byte[] key, int headerSize) {
+        int low = 0;
+        int high = cells.size() - 1;
+        while (low <= high) {
+            int mid = (low + high) >>> 1;
+            MemorySegment cell = MemorySegment.ofArray(cells.get(mid));
+            int cmp = compare(cell, headerSize, keyLength(cell, 0), key);
+            if (cmp < 0) {
+                low = mid + 1;
+            } else if (cmp > 0) {
+                high = mid - 1;
+            } else {
+                return mid;
+            }
+        }
+        return -(low + 1);
+    }
+
+    private static boolean fits(List<byte[]> cells) {
+        int size = NODE_HEADER;
+        for (byte[] cell : cells) {
+            size += SLOT_SIZE + cell.length;
+        }
+        return size <= PAGE_SIZE;
+    }
+
+    /**
+     * Splits cells roughly in half by size, keeping both halves non-empty.
+     */
+    private static int splitIndex(List<byte[]> cells) {
+        int total = 0;
+        for (byte[] cell : cells) {
+            total += SLOT_SIZE + cell.length;
+        }
+        int size = 0;
+        int index = 0;
+        while (index < cells.size() - 1 && size + SLOT_SIZE + cells.get(index).length <= total / 2) {
+            size += SLOT_SIZE + cells.get(index).length;
+            index++;
+        }
+        return Math.max(1, index);
+    }
+
+    // ---- Pages ----
+
+    private static int cellCount(MemorySegment page) {
+        return page.get(SHORT, 2) & 0xFFFF;
+    }
+
+    private static int cellOffset(MemorySegment page, int slot) {
+        return page.get(SHORT, NODE_HEADER + slot * SLOT_SIZE) & 0xFFFF;
+    }
+
+    private static int keyLength(MemorySegment page, int cellOffset) {
+        return page.get(SHORT, cellOffset) & 0xFFFF;
+    }
+
+    private List<byte[]> readCells(MemorySegment page) {
+        byte type = page.get(ValueLayout.JAVA_BYTE, 0);
+        int count = cellCount(page);
+        List<byte[]> cells = new ArrayList<>(count + 1);
+        for (int i = 0; i < count; i++) {
+            int offset = cellOffset(page, i);
+            int keyLength = keyLength(page, offset);
+            int length;
+            if (type == LEAF) {
+                boolean overflow = (page.get(ValueLayout.JAVA_BYTE, offset + 2) & FLAG_OVERFLOW) != 0;
+                length = LEAF_CELL_HEADER + keyLength + (overflow ? 4 : page.get(INT, offset + 3));
+            } else {
+                length = INTERNAL_CELL_HEADER + keyLength;
+            }
+            cells.add(copy(page, offset, length));
+        }
+        return cells;
+    }
+
+    private void writeNode(int pageId, byte type, int next, List<byte[]> cells) {
+        MemorySegment page = writable(pageId);
+        page.fill((byte) 0);
+        page.set(ValueLayout.JAVA_BYTE, 0, type);
+        page.set(SHORT, 2, (short) cells.size());
+        page.set(INT, 4, next);
+        int end = PAGE_SIZE;
+        for (int i = 0; i < cells.size(); i++) {
+            byte[] cell = cells.get(i);
+            end -= cell.length;
+            MemorySegment.copy(MemorySegment.ofArray(cell), 0, page, end, cell.length);
+            page.set(SHORT, NODE_HEADER + i * SLOT_SIZE, (short) end);
+        }
+    }
+
+    private int allocatePage() {
+        MemorySegment header = writable(0);
+        int pageId = header.get(INT, H_FREE_HEAD);
+        if (pageId != 0) {
+            header.set(INT, H_FREE_HEAD, page(pageId).get(INT, 4));
+        } else {
+            pageId = header.get(INT, H_PAGE_COUNT);
+            header.set(INT, H_PAGE_COUNT, pageId + 1);
+        }
+        dirtyPages.put(pageId, MemorySegment.ofArray(new byte[PAGE_SIZE]));
+        return pageId;
+    }
+
+    private void freePage(int pageId) {
+        MemorySegment header = writable(0);
+        MemorySegment page = MemorySegment.ofArray(new byte[PAGE_SIZE]);
+        page.set(ValueLayout.JAVA_BYTE, 0, FREE);
+        page.set(INT, 4, header.get(INT, H_FREE_HEAD));
+        dirtyPages.put(pageId, page);
+        header.set(INT, H_FREE_HEAD, pageId);
+    }
+
+    /**
+     * Gets a page for reading: the pending copy if it was modified, else the mapped page.
+     * The returned segment is only valid until the next page access.
+     */
+    private MemorySegment page(int pageId) {
+        MemorySegment dirty = dirtyPages.get(pageId);
+        if (dirty != null) {
+            return dirty;
+        }
+        int chunkIndex = pageId / CHUNK_PAGES;
+        Chunk chunk = chunks.get(chunkIndex);
+        if (chunk == null) {
+            chunk = map(chunkIndex);
+        }
+        return chunk.segment.asSlice((long) (pageId % CHUNK_PAGES) * PAGE_SIZE, PAGE_SIZE);
+    }
+
+    /**
+     * Gets a page for writing, copying it out of the mapping on first modification.
+     */
+    private MemorySegment writable(int pageId) {
+        MemorySegment dirty = dirtyPages.get(pageId);
+        if (dirty == null) {
+            dirty = MemorySegment.ofArray(new byte[PAGE_SIZE]);
+            MemorySegment.copy(page(pageId), 0, dirty, 0, PAGE_SIZE);
+            dirtyPages.put(pageId, dirty);
+        }
+        return dirty;
+    }
+
+    private Chunk map(int chunkIndex) {
+        long start = chunkIndex * CHUNK_SIZE;
+        try {
+            // Map only what the file holds; a partial chunk is remapped after the file grows
+            long size = Math.min(CHUNK_SIZE, channel.size() - start);
+            Arena arena = Arena.ofShared();
+            MemorySegment segment;
+            try {
+                segment = channel.map(FileChannel.MapMode.READ_ONLY, start, size, arena);
+            } catch (IOException | RuntimeException e) {
+                arena.close();
+                throw e;
+            }
+            Chunk chunk = new Chunk(arena, segment);
+            chunks.put(chunkIndex, chunk);
+            evictChunks();
+            return chunk;
+        } catch (IOException e) {
+            throw new UncheckedIOException("Failed to map " + filePath.getFileName(), e);
+        }
+    }
+
+    private void evictChunks() {
+        var iterator = chunks.values().iterator();
+        while (chunks.size() > maxMappedChunks && iterator.hasNext()) {
+            iterator.next().arena.close();
+            iterator.remove();
+        }
+    }
+
+    private void unmapAll() {
+        for (Chunk chunk : chunks.values()) {
+            chunk.arena.close();
+        }
+        chunks.clear();
+    }
+
+    // ---- Files ----
+
+    private void openFile() throws IOException {
+        channel = FileChannel.open(filePath, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        recover();
+        if (channel.size() < PAGE_SIZE) {
+            throw new IOException(filePath.getFileName() + " is truncated");
+        }
+        MemorySegment header = page(0);
+        if (header.get(INT, H_MAGIC) != MAGIC || header.get(INT, H_PAGE_SIZE) != PAGE_SIZE) {
+            throw new IOException(filePath.getFileName() + " is not a B-tree DB file");
+        }
+        if (header.get(INT, H_VERSION) > VERSION) {
+            throw new IOException(filePath.getFileName() + " was written by a newer version");
+        }
+    }
+
+    private void ensureCreated() throws IOException {
+        if (channel != null) {
+            return;
+        }
+        if (dropped) {
+            throw new IllegalStateException("Collection " + getName() + " was deleted");
+        }
+        channel = FileChannel.open(filePath, StandardOpenOption.CREATE_NEW, StandardOpenOption.READ, StandardOpenOption.WRITE);
+
+        MemorySegment header = MemorySegment.ofArray(new byte[PAGE_SIZE]);
+        header.set(INT, H_MAGIC, MAGIC);
+        header.set(INT, H_VERSION, VERSION);
+        header.set(INT, H_PAGE_SIZE, PAGE_SIZE);
+        header.set(INT, H_ROOT, 1);
+        header.set(INT, H_PAGE_COUNT, 2);
+        dirtyPages.put(0, header);
+        filter = new BloomFilter(0);
+        MemorySegment root = MemorySegment.ofArray(new byte[PAGE_SIZE]);
+        root.set(ValueLayout.JAVA_BYTE, 0, LEAF);
+        dirtyPages.put(1, root);
+        commit();
+    }
+
+    private void importJson() throws IOException {
+        Map<String, JsonElement> entries = JsonFileEngine.read(jsonPath);
+        ensureCreated();
+        for (Map.Entry<String, JsonElement> entry : entries.entrySet()) {
+            insert(encodeKey(entry.getKey()), gson.toJson(entry.getValue()).getBytes(StandardCharsets.UTF_8));
+            commitIfTooDirty();
+        }
+        commit();
+        Files.move(jsonPath, jsonPath.resolveSibling(jsonPath.getFileName() + IMPORTED_SUFFIX), StandardCopyOption.REPLACE_EXISTING);
+        logger.info("Imported " + entries.size() + " keys from " + jsonPath.getFileName() + " into " + filePath.getFileName());
+    }
+
+    private void commitIfTooDirty() throws IOException {
+        // A transaction holding the lock commits its pages itself, all at once
+        if (dirtyPages.size() >= MAX_DIRTY_PAGES && !commitLock.isHeldByCurrentThread() && commitLock.tryLock()) {
+            try {
+                commit();
+            } finally {
+                commitLock.unlock();
+            }
+        }
+    }
+
+    /**
+     * Writes staged page images into the file once their redo log is in place.
+     */
+    private synchronized void installStaged(Map<Integer, MemorySegment> pages) throws IOException {
+        long oldSize = channel.size();
+        writePages(pages);
+        for (Map.Entry<Integer, MemorySegment> entry : pages.entrySet()) {
+            // Pages modified again after staging stay dirty
+            MemorySegment dirty = dirtyPages.get(entry.getKey());
+            if (dirty != null && dirty.mismatch(entry.getValue()) == -1) {
+                dirtyPages.remove(entry.getKey());
+            }
+        }
+        Files.write(walPath, new byte[0]);
+        if (channel.size() != oldSize) {
+            remapLastChunk(oldSize);
+        }
+    }
+
+    /**
+     * Makes all pending page changes durable: redo log first, then the file.
+     */
+    private void commit() throws IOException {
+        if (dirtyPages.isEmpty() || channel == null) {
+            return;
+        }
+        Map<Integer, MemorySegment> pages = new TreeMap<>(dirtyPages);
+        writeRedoLog(walPath, pages);
+
+        long oldSize = channel.size();
+        writePages(pages);
+        dirtyPages.clear();
+        // Nothing to redo any more
+        Files.write(walPath, new byte[0]);
+        if (channel.size() != oldSize) {
+            remapLastChunk(oldSize);
+        }
+    }
+
+    /**
+     * Writes page images to a redo log: (pageId, page) records, then a trailer
+     * with the record count and a CRC of everything before it. Synced before returning.
+     */
+    private static void writeRedoLog(Path path, Map<Integer, MemorySegment> pages) throws IOException {
+        ByteBuffer record = ByteBuffer.allocate(4 + PAGE_SIZE);
+        CRC32 crc = new CRC32();
+        long position = 0;
+        try (FileChannel wal = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            for (Map.Entry<Integer, MemorySegment> entry : pages.entrySet()) {
+                record.clear();
+                record.putInt(entry.getKey());
+                record.put(entry.getValue().asByteBuffer());
+                record.flip();
+                crc.update(record.duplicate());
+                position += writeFully(wal, record, position);
+            }
+            ByteBuffer trailer = ByteBuffer.allocate(16);
+            trailer.putInt(-1).putInt(pages.size()).putLong(crc.getValue()).flip();
+            writeFully(wal, trailer, position);
+            wal.force(true);
+        }
+    }
+
+    private void writePages(Map<Integer, MemorySegment> pages) throws IOException {
+        for (Map.Entry<Integer, MemorySegment> entry : pages.entrySet()) {
+            writeFully(channel, entry.getValue().asByteBuffer(), (long) entry.getKey() * PAGE_SIZE);
+        }
+        channel.force(false);
+    }
+
+    /**
+     * Replays a complete redo log left by a crash; an incomplete one is discarded
+     * because the file was not touched before the log was synced.
+     */
+    private void recover() throws IOException {
+        if (!Files.exists(walPath) || Files.size(walPath) == 0) {
+            return;
+        }
+        ByteBuffer data = ByteBuffer.wrap(Files.readAllBytes(walPath));
+        Map<Integer, MemorySegment> pages = new TreeMap<>();
+        CRC32 crc = new CRC32();
+        boolean complete = false;
+        while (data.remaining() >= 4) {
+            int start = data.position();
+            int pageId = data.getInt();
+            if (pageId == -1) {
+                complete = data.remaining() >= 12 && data.getInt() == pages.size() && data.getLong() == crc.getValue();
+                break;
+            }
+            if (data.remaining() < PAGE_SIZE) {
+                break;
+            }
+            byte[] page = new byte[PAGE_SIZE];
+            data.get(page);
+            crc.update(data.array(), start, 4 + PAGE_SIZE);
+            pages.put(pageId, MemorySegment.ofArray(page));
+        }
+
+        if (complete) {
+            writePages(pages);
+            logger.warning("Recovered " + pages.size() + " pages of " + filePath.getFileName() + " from the redo log");
+        } else {
+            logger.warning("Discarding incomplete redo log of " + filePath.getFileName());
+        }
+        Files.write(walPath, new byte[0]);
+    }
+
+    private void remapLastChunk(long oldSize) {
+        int chunkIndex = (int) (oldSize / CHUNK_SIZE);
+        Chunk chunk = chunks.remove(chunkIndex);
+        if (chunk != null) {
+            chunk.arena.close();
+        }
+    }
+
+    private static int writeFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+        int written = 0;
+        while (buffer.hasRemaining()) {
+            written += channel.write(buffer, position + written);
+        }
+        return written;
+    }
+
+    // ---- Helpers ----
+
+    private static byte[] encodeKey(String key) {
+        byte[] bytes = key.getBytes(StandardCharsets.UTF_8);
+        if (bytes.length > MAX_KEY_BYTES) {
+            throw new IllegalArgumentException("Key is longer than " + MAX_KEY_BYTES + " bytes: " + key);
+        }
+        return bytes;
+    }
+
+    /**
+     * Compares a key stored in a segment with a search key, byte by byte (UTF-8 order).
+     */
+    private static int compare(MemorySegment segment, long offset, int length, byte[] key) {
+        int common = Math.min(length, key.length);
+        for (int i = 0; i < common; i++) {
+            int a = segment.get(ValueLayout.JAVA_BYTE, offset + i) & 0xFF;
+            int b = key[i] & 0xFF;
+            if (a != b) {
+                return a - b;
+            }
+        }
+        return length - key.length;
+    }
+
+    private static byte[] copy(MemorySegment segment, long offset, int length) {
+        byte[] bytes = new byte[length];
+        MemorySegment.copy(segment, offset, MemorySegment.ofArray(bytes), 0, length);
+        return bytes;
+    }
+
+    /**
+     * A mapped region of the file and the arena that unmaps it.
+     */
+    private static class Chunk {
+        final Arena arena;
+        final MemorySegment segment;
+
+        Chunk(Arena arena, MemorySegment segment) {
+            this.arena = arena;
+            this.segment = segment;
+        }
+    }
+}
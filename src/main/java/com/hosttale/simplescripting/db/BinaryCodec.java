@@ -0,0 +1,286 @@
+package com.hosttale.simplescripting.db;
+
+import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonNull;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonPrimitive;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.math.BigDecimal;
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+
+/**
+ * Compact binary encoding of JSON values, a subset of CBOR (RFC 8949).
+ * Every item starts with one byte holding its major type (top 3 bits) and
+ * either a small argument or the size of the argument that follows
+ * (1, 2, 4 or 8 bytes, big-endian). Strings, arrays and objects are
+ * length-prefixed, so decoding needs no scanning or escaping.
+ * Integers that fit in a long are stored as integers, other numbers as
+ * 64-bit floats.
+ */
+final class BinaryCodec {
+    static final int TYPE_UNSIGNED = 0;
+    static final int TYPE_NEGATIVE = 1;
+    static final int TYPE_TEXT = 3;
+    static final int TYPE_ARRAY = 4;
+    static final int TYPE_MAP = 5;
+    static final int TYPE_SIMPLE = 7;
+
+    private static final int SIMPLE_FALSE = 20;
+    private static final int SIMPLE_TRUE = 21;
+    private static final int SIMPLE_NULL = 22;
+    private static final int SIMPLE_DOUBLE = 27;
+    // Largest magnitude below which every whole double is exact
+    private static final double MAX_EXACT_DOUBLE = 9.007199254740992E15;
+
+    private BinaryCodec() {
+    }
+
+    /**
+     * Appends one value.
+     * @param out The output
+     * @param value The value
+     */
+    static void write(ByteArrayOutputStream out, JsonElement value) {
+        if (value == null || value.isJsonNull()) {
+            out.write(TYPE_SIMPLE << 5 | SIMPLE_NULL);
+        } else if (value.isJsonObject()) {
+            JsonObject object = value.getAsJsonObject();
+            writeHeader(out, TYPE_MAP, object.size());
+            for (Map.Entry<String, JsonElement> entry : object.entrySet()) {
+                writeText(out, entry.getKey());
+                write(out, entry.getValue());
+            }
+        } else if (value.isJsonArray()) {
+            JsonArray array = value.getAsJsonArray();
+            writeHeader(out, TYPE_ARRAY, array.size());
+            for (JsonElement element : array) {
+                write(out, element);
+            }
+        } else {
+            JsonPrimitive primitive = value.getAsJsonPrimitive();
+            if (primitive.isBoolean()) {
+                out.write(TYPE_SIMPLE << 5 | (primitive.getAsBoolean() ? SIMPLE_TRUE : SIMPLE_FALSE));
+            } else if (primitive.isNumber()) {
+                writeNumber(out, primitive);
+            } else {
+                writeText(out, primitive.getAsString());
+            }
+        }
+    }
+
+    /**
+     * Appends a string.
+     * @param out The output
+     * @param text The string
+     */
+    static void writeText(ByteArrayOutputStream out, String text) {
+        byte[] bytes = text.getBytes(StandardCharsets.UTF_8);
+        writeHeader(out, TYPE_TEXT, bytes.length);
+        out.write(bytes, 0, bytes.length);
+    }
+
+    /**
+     * Appends an item header: the major type and its argument.
+     * @param out The output
+     * @param type The major type
+     * @param argument The length, count or unsigned value
+     */
+    static void writeHeader(ByteArrayOutputStream out, int type, long argument) {
+        int head = type << 5;
+        if (argument >= 0 && argument < 24) {
+            out.write(head | (int) argument);
+        } else if (argument >= 0 && argument <= 0xFF) {
+            out.write(head | 24);
+            out.write((int) argument);
+        } else if (argument >= 0 && argument <= 0xFFFF) {
+            out.write(head | 25);
+            writeBigEndian(out, argument, 2);
+        } else if (argument >= 0 && argument <= 0xFFFFFFFFL) {
+            out.write(head | 26);
+            writeBigEndian(out, argument, 4);
+        } else {
+            // Unsigned 64-bit: negative longs stand for values above Long.MAX_VALUE
+            out.write(head | 27);
+            writeBigEndian(out, argument, 8);
+        }
+    }
+
+    private static void writeNumber(ByteArrayOutputStream out, JsonPrimitive primitive) {
+        Number number = primitive.getAsNumber();
+        long integer;
+        if (number instanceof Integer || number instanceof Long || number instanceof Short || number instanceof Byte) {
+            integer = number.longValue();
+        } else if (number instanceof Double || number instanceof Float) {
+            // Script numbers arrive as doubles; whole ones are stored as integers
+            double value = number.doubleValue();
+            if (value != Math.rint(value) || Math.abs(value) > MAX_EXACT_DOUBLE) {
+                writeDouble(out, value);
+                return;
+            }
+            integer = (long) value;
+        } else {
+            // Parsed from text: exact if it is an integer
+            BigDecimal decimal = primitive.getAsBigDecimal();
+            try {
+                integer = decimal.longValueExact();
+            } catch (ArithmeticException e) {
+                writeDouble(out, decimal.doubleValue());
+                return;
+            }
+        }
+        if (integer >= 0) {
+            writeHeader(out, TYPE_UNSIGNED, integer);
+        } else {
+            // CBOR stores -1 - n
+            writeHeader(out, TYPE_NEGATIVE, -1 - integer);
+        }
+    }
+
+    private static void writeDouble(ByteArrayOutputStream out, double value) {
+        out.write(TYPE_SIMPLE << 5 | SIMPLE_DOUBLE);
+        writeBigEndian(out, Double.doubleToLongBits(value), 8);
+    }
+
+    private static void writeBigEndian(ByteArrayOutputStream out, long value, int bytes) {
+        for (int shift = (bytes - 1) * 8; shift >= 0; shift -= 8) {
+            out.write((int) (value >>> shift));
+        }
+    }
+
+    /**
+     * Reads values from a byte array.
+     */
+    static final class Reader {
+        private final byte[] data;
+        private int position;
+
+        Reader(byte[] data, int position) {
+            this.data = data;
+            this.position = position;
+        }
+
+        /**
+         * Reads one value.
+         * @return The value
+         * @throws IOException if the data is truncated or not valid
+         */
+        JsonElement read() throws IOException {
+            int head = next();
+            int type = head >>> 5;
+            int info = head & 0x1F;
+            switch (type) {
+                case TYPE_UNSIGNED:
+                    return new JsonPrimitive(argument(info));
+                case TYPE_NEGATIVE:
+                    return new JsonPrimitive(-1 - argument(info));
+                case TYPE_TEXT:
+                    return new JsonPrimitive(text(info));
+                case TYPE_ARRAY: {
+                    long count = argument(info);
+                    JsonArray array = new JsonArray();
+                    for (long i = 0; i < count; i++) {
+                        array.add(read());
+                    }
+                    return array;
+                }
+                case TYPE_MAP: {
+                    long count = argument(info);
+                    JsonObject object = new JsonObject();
+                    for (long i = 0; i < count; i++) {
+                        object.add(readText(), read());
+                    }
+                    return object;
+                }
+                case TYPE_SIMPLE:
+                    switch (info) {
+                        case SIMPLE_FALSE:
+                            return new JsonPrimitive(false);
+                        case SIMPLE_TRUE:
+                            return new JsonPrimitive(true);
+                        case SIMPLE_NULL:
+                            return JsonNull.INSTANCE;
+                        case SIMPLE_DOUBLE:
+                            return new JsonPrimitive(Double.longBitsToDouble(bigEndian(8)));
+                        default:
+                            break;
+                    }
+                    break;
+                default:
+                    break;
+            }
+            throw new IOException("Unsupported item 0x" + Integer.toHexString(head) + " at byte " + (position - 1));
+        }
+
+        /**
+         * Reads a string item.
+         * @return The string
+         * @throws IOException if the next item is not a string
+         */
+        String readText() throws IOException {
+            int head = next();
+            if (head >>> 5 != TYPE_TEXT) {
+                throw new IOException("Expected a string at byte " + (position - 1));
+            }
+            return text(head & 0x1F);
+        }
+
+        /**
+         * Reads the header of an item of a given type.
+         * @param type The expected major type
+         * @return The item's argument (e.g., entry count of a map)
+         * @throws IOException if the next item has another type
+         */
+        long readHeader(int type) throws IOException {
+            int head = next();
+            if (head >>> 5 != type) {
+                throw new IOException("Expected major type " + type + " at byte " + (position - 1));
+            }
+            return argument(head & 0x1F);
+        }
+
+        private String text(int info) throws IOException {
+            long length = argument(info);
+            if (length > data.length - position) {
+                throw new IOException("Truncated string at byte " + position);
+            }
+            String text = new String(data, position, (int) length, StandardCharsets.UTF_8);
+            position += (int) length;
+            return text;
+        }
+
+        private long argument(int info) throws IOException {
+            if (info < 24) {
+                return info;
+            }
+            return switch (info) {
+                case 24 -> bigEndian(1);
+                case 25 -> bigEndian(2);
+                case 26 -> bigEndian(4);
+                case 27 -> bigEndian(8);
+                default -> throw new IOException("Unsupported length encoding at byte " + (position - 1));
+            };
+        }
+
+        private long bigEndian(int bytes) throws IOException {
+            if (bytes > data.length - position) {
+                throw new IOException("Truncated data at byte " + position);
+            }
+            long value = 0;
+            for (int i = 0; i < bytes; i++) {
+                value = (value << 8) | (data[position++] & 0xFF);
+            }
+            return value;
+        }
+
+        private int next() throws IOException {
+            if (position >= data.length) {
+                throw new IOException("Truncated data at byte " + position);
+            }
+            return data[position++] & 0xFF;
+        }
+    }
+}
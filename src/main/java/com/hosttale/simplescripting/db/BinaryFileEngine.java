@@ -0,0 +1,138 @@
+package com.hosttale.simplescripting.db;
+
+import com.google.gson.JsonElement;
+import com.hosttale.simplescripting.util.Logger;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Binary engine: like the JSON engine the collection is one file rewritten
+ * whole on flush, but encoded with {@link BinaryCodec} instead of pretty JSON.
+ * Files are smaller and load without text parsing.
+ * The file is a 4-byte magic ("SSB1") followed by one CBOR map of all entries.
+ * A plain JSON file with the same name is imported the first time it is opened.
+ */
+public class BinaryFileEngine implements StorageEngine {
+    public static final String NAME = "binary";
+    public static final String EXTENSION = ".bin";
+
+    private static final byte[] MAGIC = "SSB1".getBytes(StandardCharsets.US_ASCII);
+    private static final String TEMP_SUFFIX = ".tmp";
+    private static final String IMPORTED_SUFFIX = ".imported";
+
+    private final Path filePath;
+    private final Path jsonPath;
+    private final Logger logger;
+
+    public BinaryFileEngine(Path filePath, Path jsonPath, Logger logger) {
+        this.filePath = filePath;
+        this.jsonPath = jsonPath;
+        this.logger = logger;
+    }
+
+    @Override
+    public String getName() {
+        return NAME;
+    }
+
+    @Override
+    public boolean exists() {
+        return Files.exists(filePath) || Files.exists(jsonPath);
+    }
+
+    @Override
+    public Map<String, JsonElement> load() throws IOException {
+        if (!Files.exists(filePath) && Files.exists(jsonPath)) {
+            Map<String, JsonElement> entries = JsonFileEngine.read(jsonPath);
+            // Written before the JSON file is renamed, so a crash leaves the JSON authoritative
+            StagedWrite.writeSynced(filePath, encode(entries));
+            Files.move(jsonPath, jsonPath.resolveSibling(jsonPath.getFileName() + IMPORTED_SUFFIX), StandardCopyOption.REPLACE_EXISTING);
+            logger.info("Imported " + entries.size() + " keys from " + jsonPath.getFileName() + " into " + filePath.getFileName());
+            return entries;
+        }
+        return read(filePath);
+    }
+
+    @Override
+    public PendingWrite prepare(Map<String, JsonElement> entries, Set<String> dirtyKeys, boolean sync) {
+        byte[] data = encode(entries);
+        return new PendingWrite() {
+            @Override
+            public void commit() throws IOException {
+                Path tempPath = filePath.resolveSibling(filePath.getFileName() + TEMP_SUFFIX);
+                if (sync) {
+                    StagedWrite.writeSynced(tempPath, data);
+                } else {
+                    Files.write(tempPath, data, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING);
+                }
+                Files.move(tempPath, filePath, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            }
+
+            @Override
+            public StagedWrite stage() throws IOException {
+                Path stagedPath = filePath.resolveSibling(filePath.getFileName() + StagedWrite.STAGED_SUFFIX);
+                StagedWrite.writeSynced(stagedPath, data);
+                return new StagedWrite(stagedPath, filePath, null);
+            }
+        };
+    }
+
+    @Override
+    public boolean delete() throws IOException {
+        return Files.deleteIfExists(filePath);
+    }
+
+    /**
+     * Reads a binary collection file.
+     * @param path The file
+     * @return The entries in file order, or an empty map if the file does not exist
+     * @throws IOException if the file cannot be read or is not a binary collection
+     */
+    static Map<String, JsonElement> read(Path path) throws IOException {
+        Map<String, JsonElement> entries = new LinkedHashMap<>();
+        if (!Files.exists(path)) {
+            return entries;
+        }
+        byte[] data = Files.readAllBytes(path);
+        if (data.length < MAGIC.length || !Arrays.equals(data, 0, MAGIC.length, MAGIC, 0, MAGIC.length)) {
+            throw new IOException(path.getFileName() + " is not a binary DB file");
+        }
+        try {
+            BinaryCodec.Reader reader = new BinaryCodec.Reader(data, MAGIC.length);
+            long count = reader.readHeader(BinaryCodec.TYPE_MAP);
+            for (long i = 0; i < count; i++) {
+                String key = reader.readText();
+                entries.put(key, reader.read());
+            }
+        } catch (IOException e) {
+            throw new IOException("Invalid data in " + path.getFileName() + ": " + e.getMessage(), e);
+        }
+        return entries;
+    }
+
+    /**
+     * Encodes entries as a binary collection file.
+     * @param entries The entries
+     * @return The file content
+     */
+    static byte[] encode(Map<String, JsonElement> entries) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        out.write(MAGIC, 0, MAGIC.length);
+        BinaryCodec.writeHeader(out, BinaryCodec.TYPE_MAP, entries.size());
+        for (Map.Entry<String, JsonElement> entry : entries.entrySet()) {
+            BinaryCodec.writeText(out, entry.getKey());
+            BinaryCodec.write(out, entry.getValue());
+        }
+        return out.toByteArray();
+    }
+}
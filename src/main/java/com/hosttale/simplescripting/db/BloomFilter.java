@@ -0,0 +1,105 @@
+package com.hosttale.simplescripting.db;
+
+/**
+ * Bloom filter over the keys of a collection, so most lookups of missing keys
+ * are answered without reading the collection. It never misses a key that was
+ * added, and wrongly reports about 1% of other keys as present while it holds
+ * no more than its capacity. Keys cannot be taken out, so removed keys keep
+ * their bits until the filter is rebuilt; {@link #isSaturated} tells when.
+ */
+final class BloomFilter {
+    private static final int BITS_PER_KEY = 10;
+    private static final int HASH_COUNT = 7;
+    private static final int MIN_CAPACITY = 1024;
+    // Bits are picked with int arithmetic, so 2^31 of them at most (256 MiB)
+    private static final int MAX_WORDS = 1 << 25;
+
+    private final long[] bits;
+    private final long bitCount;
+    private final long capacity;
+    private long added;
+
+    /**
+     * @param expectedKeys Keys about to be added; the capacity is twice that, so the filter has room to grow
+     */
+    BloomFilter(long expectedKeys) {
+        this.capacity = Math.max(MIN_CAPACITY, expectedKeys * 2);
+        this.bits = new long[(int) Math.min(MAX_WORDS, (capacity * BITS_PER_KEY + 63) / 64)];
+        this.bitCount = (long) bits.length * 64;
+    }
+
+    /**
+     * Adds a key.
+     * @param key The key's UTF-8 bytes
+     */
+    void add(byte[] key) {
+        long hash = hash(key);
+        int h1 = (int) hash;
+        int h2 = (int) (hash >>> 32);
+        for (int i = 1; i <= HASH_COUNT; i++) {
+            long bit = bit(h1, h2, i);
+            bits[(int) (bit >>> 6)] |= 1L << bit;
+        }
+        added++;
+    }
+
+    /**
+     * Checks if a key may have been added.
+     * @param key The key's UTF-8 bytes
+     * @return false if it certainly was not
+     */
+    boolean mightContain(byte[] key) {
+        long hash = hash(key);
+        int h1 = (int) hash;
+        int h2 = (int) (hash >>> 32);
+        for (int i = 1; i <= HASH_COUNT; i++) {
+            long bit = bit(h1, h2, i);
+            if ((bits[(int) (bit >>> 6)] & (1L << bit)) == 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Checks if the filter should be rebuilt: more keys were added than it
+     * was sized for, so it reports too many missing keys as present, or more
+     * of its keys were removed than are left, and lookups of those removed
+     * keys still get through.
+     * @param liveKeys The number of keys the collection holds now
+     * @return true if a rebuilt filter would answer misses noticeably better
+     */
+    boolean isSaturated(long liveKeys) {
+        return added > capacity || added - liveKeys > Math.max(liveKeys, capacity / 4);
+    }
+
+    /**
+     * Picks the i-th bit from two hashes (Kirsch and Mitzenmacher), which is
+     * as good as i independent hashes.
+     */
+    private long bit(int h1, int h2, int i) {
+        int combined = h1 + i * h2;
+        if (combined < 0) {
+            combined = ~combined;
+        }
+        return combined % bitCount;
+    }
+
+    /**
+     * FNV-1a over the bytes, then the MurmurHash3 finalizer so every output
+     * bit depends on every input byte.
+     */
+    private static long hash(byte[] key) {
+        long hash = 0xcbf29ce484222325L;
+        for (byte b : key) {
+            hash ^= b & 0xff;
+            hash *= 0x100000001b3L;
+        }
+        hash ^= hash >>> 33;
+        hash *= 0xff51afd7ed558ccdL;
+        hash ^= hash >>> 33;
+        hash *= 0xc4ceb9fe1a85ec53L;
+        hash ^= hash >>> 33;
+        return hash;
+    }
+}
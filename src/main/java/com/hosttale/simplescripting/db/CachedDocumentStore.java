@@ -0,0 +1,514 @@
+package com.hosttale.simplescripting.db;
+
+import com.google.gson.Gson;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonPrimitive;
+
+import javax.annotation.Nonnull;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableSet;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.UnaryOperator;
+
+/**
+ * Collection held fully in memory.
+ * Reads are served from the cache and run in parallel; writes update the cache
+ * and mark the key dirty.
+ * Dirty documents are written back by the {@link Database} flusher through
+ * the document's {@link StorageEngine}.
+ * Keys used as counters get an atomic cell that is incremented under the read
+ * lock, so counters do not serialize with each other or with reads; the cell
+ * is copied into the entries when the collection is flushed.
+ * Declared indexes are built from the entries on the first query and then
+ * updated with every entry that changes.
+ */
+public class CachedDocumentStore extends DocumentStore {
+    private final Gson gson;
+    private final StorageEngine engine;
+    private final Map<String, JsonElement> entries;
+    private final Set<String> dirtyKeys;
+    // Current value of counter keys; their entries are updated on flush
+    private final Map<String, AtomicLong> counters;
+    // Counters incremented since the last flush; written under the read lock
+    private final Set<String> dirtyCounters;
+    // Keys in order, built on the first scan and kept up to date after that
+    private NavigableSet<String> sortedKeys;
+    // Declared indexes by field
+    private final Map<String, SecondaryIndex> indexes;
+    // Guards entries, dirtyKeys, sortedKeys, indexes and the flags; many readers or one writer
+    private final ReentrantReadWriteLock lock;
+    // Serializes disk writes so a slow flush never races a newer one, a drop or a transaction
+    private final ReentrantLock flushLock;
+    private boolean exists;
+    private boolean dropped;
+
+    CachedDocumentStore(String name, StorageEngine engine, Gson gson) {
+        super(name);
+        this.engine = engine;
+        this.gson = gson;
+        this.entries = new LinkedHashMap<>();
+        this.dirtyKeys = new HashSet<>();
+        this.counters = new ConcurrentHashMap<>();
+        this.dirtyCounters = ConcurrentHashMap.newKeySet();
+        this.indexes = new LinkedHashMap<>();
+        this.lock = new ReentrantReadWriteLock();
+        this.flushLock = new ReentrantLock();
+        this.exists = false;
+        this.dropped = false;
+    }
+
+    @Override
+    void load() throws IOException {
+        lock.writeLock().lock();
+        try {
+            exists = engine.exists();
+            entries.putAll(engine.load());
+        } finally {
+            lock.writeLock().unlock();
+        }
+        loaded();
+    }
+
+    @Override
+    public String getEngineName() {
+        return engine.getName();
+    }
+
+    @Override
+    JsonElement getStored(@Nonnull String key) {
+        lock.readLock().lock();
+        try {
+            return storedLocked(key);
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    @Override
+    public void put(@Nonnull String key, @Nonnull JsonElement value) {
+        lock.writeLock().lock();
+        try {
+            putLocked(key, value);
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    @Override
+    public boolean remove(@Nonnull String key) {
+        lock.writeLock().lock();
+        try {
+            return removeLocked(key);
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    @Override
+    JsonElement updateStored(@Nonnull String key, @Nonnull UnaryOperator<JsonElement> function) {
+        lock.writeLock().lock();
+        try {
+            JsonElement stored = storedLocked(key);
+            JsonElement value = function.apply(stored);
+            if (value == stored) {
+                return value;
+            }
+            if (value == null) {
+                removeLocked(key);
+            } else {
+                putLocked(key, value);
+            }
+            return value;
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    @Override
+    public long increment(@Nonnull String key, long delta) {
+        lock.readLock().lock();
+        try {
+            AtomicLong counter = counters.get(key);
+            if (counter != null) {
+                long value = counter.updateAndGet(current -> Math.addExact(current, delta));
+                dirtyCounters.add(key);
+                written(key);
+                return value;
+            }
+        } finally {
+            lock.readLock().unlock();
+        }
+
+        // First increment of this key: turn the entry into a counter, then retry
+        lock.writeLock().lock();
+        try {
+            if (!counters.containsKey(key)) {
+                long start = counterValue(Expiry.visible(entries.get(key), System.currentTimeMillis()));
+                putLocked(key, new JsonPrimitive(start));
+                counters.put(key, new AtomicLong(start));
+            }
+        } finally {
+            lock.writeLock().unlock();
+        }
+        return increment(key, delta);
+    }
+
+    @Override
+    int removeExpired(@Nonnull Collection<String> keys, long now) {
+        // One write lock for the whole batch
+        lock.writeLock().lock();
+        try {
+            int removed = 0;
+            for (String key : keys) {
+                if (Expiry.isExpired(entries.get(key), now)) {
+                    removeLocked(key);
+                    removed++;
+                }
+            }
+            return removed;
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    @Override
+    public List<String> keys() {
+        lock.readLock().lock();
+        try {
+            return new ArrayList<>(entries.keySet());
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    @Override
+    List<Map.Entry<String, JsonElement>> scanStored(@Nonnull String prefix, String after, int limit) {
+        lock.readLock().lock();
+        try {
+            if (sortedKeys != null) {
+                return scanLocked(prefix, after, limit);
+            }
+        } finally {
+            lock.readLock().unlock();
+        }
+        lock.writeLock().lock();
+        try {
+            if (sortedKeys == null) {
+                sortedKeys = new TreeSet<>(entries.keySet());
+            }
+            return scanLocked(prefix, after, limit);
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    @Override
+    void addIndex(@Nonnull String field) {
+        lock.writeLock().lock();
+        try {
+            indexes.putIfAbsent(field, new SecondaryIndex(field));
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    @Override
+    List<String> queryKeys(@Nonnull String field, @Nonnull JsonElement value) {
+        lock.readLock().lock();
+        try {
+            SecondaryIndex index = indexes.get(field);
+            if (index != null && index.isBuilt()) {
+                return queryLocked(index, value);
+            }
+        } finally {
+            lock.readLock().unlock();
+        }
+        lock.writeLock().lock();
+        try {
+            SecondaryIndex index = indexes.get(field);
+            if (index == null) {
+                throw new IllegalArgumentException("No index on field \"" + field + "\" of collection " + getName());
+            }
+            if (!index.isBuilt()) {
+                index.setBuilt(true);
+                for (Map.Entry<String, JsonElement> entry : entries.entrySet()) {
+                    index.add(entry.getKey(), entry.getValue());
+                }
+            }
+            return queryLocked(index, value);
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    @Override
+    public int size() {
+        lock.readLock().lock();
+        try {
+            return entries.size();
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    @Override
+    public boolean exists() {
+        lock.readLock().lock();
+        try {
+            return exists;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    @Override
+    public boolean isDirty() {
+        lock.readLock().lock();
+        try {
+            return !dirtyKeys.isEmpty() || !dirtyCounters.isEmpty();
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    @Override
+    public String toJson() {
+        lock.readLock().lock();
+        try {
+            if (counters.isEmpty()) {
+                return JsonFileEngine.serialize(gson, entries);
+            }
+            Map<String, JsonElement> current = new LinkedHashMap<>(entries);
+            for (Map.Entry<String, AtomicLong> counter : counters.entrySet()) {
+                current.put(counter.getKey(), new JsonPrimitive(counter.getValue().get()));
+            }
+            return JsonFileEngine.serialize(gson, current);
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    @Override
+    public void flush() throws IOException {
+        flushLock.lock();
+        try {
+            PendingFlush pending = prepareFlush();
+            if (pending == null) {
+                return;
+            }
+            try {
+                pending.write.commit();
+            } catch (IOException e) {
+                pending.restore();
+                throw e;
+            }
+        } finally {
+            flushLock.unlock();
+        }
+    }
+
+    @Override
+    ReentrantLock commitLock() {
+        return flushLock;
+    }
+
+    @Override
+    List<StagedWrite> stage() throws IOException {
+        PendingFlush pending = prepareFlush();
+        if (pending == null) {
+            return List.of();
+        }
+        StagedWrite staged;
+        try {
+            staged = pending.write.stage();
+        } catch (IOException | RuntimeException e) {
+            pending.restore();
+            throw e;
+        }
+        staged.addAbortAction(pending::restore);
+        return List.of(staged);
+    }
+
+    @Override
+    void maintain() throws IOException {
+        flushLock.lock();
+        try {
+            if (!dropped) {
+                engine.maintain();
+            }
+        } finally {
+            flushLock.unlock();
+        }
+    }
+
+    @Override
+    void close() {
+        flushLock.lock();
+        try {
+            engine.close();
+        } finally {
+            flushLock.unlock();
+        }
+    }
+
+    @Override
+    boolean drop() throws IOException {
+        flushLock.lock();
+        try {
+            boolean existed;
+            lock.writeLock().lock();
+            try {
+                existed = exists;
+                dropped = true;
+                exists = false;
+                entries.clear();
+                dirtyKeys.clear();
+                counters.clear();
+                dirtyCounters.clear();
+                sortedKeys = null;
+                for (SecondaryIndex index : indexes.values()) {
+                    index.setBuilt(false);
+                }
+            } finally {
+                lock.writeLock().unlock();
+            }
+            boolean deleted = engine.delete();
+            engine.close();
+            return deleted || existed;
+        } finally {
+            flushLock.unlock();
+        }
+    }
+
+    private List<Map.Entry<String, JsonElement>> scanLocked(String prefix, String after, int limit) {
+        List<Map.Entry<String, JsonElement>> page = new ArrayList<>();
+        NavigableSet<String> range = after != null && after.compareTo(prefix) >= 0
+                ? sortedKeys.tailSet(after, false)
+                : sortedKeys.tailSet(prefix, true);
+        for (String key : range) {
+            if (page.size() >= limit || !key.startsWith(prefix)) {
+                break;
+            }
+            page.add(Map.entry(key, storedLocked(key)));
+        }
+        return page;
+    }
+
+    private List<String> queryLocked(SecondaryIndex index, JsonElement value) {
+        List<String> keys = index.find(value);
+        if (counters.isEmpty()) {
+            return keys;
+        }
+        // Counter cells change without touching the entries: let the caller check them
+        NavigableSet<String> candidates = new TreeSet<>(keys);
+        candidates.addAll(counters.keySet());
+        return new ArrayList<>(candidates);
+    }
+
+    private JsonElement storedLocked(String key) {
+        AtomicLong counter = counters.get(key);
+        return counter != null ? new JsonPrimitive(counter.get()) : entries.get(key);
+    }
+
+    private void putLocked(String key, JsonElement value) {
+        // A plain write ends the key's life as a counter
+        counters.remove(key);
+        JsonElement previous = entries.put(key, value);
+        if (previous == null && sortedKeys != null) {
+            sortedKeys.add(key);
+        }
+        indexLocked(key, previous, value);
+        dirtyKeys.add(key);
+        exists = true;
+        written(key);
+    }
+
+    private boolean removeLocked(String key) {
+        counters.remove(key);
+        JsonElement previous = entries.remove(key);
+        if (previous == null) {
+            return false;
+        }
+        if (sortedKeys != null) {
+            sortedKeys.remove(key);
+        }
+        indexLocked(key, previous, null);
+        dirtyKeys.add(key);
+        written(key);
+        return true;
+    }
+
+    private void indexLocked(String key, JsonElement previous, JsonElement value) {
+        for (SecondaryIndex index : indexes.values()) {
+            index.update(key, previous, value);
+        }
+    }
+
+    /**
+     * Takes the dirty keys and captures their write. Caller holds the flush lock.
+     */
+    private PendingFlush prepareFlush() {
+        lock.writeLock().lock();
+        try {
+            if (dropped) {
+                return null;
+            }
+            // Increments hold the read lock, so the counters are still here
+            for (Iterator<String> it = dirtyCounters.iterator(); it.hasNext(); ) {
+                String key = it.next();
+                it.remove();
+                AtomicLong counter = counters.get(key);
+                if (counter != null) {
+                    JsonElement value = new JsonPrimitive(counter.get());
+                    indexLocked(key, entries.put(key, value), value);
+                    dirtyKeys.add(key);
+                }
+            }
+            if (dirtyKeys.isEmpty()) {
+                return null;
+            }
+            Set<String> flushed = new HashSet<>(dirtyKeys);
+            dirtyKeys.clear();
+            return new PendingFlush(flushed, engine.prepare(entries, flushed, getDurability().isSynced()));
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * A captured write and the keys it covers.
+     */
+    private class PendingFlush {
+        final Set<String> keys;
+        final StorageEngine.PendingWrite write;
+
+        PendingFlush(Set<String> keys, StorageEngine.PendingWrite write) {
+            this.keys = keys;
+            this.write = write;
+        }
+
+        /**
+         * Marks the keys dirty again after a failed write.
+         */
+        void restore() {
+            lock.writeLock().lock();
+            try {
+                dirtyKeys.addAll(keys);
+            } finally {
+                lock.writeLock().unlock();
+            }
+        }
+    }
+}
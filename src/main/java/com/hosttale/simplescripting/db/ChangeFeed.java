@@ -0,0 +1,238 @@
+package com.hosttale.simplescripting.db;
+
+import com.google.gson.JsonElement;
+import com.hosttale.simplescripting.util.Logger;
+
+import javax.annotation.Nonnull;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Tells subscribers which keys of a collection changed.
+ * The write path only queues the changed key, and only for collections that
+ * someone watches. Once per tick the queue is drained: changes are coalesced
+ * per key, the current values are read once, and each subscriber gets the
+ * keys matching its prefix in one call. A key written several times within a
+ * tick is delivered once, with its latest value.
+ */
+public class ChangeFeed {
+    static final long TICK_MS = 50;
+
+    private final Database database;
+    private final Logger logger;
+    private final ScheduledExecutorService executor;
+    // Subscriptions per collection; a collection without any is not queued at all
+    private final Map<String, List<Subscription>> subscriptions;
+    private final Map<Long, Subscription> subscriptionsById;
+    private final ConcurrentLinkedQueue<Change> queue;
+    private final AtomicLong nextId;
+
+    ChangeFeed(Database database, Logger logger) {
+        this.database = database;
+        this.logger = logger;
+        this.executor = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "SimpleScripting-DB-Watch");
+            t.setDaemon(true);
+            return t;
+        });
+        this.subscriptions = new ConcurrentHashMap<>();
+        this.subscriptionsById = new ConcurrentHashMap<>();
+        this.queue = new ConcurrentLinkedQueue<>();
+        this.nextId = new AtomicLong(1);
+        executor.scheduleWithFixedDelay(this::tick, TICK_MS, TICK_MS, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Subscribes to changes of the keys of a collection that start with a prefix.
+     * The listener is called on the feed's thread with the subscription ID,
+     * which it may get before this method returns, and the changed keys with
+     * their current values (null if removed or expired), in the order they
+     * were first changed; it should hand slow work off to another thread.
+     * @param fileName The collection name
+     * @param keyPrefix The key prefix; empty for all keys
+     * @param listener Called once per tick with the changes
+     * @return The subscription ID, for {@link #unsubscribe}
+     */
+    public long subscribe(@Nonnull String fileName, @Nonnull String keyPrefix, @Nonnull Listener listener) {
+        Subscription subscription = new Subscription(nextId.getAndIncrement(), fileName, keyPrefix, listener);
+        subscriptionsById.put(subscription.id, subscription);
+        // Added inside compute, so it cannot race an unsubscribe removing the emptied list
+        subscriptions.compute(fileName, (name, list) -> {
+            List<Subscription> updated = list != null ? list : new CopyOnWriteArrayList<>();
+            updated.add(subscription);
+            return updated;
+        });
+        return subscription.id;
+    }
+
+    /**
+     * Removes a subscription. Changes already being delivered may still arrive.
+     * @param id The subscription ID
+     * @return true if it existed
+     */
+    public boolean unsubscribe(long id) {
+        Subscription subscription = subscriptionsById.remove(id);
+        if (subscription == null) {
+            return false;
+        }
+        subscriptions.computeIfPresent(subscription.fileName, (name, list) -> {
+            list.remove(subscription);
+            return list.isEmpty() ? null : list;
+        });
+        return true;
+    }
+
+    /**
+     * Checks if a subscription is still active.
+     * @param id The subscription ID
+     * @return true if it was not removed
+     */
+    public boolean isSubscribed(long id) {
+        return subscriptionsById.containsKey(id);
+    }
+
+    /**
+     * Removes every subscription.
+     */
+    public void clear() {
+        subscriptionsById.clear();
+        subscriptions.clear();
+        queue.clear();
+    }
+
+    /**
+     * Gets the number of subscriptions.
+     * @return The count
+     */
+    public int getSubscriptionCount() {
+        return subscriptionsById.size();
+    }
+
+    /**
+     * Checks if anyone watches a collection.
+     * @param fileName The collection name
+     * @return true if it has subscriptions
+     */
+    boolean isWatched(String fileName) {
+        return subscriptions.containsKey(fileName);
+    }
+
+    /**
+     * Queues a written key for the next tick. Called on the write path.
+     * @param fileName The collection name
+     * @param key The key
+     */
+    void offer(String fileName, String key) {
+        if (subscriptions.containsKey(fileName)) {
+            queue.offer(new Change(fileName, key));
+        }
+    }
+
+    /**
+     * Stops delivering changes.
+     */
+    void close() {
+        executor.shutdownNow();
+        clear();
+    }
+
+    private void tick() {
+        if (queue.isEmpty()) {
+            return;
+        }
+        // Coalesced per collection, in first-change order
+        Map<String, Set<String>> changed = new LinkedHashMap<>();
+        Change change;
+        while ((change = queue.poll()) != null) {
+            changed.computeIfAbsent(change.fileName, name -> new LinkedHashSet<>()).add(change.key);
+        }
+        for (Map.Entry<String, Set<String>> entry : changed.entrySet()) {
+            List<Subscription> watching = subscriptions.get(entry.getKey());
+            if (watching != null) {
+                deliver(entry.getKey(), entry.getValue(), watching);
+            }
+        }
+    }
+
+    private void deliver(String fileName, Set<String> keys, List<Subscription> watching) {
+        // Each key is read once, however many subscribers want it
+        Map<String, JsonElement> values = new HashMap<>();
+        for (Subscription subscription : watching) {
+            Map<String, JsonElement> changes = new LinkedHashMap<>();
+            for (String key : keys) {
+                if (key.startsWith(subscription.keyPrefix)) {
+                    if (!values.containsKey(key)) {
+                        values.put(key, read(fileName, key));
+                    }
+                    changes.put(key, values.get(key));
+                }
+            }
+            if (changes.isEmpty() || !subscriptionsById.containsKey(subscription.id)) {
+                continue;
+            }
+            try {
+                subscription.listener.onChanges(subscription.id, changes);
+            } catch (RuntimeException e) {
+                logger.warning("DB watch on " + fileName + " failed: " + e.getMessage());
+            }
+        }
+    }
+
+    private JsonElement read(String fileName, String key) {
+        try {
+            return database.get(fileName, key);
+        } catch (IOException | IllegalStateException e) {
+            // Unreadable or closing: reported as absent
+            return null;
+        }
+    }
+
+    private static class Change {
+        final String fileName;
+        final String key;
+
+        Change(String fileName, String key) {
+            this.fileName = fileName;
+            this.key = key;
+        }
+    }
+
+    /**
+     * Receives the changes of a subscription.
+     */
+    @FunctionalInterface
+    public interface Listener {
+        /**
+         * Called once per tick with the changes.
+         * @param subscriptionId The ID {@link #subscribe} returns
+         * @param changes The changed keys and their current values
+         */
+        void onChanges(long subscriptionId, Map<String, JsonElement> changes);
+    }
+
+    private static class Subscription {
+        final long id;
+        final String fileName;
+        final String keyPrefix;
+        final Listener listener;
+
+        Subscription(long id, String fileName, String keyPrefix, Listener listener) {
+            this.id = id;
+            this.fileName = fileName;
+            this.keyPrefix = keyPrefix;
+            this.listener = listener;
+        }
+    }
+}
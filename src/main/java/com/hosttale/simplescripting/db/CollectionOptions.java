@@ -0,0 +1,159 @@
+package com.hosttale.simplescripting.db;
+
+import javax.annotation.Nonnull;
+
+/**
+ * Per-collection storage settings, set with {@link Database#configure}.
+ */
+public class CollectionOptions {
+    public static final int DEFAULT_CACHE_SIZE_MB = 32;
+    public static final long DEFAULT_COMMIT_DELAY_MS = 5;
+
+    private String engine;
+    private int cacheSizeMb;
+    private Durability durability;
+    private long commitDelayMs;
+    private int shards;
+    private String shardBy;
+
+    public CollectionOptions() {
+        this.engine = JsonFileEngine.NAME;
+        this.cacheSizeMb = DEFAULT_CACHE_SIZE_MB;
+        this.durability = Durability.LAZY;
+        this.commitDelayMs = DEFAULT_COMMIT_DELAY_MS;
+        this.shards = 1;
+        this.shardBy = ShardedDocumentStore.SHARD_BY_HASH;
+    }
+
+    /**
+     * Gets the storage engine name.
+     * @return "json", "binary", "log", "btree" or a registered engine
+     */
+    public String getEngine() {
+        return engine;
+    }
+
+    /**
+     * Sets the storage engine.
+     * @param engine "json" (one JSON file, rewritten on flush), "binary" (one compact
+     *               binary file, rewritten on flush), "log" (append-only log)
+     *               "btree" (on-disk B+tree, not held in memory), or the name
+     *               of an engine added with {@link Database#registerEngine}
+     * @return This options object
+     */
+    public CollectionOptions setEngine(@Nonnull String engine) {
+        this.engine = engine;
+        return this;
+    }
+
+    /**
+     * Gets how much of a "btree" file may be memory-mapped at once.
+     * @return Cache size in megabytes
+     */
+    public int getCacheSizeMb() {
+        return cacheSizeMb;
+    }
+
+    /**
+     * Sets how much of a "btree" file may be memory-mapped at once.
+     * @param cacheSizeMb Cache size in megabytes
+     * @return This options object
+     */
+    public CollectionOptions setCacheSizeMb(int cacheSizeMb) {
+        if (cacheSizeMb <= 0) {
+            throw new IllegalArgumentException("Cache size must be positive: " + cacheSizeMb);
+        }
+        this.cacheSizeMb = cacheSizeMb;
+        return this;
+    }
+
+    /**
+     * Gets when writes reach the disk.
+     * @return The durability level
+     */
+    public Durability getDurability() {
+        return durability;
+    }
+
+    /**
+     * Sets when writes reach the disk. "btree" files are always synced when
+     * they are written; this only decides how soon that happens.
+     * @param durability The durability level
+     * @return This options object
+     */
+    public CollectionOptions setDurability(@Nonnull Durability durability) {
+        this.durability = durability;
+        return this;
+    }
+
+    /**
+     * Gets how long the group-commit writer collects writes before syncing them.
+     * @return Delay in milliseconds
+     */
+    public long getCommitDelayMs() {
+        return commitDelayMs;
+    }
+
+    /**
+     * Sets how long the group-commit writer collects writes before syncing them.
+     * Longer delays batch more writes per sync. Ignored for lazy durability.
+     * @param commitDelayMs Delay in milliseconds
+     * @return This options object
+     */
+    public CollectionOptions setCommitDelayMs(long commitDelayMs) {
+        if (commitDelayMs < 0) {
+            throw new IllegalArgumentException("Commit delay must not be negative: " + commitDelayMs);
+        }
+        this.commitDelayMs = commitDelayMs;
+        return this;
+    }
+
+    /**
+     * Gets how many files the collection is split into.
+     * @return Shard count; 1 if not sharded
+     */
+    public int getShards() {
+        return shards;
+    }
+
+    /**
+     * Splits the collection into several files, each loaded and flushed on its own.
+     * @param shards Shard count (1 to 4096); 1 disables sharding
+     * @return This options object
+     */
+    public CollectionOptions setShards(int shards) {
+        if (shards < 1 || shards > ShardedDocumentStore.MAX_SHARDS) {
+            throw new IllegalArgumentException("Shard count must be between 1 and " + ShardedDocumentStore.MAX_SHARDS + ": " + shards);
+        }
+        this.shards = shards;
+        return this;
+    }
+
+    /**
+     * Gets how keys are assigned to shards.
+     * @return "hash" or "uuid"
+     */
+    public String getShardBy() {
+        return shardBy;
+    }
+
+    /**
+     * Sets how keys are assigned to shards.
+     * @param shardBy "hash" (by key hash) or "uuid" (by the leading hex digits
+     *                of UUID keys; needs 16, 256 or 4096 shards)
+     * @return This options object
+     */
+    public CollectionOptions setShardBy(@Nonnull String shardBy) {
+        this.shardBy = shardBy;
+        return this;
+    }
+
+    /**
+     * Checks if collections written with these options and another set share a file layout.
+     * @param other The other options
+     * @return true if no migration is needed between them
+     */
+    boolean sameLayout(@Nonnull CollectionOptions other) {
+        return engine.equals(other.engine) && shards == other.shards && (shards == 1 || shardBy.equals(other.shardBy));
+    }
+}
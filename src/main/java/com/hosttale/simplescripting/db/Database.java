@@ -0,0 +1,869 @@
+package com.hosttale.simplescripting.db;
+
+import com.google.gson.Gson;
+import com.google.gson.GsonBuilder;
+import com.google.gson.JsonElement;
+import com.hosttale.simplescripting.util.Logger;
+
+import javax.annotation.Nonnull;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.time.LocalDateTime;
+import java.time.format.DateTimeFormatter;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.stream.Stream;
+
+/**
+ * Storage behind the DB API.
+ * Each DB file is opened once as a {@link DocumentStore}; by default it is held
+ * in memory and a background flusher writes dirty documents back to disk on an
+ * interval and when the database is closed. How each collection is stored
+ * ("json", "binary", "log" or "btree") is chosen per collection with {@link #configure},
+ * as is its {@link Durability}: collections that must survive a crash are
+ * synced by a group-commit writer instead of waiting for the flusher.
+ */
+public final class Database {
+    public static final long DEFAULT_FLUSH_INTERVAL_MS = 2000;
+    static final String MANIFEST_FILE = "transaction.manifest";
+    private static final int FILE_LOCK_STRIPES = 64;
+    private static final int IO_THREADS = 4;
+    private static final Set<String> BUILT_IN_ENGINES = Set.of(JsonFileEngine.NAME, BinaryFileEngine.NAME,
+            AppendLogEngine.NAME, BTreeDocumentStore.NAME);
+    private static final DateTimeFormatter BACKUP_NAME_FORMAT = DateTimeFormatter.ofPattern("yyyyMMdd-HHmmss");
+
+    private final Path dbPath;
+    private final Logger logger;
+    private final Gson gson;
+    private final Map<String, DocumentStore> stores;
+    // Serializes loading, reconfiguring and dropping of each file
+    private final StripedLock fileLocks;
+    private final Map<String, CollectionOptions> options;
+    // Declared index fields per collection, given to every store created for it
+    private final Map<String, Set<String>> indexes;
+    private final ScheduledExecutorService flusher;
+    private final GroupCommitWriter commitWriter;
+    private final ExecutorService ioExecutor;
+    private final ExpiryReaper reaper;
+    private final PlayerDataCache playerData;
+    private final ChangeFeed changeFeed;
+    // Engines registered next to the built-in ones, by name
+    private final Map<String, StorageEngineFactory> engines;
+    // One transaction at a time, since they share the manifest
+    private final Object transactionLock;
+    private ScheduledFuture<?> flushTask;
+    private long flushIntervalMs;
+    private volatile boolean closed;
+
+    public Database(Path dbPath, Logger logger) {
+        this.dbPath = dbPath;
+        this.logger = logger;
+        this.gson = new GsonBuilder().setPrettyPrinting().create();
+        this.stores = new ConcurrentHashMap<>();
+        this.fileLocks = new StripedLock(FILE_LOCK_STRIPES);
+        this.options = new ConcurrentHashMap<>();
+        this.indexes = new ConcurrentHashMap<>();
+        this.transactionLock = new Object();
+        this.flusher = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "SimpleScripting-DB");
+            t.setDaemon(true);
+            return t;
+        });
+        this.commitWriter = new GroupCommitWriter(dbPath, logger);
+        this.ioExecutor = Executors.newFixedThreadPool(IO_THREADS, r -> {
+            Thread t = new Thread(r, "SimpleScripting-DB-IO");
+            t.setDaemon(true);
+            return t;
+        });
+        this.reaper = new ExpiryReaper(logger);
+        this.playerData = new PlayerDataCache(this, logger);
+        this.changeFeed = new ChangeFeed(this, logger);
+        this.engines = new ConcurrentHashMap<>();
+
+        // Ensure db directory exists
+        try {
+            Files.createDirectories(dbPath);
+        } catch (IOException e) {
+            throw new RuntimeException("Failed to create database directory", e);
+        }
+        recoverTransaction();
+        setFlushIntervalMs(DEFAULT_FLUSH_INTERVAL_MS);
+    }
+
+    /**
+     * Gets the cached document for a file, loading it on first use.
+     * @param fileName The name of the file (without .json extension)
+     * @return The document; empty if the file does not exist yet
+     * @throws IOException if the file exists but cannot be read
+     */
+    public DocumentStore open(@Nonnull String fileName) throws IOException {
+        if (closed) {
+            throw new IllegalStateException("Database is closed");
+        }
+        DocumentStore store = stores.get(fileName);
+        if (store != null) {
+            return store;
+        }
+        // Loads of other files go ahead in parallel; only callers of this file wait
+        ReentrantLock lock = fileLocks.get(fileName);
+        lock.lock();
+        try {
+            store = stores.get(fileName);
+            if (store == null) {
+                store = createStore(fileName, getOptions(fileName));
+                // Not cached if this throws, so the next call retries the load
+                store.load();
+                stores.put(fileName, store);
+            }
+            return store;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Reads a value, from the player data cache if the key is a cached player's.
+     * @param fileName The collection name
+     * @param key The key
+     * @return The value, or null if not found or expired
+     * @throws IOException if the collection exists but cannot be read
+     */
+    public JsonElement get(@Nonnull String fileName, @Nonnull String key) throws IOException {
+        return playerData.get(open(fileName), key);
+    }
+
+    /**
+     * Gets the cache of per-player records.
+     * @return The player data cache
+     */
+    public PlayerDataCache getPlayerData() {
+        return playerData;
+    }
+
+    /**
+     * Sets the storage options of a collection. If the collection is already
+     * open with a different engine, its data is copied to the new engine and
+     * the old files are deleted. Writes made during the copy may be lost, so
+     * configure collections before they are first used.
+     * @param fileName The collection name
+     * @param collectionOptions The options
+     * @throws IllegalArgumentException if the engine is unknown
+     * @throws IOException if migrating existing data fails
+     */
+    public void configure(@Nonnull String fileName, @Nonnull CollectionOptions collectionOptions) throws IOException {
+        // Validate before anything is changed
+        createStore(fileName, collectionOptions);
+        ReentrantLock lock = fileLocks.get(fileName);
+        lock.lock();
+        try {
+            configureLocked(fileName, collectionOptions);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void configureLocked(String fileName, CollectionOptions collectionOptions) throws IOException {
+        CollectionOptions previous = getOptions(fileName);
+        options.put(fileName, collectionOptions);
+
+        DocumentStore store = stores.get(fileName);
+        if (store != null) {
+            store.setDurability(collectionOptions.getDurability());
+        }
+        if (store != null && !previous.sameLayout(collectionOptions)) {
+            if (previous.getShards() > 1 && collectionOptions.getShards() > 1) {
+                // Both layouts use the shard directory: go through an unsharded copy, which the new layout splits on load
+                store = migrate(fileName, store, new CollectionOptions().setEngine(previous.getEngine()));
+            }
+            DocumentStore replacement = migrate(fileName, store, collectionOptions);
+            logger.info("Migrated DB collection " + fileName + " to the " + replacement.getEngineName() + " engine"
+                    + (collectionOptions.getShards() > 1 ? " with " + collectionOptions.getShards() + " shards" : ""));
+        }
+    }
+
+    private DocumentStore migrate(String fileName, DocumentStore store, CollectionOptions collectionOptions) throws IOException {
+        store.flush();
+        DocumentStore replacement = createStore(fileName, collectionOptions);
+        replacement.load();
+        for (String key : store.keys()) {
+            JsonElement value = store.getStored(key);
+            if (value != null) {
+                replacement.put(key, value);
+            }
+        }
+        replacement.flush();
+        stores.put(fileName, replacement);
+        store.drop();
+        return replacement;
+    }
+
+    /**
+     * Adds a storage engine that collections can be configured with, next to
+     * the built-in ones (e.g., {@link JdbcStorageEngine.Factory} as "jdbc").
+     * @param name The engine name used in collection options
+     * @param factory Creates the engine of each collection
+     * @throws IllegalArgumentException if the name is taken by a built-in engine
+     * @throws IllegalStateException if an engine is already registered under the name
+     */
+    public void registerEngine(@Nonnull String name, @Nonnull StorageEngineFactory factory) {
+        if (BUILT_IN_ENGINES.contains(name)) {
+            throw new IllegalArgumentException("Cannot replace the built-in " + name + " engine");
+        }
+        if (engines.putIfAbsent(name, factory) != null) {
+            throw new IllegalStateException("An engine named " + name + " is already registered");
+        }
+    }
+
+    /**
+     * Gets a registered storage engine.
+     * @param name The engine name
+     * @return The factory, or null if none is registered under the name
+     */
+    public StorageEngineFactory getEngine(@Nonnull String name) {
+        return engines.get(name);
+    }
+
+    /**
+     * Gets the storage options of a collection.
+     * @param fileName The collection name
+     * @return The configured options, or the defaults
+     */
+    public CollectionOptions getOptions(@Nonnull String fileName) {
+        CollectionOptions collectionOptions = options.get(fileName);
+        return collectionOptions != null ? collectionOptions : new CollectionOptions();
+    }
+
+    /**
+     * Declares an index on a field of a collection's documents, so
+     * {@link DocumentStore#query} finds them without reading every document.
+     * Indexes are kept in memory and built on the first query; declare them
+     * each time the server starts. They survive migrations to other engines.
+     * @param fileName The collection name
+     * @param field Dot-separated path of the field (e.g., "location.world"),
+     *              or empty to index whole values
+     */
+    public void createIndex(@Nonnull String fileName, @Nonnull String field) {
+        ReentrantLock lock = fileLocks.get(fileName);
+        lock.lock();
+        try {
+            indexes.computeIfAbsent(fileName, name -> ConcurrentHashMap.newKeySet()).add(field);
+            DocumentStore store = stores.get(fileName);
+            if (store != null) {
+                store.addIndex(field);
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Gets the feed of changed keys, for watching collections.
+     * @return The change feed
+     */
+    public ChangeFeed getChangeFeed() {
+        return changeFeed;
+    }
+
+    /**
+     * Deletes a collection and drops its cached document.
+     * @param fileName The name of the file (without extension)
+     * @return true if the collection existed
+     * @throws IOException if the files cannot be deleted
+     */
+    public boolean drop(@Nonnull String fileName) throws IOException {
+        ReentrantLock lock = fileLocks.get(fileName);
+        lock.lock();
+        try {
+            if (changeFeed.isWatched(fileName)) {
+                // Watchers see every key of the collection go
+                for (String key : open(fileName).keys()) {
+                    changeFeed.offer(fileName, key);
+                }
+            }
+            return dropLocked(fileName);
+        } finally {
+            // After the drop, so reads racing it do not cache the old values
+            playerData.invalidateAll(fileName);
+            lock.unlock();
+        }
+    }
+
+    private boolean dropLocked(String fileName) throws IOException {
+        DocumentStore store = stores.remove(fileName);
+        if (store == null && engines.containsKey(getOptions(fileName).getEngine())) {
+            // Not on disk: the engine removes the data wherever it keeps it
+            store = createStore(fileName, getOptions(fileName));
+        }
+        if (store != null) {
+            return store.drop();
+        }
+        // Not open: remove whatever any engine left on disk
+        boolean deleted = Files.deleteIfExists(dbPath.resolve(fileName + JsonFileEngine.EXTENSION));
+        deleted |= Files.deleteIfExists(dbPath.resolve(fileName + BinaryFileEngine.EXTENSION));
+        deleted |= Files.deleteIfExists(dbPath.resolve(fileName + AppendLogEngine.EXTENSION));
+        deleted |= Files.deleteIfExists(dbPath.resolve(fileName + BTreeDocumentStore.EXTENSION));
+        Files.deleteIfExists(dbPath.resolve(fileName + BTreeDocumentStore.EXTENSION + BTreeDocumentStore.WAL_SUFFIX));
+        deleted |= ShardedDocumentStore.deleteFiles(dbPath.resolve(fileName + ShardedDocumentStore.DIRECTORY_SUFFIX));
+        return deleted;
+    }
+
+    /**
+     * Writes a collection as a plain JSON object file, whatever its engine.
+     * @param fileName The collection name
+     * @param target The JSON file to write
+     * @throws IOException if the collection cannot be read or the file cannot be written
+     */
+    public void exportJson(@Nonnull String fileName, @Nonnull Path target) throws IOException {
+        String json = open(fileName).toJson();
+        Files.createDirectories(target.toAbsolutePath().getParent());
+        Path tempPath = target.resolveSibling(target.getFileName() + ".tmp");
+        Files.writeString(tempPath, json, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING);
+        Files.move(tempPath, target, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /**
+     * Writes every key of a JSON object file into a collection, whatever its
+     * engine, as one transaction. Keys not in the file are kept.
+     * @param fileName The collection name
+     * @param source The JSON file to read
+     * @return The number of keys imported
+     * @throws IOException if the file is missing or invalid, or the keys cannot be written
+     */
+    public int importJson(@Nonnull String fileName, @Nonnull Path source) throws IOException {
+        if (!Files.exists(source)) {
+            throw new NoSuchFileException(source.toString());
+        }
+        Map<String, JsonElement> entries = JsonFileEngine.read(source);
+        Transaction transaction = beginTransaction();
+        for (Map.Entry<String, JsonElement> entry : entries.entrySet()) {
+            transaction.put(fileName, entry.getKey(), entry.getValue());
+        }
+        transaction.commit();
+        return entries.size();
+    }
+
+    /**
+     * Writes a consistent copy of every collection to a new directory, as it
+     * stood at one point in time. Open collections are flushed first, then the
+     * files are copied while disk writes, transactions and first opens wait;
+     * writes to memory are never blocked. Files that are unchanged since the
+     * previous snapshot are hard-linked to it instead of copied. Restore a
+     * snapshot by copying it back over the db directory while the server is
+     * stopped; linked files must not be modified in place.
+     * @param target The snapshot directory to create
+     * @param previous A previous snapshot to link unchanged files to, or null
+     * @return The number of files in the snapshot
+     * @throws IOException if the target exists or the snapshot cannot be written
+     */
+    public int snapshot(@Nonnull Path target, Path previous) throws IOException {
+        if (closed) {
+            throw new IllegalStateException("Database is closed");
+        }
+        SnapshotWriter writer = new SnapshotWriter(dbPath, target, previous);
+        try {
+            synchronized (transactionLock) {
+                fileLocks.lockAll();
+                List<DocumentStore> locked = new ArrayList<>();
+                try {
+                    List<String> names = new ArrayList<>(stores.keySet());
+                    names.sort(null);
+                    for (String name : names) {
+                        DocumentStore store = stores.get(name);
+                        store.commitLock().lock();
+                        locked.add(store);
+                        store.flush();
+                    }
+                    writer.copyAll();
+                } finally {
+                    for (int i = locked.size() - 1; i >= 0; i--) {
+                        locked.get(i).commitLock().unlock();
+                    }
+                    fileLocks.unlockAll();
+                }
+            }
+            int files = writer.finish();
+            logger.info("Wrote DB snapshot " + target.getFileName() + ": " + files + " files, "
+                    + writer.getLinkedCount() + " unchanged since the previous one");
+            return files;
+        } catch (IOException | RuntimeException e) {
+            writer.abort();
+            throw e;
+        }
+    }
+
+    /**
+     * Writes a snapshot into a directory of backups, named after the current
+     * time and incremental against the newest backup already there.
+     * @param directory The directory holding the backups
+     * @return The new backup directory
+     * @throws IOException if the backup cannot be written
+     */
+    public Path backup(@Nonnull Path directory) throws IOException {
+        Files.createDirectories(directory);
+        Path previous = latestSnapshot(directory);
+        String name = LocalDateTime.now().format(BACKUP_NAME_FORMAT);
+        Path target = directory.resolve(name);
+        for (int i = 2; Files.exists(target); i++) {
+            target = directory.resolve(name + "-" + i);
+        }
+        snapshot(target, previous);
+        return target;
+    }
+
+    /**
+     * Finds the newest complete snapshot in a directory.
+     * @param directory The directory holding snapshots
+     * @return The snapshot, or null if there is none
+     * @throws IOException if the directory cannot be listed
+     */
+    public static Path latestSnapshot(@Nonnull Path directory) throws IOException {
+        return SnapshotWriter.latest(directory);
+    }
+
+    /**
+     * Rejects values shaped like the stored form of a value with a time to
+     * live, {"$expires": number, "$value": value}, which would read back as
+     * expiring if saved without one.
+     * @param value The value to store
+     * @return The value
+     * @throws IllegalArgumentException if the value has that shape
+     */
+    public static JsonElement requirePlainValue(JsonElement value) {
+        return Expiry.requirePlain(value);
+    }
+
+    /**
+     * Stores a value that expires after a time to live. Until it is saved
+     * again, reads treat it as absent once it has expired, and the expiry
+     * reaper removes it within about a second after that.
+     * @param store The collection
+     * @param key The key
+     * @param value The value
+     * @param ttlMs Time to live in milliseconds
+     * @throws IllegalArgumentException if the time to live is not positive
+     */
+    public void putExpiring(@Nonnull DocumentStore store, @Nonnull String key, @Nonnull JsonElement value, long ttlMs) {
+        if (ttlMs <= 0) {
+            throw new IllegalArgumentException("Time to live must be positive: " + ttlMs);
+        }
+        long expiresAt = System.currentTimeMillis() + ttlMs;
+        store.put(key, Expiry.wrap(value, expiresAt));
+        reaper.schedule(store, key, expiresAt);
+    }
+
+    /**
+     * Waits until the latest write to a collection is on disk, if the
+     * collection's durability is {@link Durability#SYNC}.
+     * @param store The collection
+     * @throws IOException if the group commit failed
+     */
+    public void awaitDurable(@Nonnull DocumentStore store) throws IOException {
+        if (store.getDurability() != Durability.SYNC) {
+            return;
+        }
+        try {
+            store.getPendingCommit().get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while waiting for DB write", e);
+        } catch (ExecutionException e) {
+            throw e.getCause() instanceof IOException ? (IOException) e.getCause() : new IOException(e.getCause());
+        }
+    }
+
+    /**
+     * Starts a transaction on this database.
+     * @return A new, empty transaction
+     */
+    public Transaction beginTransaction() {
+        return new Transaction(this);
+    }
+
+    /**
+     * Applies a transaction's writes and makes them durable together.
+     * Every affected collection is staged to a synced file while its commit
+     * lock is held; a manifest listing the staged files is then written, and
+     * only after that are the staged files moved into place. A crash before
+     * the manifest exists loses the whole transaction, a crash after it is
+     * completed on the next start. Collections kept outside the DB directory
+     * (jdbc) hold their changes in a database transaction, committed along
+     * with the renames; a crash in between loses only their part.
+     */
+    void commit(Transaction transaction) throws IOException {
+        if (transaction.isEmpty()) {
+            return;
+        }
+        synchronized (transactionLock) {
+            List<DocumentStore> locked = new ArrayList<>();
+            try {
+                // Opened first, since configure holds the file lock while it flushes;
+                // locked in file name order, so concurrent transactions cannot deadlock
+                Map<DocumentStore, Map<String, JsonElement>> changes = new LinkedHashMap<>();
+                for (Map.Entry<String, Map<String, JsonElement>> entry : transaction.getChanges().entrySet()) {
+                    changes.put(open(entry.getKey()), entry.getValue());
+                }
+                for (DocumentStore store : changes.keySet()) {
+                    store.commitLock().lock();
+                    locked.add(store);
+                }
+                commitLocked(changes);
+            } finally {
+                for (int i = locked.size() - 1; i >= 0; i--) {
+                    locked.get(i).commitLock().unlock();
+                }
+            }
+        }
+    }
+
+    private void commitLocked(Map<DocumentStore, Map<String, JsonElement>> changes) throws IOException {
+        Map<DocumentStore, Map<String, JsonElement>> undo = new LinkedHashMap<>();
+        List<StagedWrite> staged = new ArrayList<>();
+        Path manifest = dbPath.resolve(MANIFEST_FILE);
+        try {
+            for (Map.Entry<DocumentStore, Map<String, JsonElement>> entry : changes.entrySet()) {
+                DocumentStore store = entry.getKey();
+                Map<String, JsonElement> previous = new LinkedHashMap<>();
+                undo.put(store, previous);
+                for (Map.Entry<String, JsonElement> change : entry.getValue().entrySet()) {
+                    previous.putIfAbsent(change.getKey(), store.getStored(change.getKey()));
+                    apply(store, change.getKey(), change.getValue());
+                }
+            }
+            for (DocumentStore store : changes.keySet()) {
+                staged.addAll(store.stage());
+            }
+            if (staged.isEmpty()) {
+                return;
+            }
+
+            StringBuilder lines = new StringBuilder();
+            for (StagedWrite write : staged) {
+                // Relative to the DB directory; sharded collections stage inside their own directory
+                if (write.hasFile()) {
+                    lines.append(dbPath.relativize(write.getStagedPath())).append('\t')
+                            .append(dbPath.relativize(write.getTargetPath())).append('\n');
+                }
+            }
+            if (!lines.isEmpty()) {
+                Path manifestTmp = dbPath.resolve(MANIFEST_FILE + ".tmp");
+                StagedWrite.writeSynced(manifestTmp, lines.toString().getBytes(StandardCharsets.UTF_8));
+                Files.move(manifestTmp, manifest, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+                syncDirectory();
+            }
+        } catch (IOException | RuntimeException e) {
+            for (StagedWrite write : staged) {
+                write.abort();
+            }
+            for (Map.Entry<DocumentStore, Map<String, JsonElement>> entry : undo.entrySet()) {
+                for (Map.Entry<String, JsonElement> previous : entry.getValue().entrySet()) {
+                    apply(entry.getKey(), previous.getKey(), previous.getValue());
+                }
+            }
+            throw e;
+        }
+
+        // Committed: from here on a failed file is finished from the manifest on the next start
+        boolean installed = true;
+        for (StagedWrite write : staged) {
+            try {
+                write.install();
+            } catch (IOException e) {
+                if (write.hasFile()) {
+                    installed = false;
+                    logger.severe("Failed to install DB transaction, it will be completed on the next start: " + e.getMessage());
+                } else {
+                    // Not in the manifest: its keys are marked dirty again for the next flush
+                    write.abort();
+                    logger.severe("Failed to install DB transaction, the next flush retries it: " + e.getMessage());
+                }
+            }
+        }
+        if (installed) {
+            try {
+                Files.deleteIfExists(manifest);
+            } catch (IOException e) {
+                logger.severe("Failed to remove DB transaction manifest: " + e.getMessage());
+            }
+        }
+    }
+
+    private static void apply(DocumentStore store, String key, JsonElement value) {
+        if (value == null) {
+            store.remove(key);
+        } else {
+            store.put(key, value);
+        }
+    }
+
+    /**
+     * Completes a transaction that was committed but not fully installed
+     * before a crash, and removes staging files of uncommitted ones.
+     */
+    private void recoverTransaction() {
+        Path manifest = dbPath.resolve(MANIFEST_FILE);
+        try {
+            if (Files.exists(manifest)) {
+                for (String line : Files.readAllLines(manifest, StandardCharsets.UTF_8)) {
+                    String[] parts = line.split("\t");
+                    if (parts.length != 2) {
+                        continue;
+                    }
+                    Path staged = dbPath.resolve(parts[0]);
+                    if (Files.exists(staged)) {
+                        Files.move(staged, dbPath.resolve(parts[1]), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+                    }
+                }
+                Files.delete(manifest);
+                logger.info("Completed an interrupted DB transaction");
+            }
+            Files.deleteIfExists(dbPath.resolve(MANIFEST_FILE + ".tmp"));
+            // Shards keep their files one directory down
+            List<Path> leftovers;
+            try (Stream<Path> files = Files.walk(dbPath, 2)) {
+                leftovers = files.filter(path -> path.getFileName().toString().endsWith(StagedWrite.STAGED_SUFFIX)).toList();
+            }
+            for (Path leftover : leftovers) {
+                Files.delete(leftover);
+            }
+        } catch (IOException e) {
+            logger.severe("Failed to recover DB transaction: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Syncs the directory so renames in it are durable. Not supported on every
+     * platform; where it is not, the rename is as durable as the OS makes it.
+     */
+    void syncDirectory() {
+        syncDirectory(dbPath);
+    }
+
+    /**
+     * Syncs a directory, see {@link #syncDirectory()}.
+     * @param directory The directory
+     */
+    static void syncDirectory(Path directory) {
+        try (FileChannel dir = FileChannel.open(directory, StandardOpenOption.READ)) {
+            dir.force(true);
+        } catch (IOException e) {
+            // Ignored, see above
+        }
+    }
+
+    /**
+     * Writes every dirty document to disk.
+     * @return true if all documents were written
+     */
+    public boolean flushAll() {
+        boolean ok = true;
+        for (DocumentStore store : stores.values()) {
+            ok &= flush(store);
+        }
+        return ok;
+    }
+
+    /**
+     * Writes one document to disk if it is cached and dirty.
+     * @param fileName The name of the file (without .json extension)
+     * @return true if the document is on disk afterwards
+     */
+    public boolean flush(@Nonnull String fileName) {
+        DocumentStore store = stores.get(fileName);
+        return store == null || flush(store);
+    }
+
+    /**
+     * Sets how often dirty documents are written back.
+     * @param intervalMs Interval in milliseconds
+     */
+    public synchronized void setFlushIntervalMs(long intervalMs) {
+        if (intervalMs <= 0) {
+            throw new IllegalArgumentException("Flush interval must be positive: " + intervalMs);
+        }
+        if (closed) {
+            return;
+        }
+        if (flushTask != null) {
+            flushTask.cancel(false);
+        }
+        flushIntervalMs = intervalMs;
+        flushTask = flusher.scheduleWithFixedDelay(() -> {
+            flushAll();
+            maintainAll();
+        }, intervalMs, intervalMs, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Gets how often dirty documents are written back.
+     * @return Interval in milliseconds
+     */
+    public synchronized long getFlushIntervalMs() {
+        return flushIntervalMs;
+    }
+
+    /**
+     * Gets the executor for DB calls made off the caller's thread, so loading
+     * a large file or waiting for a sync never blocks a world tick.
+     * @return The I/O executor; rejects tasks once the database is closed
+     */
+    public Executor getIoExecutor() {
+        return ioExecutor;
+    }
+
+    /**
+     * Gets the logger the database reports to.
+     * @return The logger
+     */
+    public Logger getLogger() {
+        return logger;
+    }
+
+    /**
+     * Gets the database directory.
+     * @return The path to the db directory
+     */
+    public Path getPath() {
+        return dbPath;
+    }
+
+    /**
+     * Stops the flusher and writes all pending changes.
+     */
+    public void close() {
+        // Queued async calls still run against the open database
+        ioExecutor.shutdown();
+        try {
+            if (!ioExecutor.awaitTermination(5, TimeUnit.SECONDS)) {
+                ioExecutor.shutdownNow();
+            }
+        } catch (InterruptedException e) {
+            ioExecutor.shutdownNow();
+            Thread.currentThread().interrupt();
+        }
+        synchronized (this) {
+            if (closed) {
+                return;
+            }
+            closed = true;
+        }
+        commitWriter.close();
+        reaper.close();
+        changeFeed.close();
+        playerData.clear();
+        flusher.shutdown();
+        try {
+            if (!flusher.awaitTermination(5, TimeUnit.SECONDS)) {
+                flusher.shutdownNow();
+            }
+        } catch (InterruptedException e) {
+            flusher.shutdownNow();
+            Thread.currentThread().interrupt();
+        }
+
+        if (!flushAll()) {
+            logger.severe("Some DB changes could not be written on shutdown");
+        }
+        for (DocumentStore store : stores.values()) {
+            store.close();
+        }
+        stores.clear();
+        for (StorageEngineFactory factory : engines.values()) {
+            factory.close();
+        }
+    }
+
+    private boolean flush(DocumentStore store) {
+        try {
+            store.flush();
+            return true;
+        } catch (IOException e) {
+            logger.warning("Failed to write DB file " + store.getName() + ": " + e.getMessage());
+            return false;
+        }
+    }
+
+    private void maintainAll() {
+        for (DocumentStore store : stores.values()) {
+            try {
+                store.maintain();
+            } catch (IOException e) {
+                logger.warning("Failed to compact DB file " + store.getName() + ": " + e.getMessage());
+            }
+        }
+    }
+
+    /**
+     * Drops the written key from the player data cache, queues it for
+     * watchers and hands writes of group and sync collections to the
+     * group-commit writer.
+     */
+    private void written(DocumentStore store, String key) {
+        playerData.invalidate(store.getName(), key);
+        changeFeed.offer(store.getName(), key);
+        if (store.getDurability().isSynced()) {
+            store.setPendingCommit(commitWriter.submit(store, getOptions(store.getName()).getCommitDelayMs()));
+        }
+    }
+
+    private DocumentStore createStore(String fileName, CollectionOptions collectionOptions) {
+        DocumentStore store;
+        if (collectionOptions.getShards() > 1) {
+            if (collectionOptions.getEngine().equals(BTreeDocumentStore.NAME)) {
+                // A B-tree already reads only the pages a lookup needs
+                throw new IllegalArgumentException("The btree engine cannot be sharded");
+            }
+            store = new ShardedDocumentStore(fileName, dbPath.resolve(fileName + ShardedDocumentStore.DIRECTORY_SUFFIX),
+                    collectionOptions.getShards(), collectionOptions.getShardBy(),
+                    name -> createEngineStore(name, collectionOptions), gson, logger);
+        } else {
+            store = createEngineStore(fileName, collectionOptions);
+        }
+        store.setDurability(collectionOptions.getDurability());
+        store.setWriteListener(this::written);
+        store.setLoadListener(reaper::track);
+        for (String field : indexes.getOrDefault(fileName, Set.of())) {
+            store.addIndex(field);
+        }
+        return store;
+    }
+
+    private DocumentStore createEngineStore(String fileName, CollectionOptions collectionOptions) {
+        Path jsonPath = dbPath.resolve(fileName + JsonFileEngine.EXTENSION);
+        return switch (collectionOptions.getEngine()) {
+            case JsonFileEngine.NAME -> new CachedDocumentStore(fileName, new JsonFileEngine(jsonPath, gson), gson);
+            case BinaryFileEngine.NAME -> new CachedDocumentStore(fileName,
+                    new BinaryFileEngine(dbPath.resolve(fileName + BinaryFileEngine.EXTENSION), jsonPath, logger), gson);
+            case AppendLogEngine.NAME -> new CachedDocumentStore(fileName,
+                    new AppendLogEngine(dbPath.resolve(fileName + AppendLogEngine.EXTENSION), jsonPath, logger), gson);
+            case BTreeDocumentStore.NAME -> new BTreeDocumentStore(fileName,
+                    dbPath.resolve(fileName + BTreeDocumentStore.EXTENSION), jsonPath, gson, logger, collectionOptions.getCacheSizeMb());
+            default -> createRegisteredStore(fileName, jsonPath, collectionOptions);
+        };
+    }
+
+    private DocumentStore createRegisteredStore(String fileName, Path jsonPath, CollectionOptions collectionOptions) {
+        StorageEngineFactory factory = engines.get(collectionOptions.getEngine());
+        if (factory == null) {
+            throw new IllegalArgumentException("Unknown DB engine: " + collectionOptions.getEngine());
+        }
+        return new CachedDocumentStore(fileName, factory.create(fileName, jsonPath, collectionOptions), gson);
+    }
+}
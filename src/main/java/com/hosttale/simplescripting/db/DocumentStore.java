@@ -0,0 +1,461 @@
+package com.hosttale.simplescripting.db;
+
+import com.google.gson.JsonElement;
+import com.google.gson.JsonPrimitive;
+
+import javax.annotation.Nonnull;
+import java.io.IOException;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.BiConsumer;
+import java.util.function.Consumer;
+import java.util.function.UnaryOperator;
+
+/**
+ * One DB collection (a "file" in the DB API).
+ * Implementations decide how much of the collection is kept in memory;
+ * {@link Database} owns their lifecycle.
+ */
+public abstract class DocumentStore {
+    private static final int VISIBLE_PAGE_SIZE = 1000;
+
+    private final String name;
+    private volatile Durability durability;
+    private volatile BiConsumer<DocumentStore, String> writeListener;
+    private volatile Consumer<DocumentStore> loadListener;
+    // Group commit that will make the latest write durable
+    private volatile CompletableFuture<Void> pendingCommit;
+
+    protected DocumentStore(String name) {
+        this.name = name;
+        this.durability = Durability.LAZY;
+        this.pendingCommit = CompletableFuture.completedFuture(null);
+    }
+
+    /**
+     * Gets the collection name (the file name without extension).
+     * @return The name
+     */
+    public String getName() {
+        return name;
+    }
+
+    /**
+     * Gets when writes to this collection reach the disk.
+     * @return The durability level
+     */
+    public Durability getDurability() {
+        return durability;
+    }
+
+    void setDurability(Durability durability) {
+        this.durability = durability;
+    }
+
+    void setWriteListener(BiConsumer<DocumentStore, String> writeListener) {
+        this.writeListener = writeListener;
+    }
+
+    void setLoadListener(Consumer<DocumentStore> loadListener) {
+        this.loadListener = loadListener;
+    }
+
+    Consumer<DocumentStore> getLoadListener() {
+        return loadListener;
+    }
+
+    CompletableFuture<Void> getPendingCommit() {
+        return pendingCommit;
+    }
+
+    void setPendingCommit(CompletableFuture<Void> pendingCommit) {
+        this.pendingCommit = pendingCommit;
+    }
+
+    /**
+     * Notifies the database of a write. Implementations call this after every
+     * put and remove, and whenever a key's value changes in any other way.
+     * @param key The key that was written
+     */
+    protected void written(String key) {
+        BiConsumer<DocumentStore, String> listener = writeListener;
+        if (listener != null) {
+            listener.accept(this, key);
+        }
+    }
+
+    /**
+     * Notifies the database that the collection was loaded, so its expiring keys
+     * can be scheduled. Implementations that hold keys call this at the end of load.
+     */
+    protected void loaded() {
+        Consumer<DocumentStore> listener = loadListener;
+        if (listener != null) {
+            listener.accept(this);
+        }
+    }
+
+    /**
+     * Gets the name of the storage engine in use.
+     * @return The engine name
+     */
+    public abstract String getEngineName();
+
+    /**
+     * Gets a value. Values past their expiry time are not found, even before
+     * they are removed.
+     * @param key The key
+     * @return The value, or null if not found
+     */
+    public JsonElement get(@Nonnull String key) {
+        return Expiry.visible(getStored(key), System.currentTimeMillis());
+    }
+
+    /**
+     * Checks if a key exists and has not expired.
+     * @param key The key
+     * @return true if the key exists
+     */
+    public boolean has(@Nonnull String key) {
+        return get(key) != null;
+    }
+
+    /**
+     * Gets a value as stored, including expiry metadata and expired values.
+     * @param key The key
+     * @return The stored value, or null if not found
+     */
+    abstract JsonElement getStored(@Nonnull String key);
+
+    /**
+     * Stores a value and marks the key dirty.
+     * @param key The key
+     * @param value The value
+     */
+    public abstract void put(@Nonnull String key, @Nonnull JsonElement value);
+
+    /**
+     * Removes a key and marks it dirty.
+     * @param key The key
+     * @return true if the key existed
+     */
+    public abstract boolean remove(@Nonnull String key);
+
+    /**
+     * Atomically replaces a value with a function of itself. No other write to
+     * the collection happens between reading the old value and storing the new one.
+     * The new value does not expire.
+     * @param key The key
+     * @param function Receives the current value (null if absent or expired) and
+     *                 returns the new value, or null to delete the key
+     * @return The new value
+     */
+    public JsonElement update(@Nonnull String key, @Nonnull UnaryOperator<JsonElement> function) {
+        return updateStored(key, stored -> function.apply(Expiry.visible(stored, System.currentTimeMillis())));
+    }
+
+    /**
+     * Atomically sets a nested field of a value. Paths are names separated by
+     * dots, with array indexes and quoted names in brackets. Missing objects
+     * along the path are created, and the key is created if absent. Only the
+     * objects and arrays on the path are copied, not the rest of the value.
+     * Like {@link #update}, the new value does not expire.
+     * @param key The key
+     * @param path The path of the field (e.g., "homes.base.x" or "homes[\"my base\"].x")
+     * @param value The value to set
+     * @return The new value of the key
+     * @throws IllegalArgumentException if the path is malformed or crosses a value that is not an object or array
+     */
+    public JsonElement setPath(@Nonnull String key, @Nonnull String path, @Nonnull JsonElement value) {
+        List<Object> steps = JsonPath.parse(path);
+        return update(key, current -> Expiry.requirePlain(JsonPath.set(current, steps, value)));
+    }
+
+    /**
+     * Atomically removes a nested field of a value, see {@link #setPath}.
+     * Nothing is written if the field does not exist.
+     * @param key The key
+     * @param path The path of the field
+     * @return true if the field existed
+     * @throws IllegalArgumentException if the path is malformed
+     */
+    public boolean removePath(@Nonnull String key, @Nonnull String path) {
+        List<Object> steps = JsonPath.parse(path);
+        long now = System.currentTimeMillis();
+        boolean[] removed = new boolean[1];
+        updateStored(key, stored -> {
+            JsonElement current = Expiry.visible(stored, now);
+            JsonElement updated = JsonPath.remove(current, steps);
+            if (updated == current) {
+                // Returned as is, so nothing is written
+                return stored;
+            }
+            removed[0] = true;
+            return updated;
+        });
+        return removed[0];
+    }
+
+    /**
+     * Atomically adds to a whole number. A missing or expired key counts as 0,
+     * and the result does not expire.
+     * @param key The key
+     * @param delta The amount to add; negative to subtract
+     * @return The new value
+     * @throws IllegalArgumentException if the current value is not a whole number
+     * @throws ArithmeticException if the result overflows a long
+     */
+    public long increment(@Nonnull String key, long delta) {
+        long now = System.currentTimeMillis();
+        return updateStored(key, stored -> new JsonPrimitive(Math.addExact(counterValue(Expiry.visible(stored, now)), delta)))
+                .getAsLong();
+    }
+
+    /**
+     * Atomically replaces a value if it equals an expected one. Numbers are
+     * equal if they have the same value, whatever their type.
+     * @param key The key
+     * @param expected The expected value, or null to expect the key to be missing
+     * @param value The new value, or null to delete the key
+     * @return true if the value matched and was replaced
+     */
+    public boolean compareAndSet(@Nonnull String key, JsonElement expected, JsonElement value) {
+        long now = System.currentTimeMillis();
+        boolean[] swapped = new boolean[1];
+        updateStored(key, stored -> {
+            if (!Objects.equals(Expiry.visible(stored, now), expected)) {
+                // Returned as is, so nothing is written
+                return stored;
+            }
+            swapped[0] = true;
+            return value;
+        });
+        return swapped[0];
+    }
+
+    /**
+     * Like {@link #update}, but the function sees and returns values as stored.
+     * @param key The key
+     * @param function Receives the stored value (null if absent) and returns
+     *                 the value to store, or null to delete the key; returning
+     *                 the value it was given leaves the key untouched
+     * @return The new stored value
+     */
+    abstract JsonElement updateStored(@Nonnull String key, @Nonnull UnaryOperator<JsonElement> function);
+
+    /**
+     * Reads a counter value.
+     * @param value The current value, or null if missing
+     * @return The value as a long; 0 if missing
+     * @throws IllegalArgumentException if the value is not a whole number or a string holding one
+     */
+    static long counterValue(JsonElement value) {
+        if (value == null) {
+            return 0;
+        }
+        if (value.isJsonPrimitive()) {
+            JsonPrimitive primitive = value.getAsJsonPrimitive();
+            try {
+                if (primitive.isNumber()) {
+                    return primitive.getAsBigDecimal().longValueExact();
+                }
+                if (primitive.isString()) {
+                    // Counters saved by scripts before incr existed, e.g., String(count)
+                    return Long.parseLong(primitive.getAsString().trim());
+                }
+            } catch (ArithmeticException | NumberFormatException e) {
+                // Reported below
+            }
+        }
+        throw new IllegalArgumentException("Not a whole number: " + value);
+    }
+
+    /**
+     * Removes keys whose values have expired. Keys that were saved again since are kept.
+     * @param keys The keys to check
+     * @param now The current time in epoch milliseconds
+     * @return The number of keys removed
+     */
+    int removeExpired(@Nonnull Collection<String> keys, long now) {
+        int removed = 0;
+        for (String key : keys) {
+            // Checked again under the write, in case the key was saved in between
+            if (Expiry.isExpired(getStored(key), now)
+                    && updateStored(key, stored -> Expiry.isExpired(stored, now) ? null : stored) == null) {
+                removed++;
+            }
+        }
+        return removed;
+    }
+
+    /**
+     * Gets every value as scripts see it, in key order: expired values are
+     * left out and expiry metadata is removed from the rest. {@link #toJson}
+     * gives the stored form instead.
+     * @return Key to value
+     */
+    public Map<String, JsonElement> visibleEntries() {
+        Map<String, JsonElement> entries = new LinkedHashMap<>();
+        String cursor = null;
+        do {
+            ScanPage page = scan("", cursor, VISIBLE_PAGE_SIZE);
+            entries.putAll(page.getEntries());
+            cursor = page.getCursor();
+        } while (cursor != null);
+        return entries;
+    }
+
+    /**
+     * Reads one page of the keys that start with a prefix, in key order, so
+     * large collections can be walked without copying them whole.
+     * Writes made between pages show up if they are past the cursor.
+     * @param prefix The key prefix; empty for all keys
+     * @param cursor The cursor of the previous page, or null for the first page
+     * @param limit Maximum number of keys to look at
+     * @return The page
+     * @throws IllegalArgumentException if the limit is not positive
+     */
+    public ScanPage scan(@Nonnull String prefix, String cursor, int limit) {
+        if (limit <= 0) {
+            throw new IllegalArgumentException("Scan limit must be positive: " + limit);
+        }
+        List<Map.Entry<String, JsonElement>> stored = scanStored(prefix, cursor, limit);
+        long now = System.currentTimeMillis();
+        Map<String, JsonElement> entries = new LinkedHashMap<>();
+        for (Map.Entry<String, JsonElement> entry : stored) {
+            JsonElement value = Expiry.visible(entry.getValue(), now);
+            if (value != null) {
+                entries.put(entry.getKey(), value);
+            }
+        }
+        // A short page means the prefix range is exhausted
+        String next = stored.size() < limit ? null : stored.get(stored.size() - 1).getKey();
+        return new ScanPage(entries, next);
+    }
+
+    /**
+     * Reads stored entries whose keys start with a prefix, in key order.
+     * @param prefix The key prefix
+     * @param after Only keys after this one, or null to start at the prefix
+     * @param limit Maximum number of entries
+     * @return Up to limit entries, including expired ones
+     */
+    abstract List<Map.Entry<String, JsonElement>> scanStored(@Nonnull String prefix, String after, int limit);
+
+    /**
+     * Finds the documents whose field has a value, through the field's index.
+     * A field that holds an array matches if any element equals the value.
+     * @param field The indexed field, as given to {@link Database#createIndex}
+     * @param value The value; a string, number or boolean
+     * @return Key to value of the matching documents, in key order
+     * @throws IllegalArgumentException if the field has no index
+     */
+    public Map<String, JsonElement> query(@Nonnull String field, @Nonnull JsonElement value) {
+        SecondaryIndex matcher = new SecondaryIndex(field);
+        Map<String, JsonElement> documents = new LinkedHashMap<>();
+        for (String key : queryKeys(field, value)) {
+            // Checked again: the document may have expired or changed since the lookup
+            JsonElement document = get(key);
+            if (document != null && matcher.matches(document, value)) {
+                documents.put(key, document);
+            }
+        }
+        return documents;
+    }
+
+    /**
+     * Declares an index on a field. The index is built on the first query and
+     * kept up to date by every write after that. Declaring it again does nothing.
+     * @param field Dot-separated path of the field, or empty to index whole values
+     */
+    abstract void addIndex(@Nonnull String field);
+
+    /**
+     * Looks up the keys whose field has a value in the field's index.
+     * @param field The indexed field
+     * @param value The value
+     * @return The candidate keys in key order; may include expired keys
+     * @throws IllegalArgumentException if the field has no index
+     */
+    abstract List<String> queryKeys(@Nonnull String field, @Nonnull JsonElement value);
+
+    /**
+     * Gets all keys, including expired ones that have not been removed yet.
+     * @return A copy of the key list
+     */
+    public abstract List<String> keys();
+
+    /**
+     * Gets the number of keys.
+     * @return Key count
+     */
+    public abstract int size();
+
+    /**
+     * Checks if the collection exists on disk or has been written to.
+     * @return true if the collection exists
+     */
+    public abstract boolean exists();
+
+    /**
+     * Checks if the collection has changes that are not on disk yet.
+     * @return true if there are unflushed changes
+     */
+    public abstract boolean isDirty();
+
+    /**
+     * Serializes the whole collection.
+     * @return The collection as a JSON object string
+     */
+    public abstract String toJson();
+
+    /**
+     * Writes unflushed changes to disk.
+     * @throws IOException if the data cannot be written; the changes stay pending
+     */
+    public abstract void flush() throws IOException;
+
+    /**
+     * Gets the lock that serializes writes of this collection to disk.
+     * Transactions hold it from applying their changes until they are installed.
+     * @return The lock
+     */
+    abstract ReentrantLock commitLock();
+
+    /**
+     * Writes unflushed changes to synced staging files instead of in place.
+     * Caller holds {@link #commitLock()}.
+     * @return The staged writes; empty if there is nothing to write
+     * @throws IOException if a staging file cannot be written; the changes stay pending
+     */
+    abstract List<StagedWrite> stage() throws IOException;
+
+    /**
+     * Loads the collection, if it exists.
+     * @throws IOException if the data cannot be read
+     */
+    abstract void load() throws IOException;
+
+    /**
+     * Runs background housekeeping such as compaction. Called by the flusher.
+     * @throws IOException if housekeeping fails
+     */
+    abstract void maintain() throws IOException;
+
+    /**
+     * Releases open files. Unflushed changes are not written.
+     */
+    abstract void close();
+
+    /**
+     * Discards the collection and deletes its data from disk.
+     * @return true if the collection existed
+     * @throws IOException if the data cannot be deleted
+     */
+    abstract boolean drop() throws IOException;
+}
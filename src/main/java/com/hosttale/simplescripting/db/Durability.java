@@ -0,0 +1,60 @@
+package com.hosttale.simplescripting.db;
+
+import javax.annotation.Nonnull;
+
+/**
+ * When writes to a collection reach the disk.
+ */
+public enum Durability {
+    /**
+     * Written by the background flusher on its interval and not synced; a
+     * crash loses the changes since the last flush. Cheapest.
+     */
+    LAZY("lazy"),
+    /**
+     * Written and synced by the group-commit writer a few milliseconds after
+     * the change, together with all other changes made in that window.
+     */
+    GROUP("group"),
+    /**
+     * Like {@link #GROUP}, but DB writes wait until their group is on disk.
+     */
+    SYNC("sync");
+
+    private final String name;
+
+    Durability(String name) {
+        this.name = name;
+    }
+
+    /**
+     * Gets the name used in collection options.
+     * @return "lazy", "group" or "sync"
+     */
+    public String getName() {
+        return name;
+    }
+
+    /**
+     * Checks if flushes of the collection must be synced to disk.
+     * @return true unless lazy
+     */
+    public boolean isSynced() {
+        return this != LAZY;
+    }
+
+    /**
+     * Looks up a durability level by name.
+     * @param name "lazy", "group" or "sync"
+     * @return The durability level
+     * @throws IllegalArgumentException if the name is unknown
+     */
+    public static Durability fromName(@Nonnull String name) {
+        for (Durability durability : values()) {
+            if (durability.name.equalsIgnoreCase(name)) {
+                return durability;
+            }
+        }
+        throw new IllegalArgumentException("Unknown DB durability: " + name);
+    }
+}
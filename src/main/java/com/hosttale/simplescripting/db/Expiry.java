@@ -0,0 +1,100 @@
+package com.hosttale.simplescripting.db;
+
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+
+/**
+ * Expiry metadata of DB values.
+ * A value saved with a time to live is stored in place of the plain value as
+ * {"$expires": epochMillis, "$value": value}, so it survives restarts and is
+ * migrated, sharded and exported with the rest of the collection.
+ */
+final class Expiry {
+    static final String EXPIRES = "$expires";
+    static final String VALUE = "$value";
+
+    private Expiry() {
+    }
+
+    /**
+     * Wraps a value with its expiry time.
+     * @param value The value
+     * @param expiresAt When it expires, in epoch milliseconds
+     * @return The value to store
+     */
+    static JsonElement wrap(JsonElement value, long expiresAt) {
+        JsonObject stored = new JsonObject();
+        stored.addProperty(EXPIRES, expiresAt);
+        stored.add(VALUE, value);
+        return stored;
+    }
+
+    /**
+     * Gets when a stored value expires.
+     * @param stored The stored value, or null
+     * @return Epoch milliseconds, or -1 if the value does not expire
+     */
+    static long expiresAt(JsonElement stored) {
+        if (stored == null || !stored.isJsonObject()) {
+            return -1;
+        }
+        JsonObject object = stored.getAsJsonObject();
+        if (object.size() != 2 || !object.has(VALUE)) {
+            return -1;
+        }
+        JsonElement expires = object.get(EXPIRES);
+        if (expires == null || !expires.isJsonPrimitive() || !expires.getAsJsonPrimitive().isNumber()) {
+            return -1;
+        }
+        return expires.getAsLong();
+    }
+
+    /**
+     * Rejects a plain value shaped like a value with expiry metadata, which
+     * would otherwise be read back as expiring.
+     * @param value The value to store
+     * @return The value
+     * @throws IllegalArgumentException if the value has that shape
+     */
+    static JsonElement requirePlain(JsonElement value) {
+        if (expiresAt(value) >= 0) {
+            throw new IllegalArgumentException("Values shaped {\"" + EXPIRES + "\": <number>, \"" + VALUE
+                    + "\": ...} are reserved for values saved with a time to live");
+        }
+        return value;
+    }
+
+    /**
+     * Checks if a stored value has expired.
+     * @param stored The stored value, or null
+     * @param now The current time in epoch milliseconds
+     * @return true if the value has an expiry time that has passed
+     */
+    static boolean isExpired(JsonElement stored, long now) {
+        long expiresAt = expiresAt(stored);
+        return expiresAt >= 0 && expiresAt <= now;
+    }
+
+    /**
+     * Removes the expiry metadata, whether or not the value has expired.
+     * @param stored The stored value, or null
+     * @return The value itself
+     */
+    static JsonElement unwrap(JsonElement stored) {
+        return expiresAt(stored) < 0 ? stored : stored.getAsJsonObject().get(VALUE);
+    }
+
+    /**
+     * Gets the value scripts see.
+     * @param stored The stored value, or null
+     * @param now The current time in epoch milliseconds
+     * @return The unwrapped value, or null if there is none or it has expired
+     */
+    static JsonElement visible(JsonElement stored, long now) {
+        long expiresAt = expiresAt(stored);
+        if (expiresAt < 0) {
+            return stored;
+        }
+        return expiresAt <= now ? null : stored.getAsJsonObject().get(VALUE);
+    }
+}
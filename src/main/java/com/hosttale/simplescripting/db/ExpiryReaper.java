@@ -0,0 +1,161 @@
+package com.hosttale.simplescripting.db;
+
+import com.hosttale.simplescripting.util.Logger;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Removes expired keys in the background.
+ * Expiring keys are kept in a hashed timing wheel: a ring of slots, one per
+ * tick, where a key goes into the slot of the tick it expires on. Each tick
+ * only looks at one slot, so scheduling and reaping cost the same however many
+ * keys are waiting. Keys more than one revolution away share a slot with
+ * nearer ones and are skipped until their time comes.
+ * Expired values are already hidden from reads, so reaping only frees space
+ * and may lag behind during bursts.
+ */
+class ExpiryReaper {
+    static final long TICK_MS = 1000;
+    private static final int SLOTS = 512;
+    // Keys removed per tick; the rest wait for the next one
+    private static final int MAX_REAPED_PER_TICK = 1000;
+
+    private final Logger logger;
+    private final ScheduledExecutorService executor;
+    private final List<List<Expiring>> wheel;
+    // Due keys not reaped yet because of the per-tick limit
+    private final ArrayDeque<Expiring> due;
+    private long nextTick;
+
+    ExpiryReaper(Logger logger) {
+        this.logger = logger;
+        this.executor = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "SimpleScripting-DB-Expiry");
+            t.setDaemon(true);
+            return t;
+        });
+        this.wheel = new ArrayList<>(SLOTS);
+        for (int i = 0; i < SLOTS; i++) {
+            wheel.add(new ArrayList<>());
+        }
+        this.due = new ArrayDeque<>();
+        this.nextTick = System.currentTimeMillis() / TICK_MS;
+        executor.scheduleWithFixedDelay(this::tick, TICK_MS, TICK_MS, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Schedules a key to be removed once it expires.
+     * @param store The collection holding the key
+     * @param key The key
+     * @param expiresAt When it expires, in epoch milliseconds
+     */
+    synchronized void schedule(DocumentStore store, String key, long expiresAt) {
+        // Rounded up, so a key is never looked at before it expires
+        long tick = Math.max(Math.floorDiv(expiresAt + TICK_MS - 1, TICK_MS), nextTick);
+        wheel.get((int) Math.floorMod(tick, (long) SLOTS)).add(new Expiring(store, key, expiresAt));
+    }
+
+    /**
+     * Schedules the expiring keys of a loaded collection, in the background.
+     * @param store The collection
+     */
+    void track(DocumentStore store) {
+        try {
+            executor.execute(() -> scan(store));
+        } catch (RejectedExecutionException e) {
+            // Closing
+        }
+    }
+
+    /**
+     * Stops reaping. Expired keys left on disk are removed after the next start.
+     */
+    void close() {
+        executor.shutdown();
+        try {
+            if (!executor.awaitTermination(5, TimeUnit.SECONDS)) {
+                executor.shutdownNow();
+            }
+        } catch (InterruptedException e) {
+            executor.shutdownNow();
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void scan(DocumentStore store) {
+        try {
+            for (String key : store.keys()) {
+                long expiresAt = Expiry.expiresAt(store.getStored(key));
+                if (expiresAt >= 0) {
+                    schedule(store, key, expiresAt);
+                }
+            }
+        } catch (RuntimeException e) {
+            logger.warning("Failed to scan DB collection " + store.getName() + " for expired keys: " + e.getMessage());
+        }
+    }
+
+    private void tick() {
+        long now = System.currentTimeMillis();
+        List<Expiring> batch = new ArrayList<>();
+        synchronized (this) {
+            long currentTick = now / TICK_MS;
+            // After a long pause one revolution visits every slot
+            long lastTick = Math.min(currentTick, nextTick + SLOTS - 1);
+            for (long tick = nextTick; tick <= lastTick; tick++) {
+                Iterator<Expiring> slot = wheel.get((int) Math.floorMod(tick, (long) SLOTS)).iterator();
+                while (slot.hasNext()) {
+                    Expiring expiring = slot.next();
+                    if (expiring.expiresAt <= now) {
+                        due.add(expiring);
+                        slot.remove();
+                    }
+                }
+            }
+            nextTick = Math.max(nextTick, currentTick + 1);
+            while (batch.size() < MAX_REAPED_PER_TICK && !due.isEmpty()) {
+                batch.add(due.poll());
+            }
+        }
+        if (batch.isEmpty()) {
+            return;
+        }
+
+        Map<DocumentStore, List<String>> byStore = new LinkedHashMap<>();
+        for (Expiring expiring : batch) {
+            byStore.computeIfAbsent(expiring.store, store -> new ArrayList<>()).add(expiring.key);
+        }
+        for (Map.Entry<DocumentStore, List<String>> entry : byStore.entrySet()) {
+            try {
+                entry.getKey().removeExpired(entry.getValue(), now);
+            } catch (RuntimeException e) {
+                // Dropped or replaced collection: its keys are gone or were scheduled again
+                logger.warning("Failed to remove expired keys from DB collection " + entry.getKey().getName() + ": " + e.getMessage());
+            }
+        }
+    }
+
+    /**
+     * A key waiting in the wheel.
+     */
+    private static class Expiring {
+        final DocumentStore store;
+        final String key;
+        final long expiresAt;
+
+        Expiring(DocumentStore store, String key, long expiresAt) {
+            this.store = store;
+            this.key = key;
+            this.expiresAt = expiresAt;
+        }
+    }
+}
@@ -0,0 +1,116 @@
+package com.hosttale.simplescripting.db;
+
+import com.hosttale.simplescripting.util.Logger;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.LinkedHashSet;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Syncs writes of durable collections in groups.
+ * Collections written within a short window are flushed together: each
+ * changed file is written and synced once, then the directory is synced once
+ * for the whole group, so the cost of a sync is shared by every write in it.
+ */
+class GroupCommitWriter {
+    // The database directory, synced once per group
+    private final Path directory;
+    private final Logger logger;
+    private final ScheduledExecutorService executor;
+    private Set<DocumentStore> pending;
+    private CompletableFuture<Void> group;
+    private ScheduledFuture<?> nextCommit;
+    private long nextCommitNanos;
+
+    GroupCommitWriter(Path directory, Logger logger) {
+        this.directory = directory;
+        this.logger = logger;
+        this.executor = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "SimpleScripting-DB-Commit");
+            t.setDaemon(true);
+            return t;
+        });
+        this.pending = new LinkedHashSet<>();
+        this.group = new CompletableFuture<>();
+    }
+
+    /**
+     * Adds a written collection to the current group.
+     * @param store The collection
+     * @param delayMs How long the collection's writes may wait to be synced
+     * @return Completes once the group is on disk
+     */
+    synchronized CompletableFuture<Void> submit(DocumentStore store, long delayMs) {
+        if (executor.isShutdown()) {
+            // Closing: the database flushes everything once more after the writer stops
+            return CompletableFuture.completedFuture(null);
+        }
+        pending.add(store);
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(delayMs);
+        // Moved earlier if this collection allows less delay than the group so far
+        if (nextCommit == null || deadline - nextCommitNanos < 0) {
+            if (nextCommit != null) {
+                nextCommit.cancel(false);
+            }
+            nextCommit = executor.schedule(this::commitGroup, delayMs, TimeUnit.MILLISECONDS);
+            nextCommitNanos = deadline;
+        }
+        return group;
+    }
+
+    /**
+     * Commits the current group now and stops the writer.
+     */
+    void close() {
+        executor.shutdown();
+        try {
+            if (!executor.awaitTermination(5, TimeUnit.SECONDS)) {
+                executor.shutdownNow();
+            }
+        } catch (InterruptedException e) {
+            executor.shutdownNow();
+            Thread.currentThread().interrupt();
+        }
+        commitGroup();
+    }
+
+    private void commitGroup() {
+        Set<DocumentStore> stores;
+        CompletableFuture<Void> committed;
+        synchronized (this) {
+            stores = pending;
+            committed = group;
+            pending = new LinkedHashSet<>();
+            group = new CompletableFuture<>();
+            nextCommit = null;
+        }
+        if (stores.isEmpty()) {
+            committed.complete(null);
+            return;
+        }
+
+        IOException failure = null;
+        for (DocumentStore store : stores) {
+            try {
+                store.flush();
+            } catch (IOException e) {
+                if (failure == null) {
+                    failure = new IOException("Failed to write DB file " + store.getName() + ": " + e.getMessage(), e);
+                }
+            }
+        }
+        Database.syncDirectory(directory);
+        if (failure == null) {
+            committed.complete(null);
+        } else {
+            logger.warning(failure.getMessage());
+            committed.completeExceptionally(failure);
+        }
+    }
+}
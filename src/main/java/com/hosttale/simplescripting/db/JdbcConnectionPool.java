@@ -0,0 +1,127 @@
+package com.hosttale.simplescripting.db;
+
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.SQLException;
+import java.util.Properties;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A small fixed-size pool of JDBC connections.
+ * Connections are opened on demand, up to the pool size, and reused once
+ * returned; one that fails a validity check is replaced. Callers wait when
+ * every connection is in use.
+ */
+final class JdbcConnectionPool {
+    private static final long BORROW_TIMEOUT_SECONDS = 30;
+    private static final int VALIDATION_TIMEOUT_SECONDS = 2;
+
+    private final String url;
+    private final Properties properties;
+    private final Semaphore permits;
+    private final BlockingQueue<Connection> idle;
+    private volatile boolean closed;
+
+    /**
+     * @param url The JDBC URL
+     * @param properties Connection properties such as "user" and "password"
+     * @param size The maximum number of open connections
+     */
+    JdbcConnectionPool(String url, Properties properties, int size) {
+        if (size < 1) {
+            throw new IllegalArgumentException("Pool size must be positive: " + size);
+        }
+        this.url = url;
+        this.properties = properties;
+        this.permits = new Semaphore(size, true);
+        this.idle = new ArrayBlockingQueue<>(size);
+    }
+
+    /**
+     * Takes a connection, opening one if none is idle.
+     * Give it back with {@link #release} when done.
+     * @return A connection in auto-commit mode
+     * @throws SQLException if no connection can be opened, or none frees up in time
+     */
+    Connection borrow() throws SQLException {
+        if (closed) {
+            throw new SQLException("Connection pool is closed");
+        }
+        try {
+            if (!permits.tryAcquire(BORROW_TIMEOUT_SECONDS, TimeUnit.SECONDS)) {
+                throw new SQLException("Timed out waiting for a database connection");
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new SQLException("Interrupted while waiting for a database connection", e);
+        }
+        try {
+            Connection connection;
+            while ((connection = idle.poll()) != null) {
+                if (connection.isValid(VALIDATION_TIMEOUT_SECONDS)) {
+                    return connection;
+                }
+                closeQuietly(connection);
+            }
+            return DriverManager.getConnection(url, properties);
+        } catch (SQLException | RuntimeException e) {
+            permits.release();
+            throw e;
+        }
+    }
+
+    /**
+     * Returns a borrowed connection. A connection left in a transaction is
+     * rolled back; a broken one is closed instead of reused.
+     * @param connection The connection
+     */
+    void release(Connection connection) {
+        try {
+            if (closed || connection.isClosed()) {
+                closeQuietly(connection);
+                return;
+            }
+            if (!connection.getAutoCommit()) {
+                connection.rollback();
+                connection.setAutoCommit(true);
+            }
+            if (!idle.offer(connection)) {
+                closeQuietly(connection);
+            }
+        } catch (SQLException e) {
+            closeQuietly(connection);
+        } finally {
+            permits.release();
+        }
+    }
+
+    /**
+     * Closes the idle connections; borrowed ones are closed when returned.
+     */
+    void close() {
+        closed = true;
+        Connection connection;
+        while ((connection = idle.poll()) != null) {
+            closeQuietly(connection);
+        }
+    }
+
+    /**
+     * Gets the JDBC URL.
+     * @return The URL
+     */
+    String getUrl() {
+        return url;
+    }
+
+    private static void closeQuietly(Connection connection) {
+        try {
+            connection.close();
+        } catch (SQLException e) {
+            // Already unusable
+        }
+    }
+}
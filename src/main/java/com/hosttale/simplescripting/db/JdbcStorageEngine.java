@@ -0,0 +1,435 @@
+package com.hosttale.simplescripting.db;
+
+import com.google.gson.JsonElement;
+import com.google.gson.JsonParser;
+import com.google.gson.JsonParseException;
+import com.hosttale.simplescripting.util.Logger;
+
+import javax.annotation.Nonnull;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Set;
+import java.util.regex.Pattern;
+
+/**
+ * JDBC engine: the collection is kept in memory like with the file engines,
+ * but loaded from and flushed to a table of a SQL database. Every collection
+ * shares one table with a row per key, holding the value as JSON text:
+ * (collection VARCHAR(255), doc_key VARCHAR(512), doc_value TEXT), keyed by
+ * (collection, doc_key). Flushes write only the dirty keys, as batched upserts
+ * and deletes in one database transaction, through a small connection pool.
+ * Upserts use the native statement of H2, PostgreSQL, SQLite, MySQL and
+ * MariaDB, and a delete followed by an insert elsewhere.
+ * A plain JSON file with the same name is imported the first time it is opened.
+ * In DB transactions, the changes of every jdbc collection involved are
+ * written in one database transaction, committed when the DB transaction is
+ * installed. Their data is not part of DB snapshots.
+ */
+public class JdbcStorageEngine implements StorageEngine {
+    public static final String NAME = "jdbc";
+    public static final String DEFAULT_TABLE = "simplescripting_documents";
+    public static final int DEFAULT_POOL_SIZE = 4;
+
+    private static final Pattern TABLE_NAME = Pattern.compile("[A-Za-z_][A-Za-z0-9_]*");
+    private static final String IMPORTED_SUFFIX = ".imported";
+    private static final int BATCH_SIZE = 500;
+    private static final int FETCH_SIZE = 1000;
+
+    private final Factory factory;
+    private final String collection;
+    private final Path jsonPath;
+
+    private JdbcStorageEngine(Factory factory, String collection, Path jsonPath) {
+        this.factory = factory;
+        this.collection = collection;
+        this.jsonPath = jsonPath;
+    }
+
+    @Override
+    public String getName() {
+        return NAME;
+    }
+
+    @Override
+    public boolean exists() {
+        if (Files.exists(jsonPath)) {
+            return true;
+        }
+        try {
+            return hasRows();
+        } catch (IOException e) {
+            // Reported again by load, which fails the open
+            return true;
+        }
+    }
+
+    @Override
+    public Map<String, JsonElement> load() throws IOException {
+        if (!hasRows() && Files.exists(jsonPath)) {
+            Map<String, JsonElement> entries = JsonFileEngine.read(jsonPath);
+            Map<String, String> rows = new LinkedHashMap<>();
+            for (Map.Entry<String, JsonElement> entry : entries.entrySet()) {
+                rows.put(entry.getKey(), entry.getValue().toString());
+            }
+            // Written before the JSON file is renamed, so a crash leaves the JSON authoritative
+            write(rows, List.of());
+            Files.move(jsonPath, jsonPath.resolveSibling(jsonPath.getFileName() + IMPORTED_SUFFIX), StandardCopyOption.REPLACE_EXISTING);
+            factory.logger.info("Imported " + entries.size() + " keys from " + jsonPath.getFileName() + " into " + factory.table);
+            return entries;
+        }
+
+        Map<String, JsonElement> entries = new LinkedHashMap<>();
+        String sql = "SELECT doc_key, doc_value FROM " + factory.table + " WHERE collection = ? ORDER BY doc_key";
+        Connection connection = factory.borrow();
+        try (PreparedStatement statement = connection.prepareStatement(sql)) {
+            statement.setFetchSize(FETCH_SIZE);
+            statement.setString(1, collection);
+            try (ResultSet rows = statement.executeQuery()) {
+                while (rows.next()) {
+                    entries.put(rows.getString(1), JsonParser.parseString(rows.getString(2)));
+                }
+            }
+        } catch (SQLException | JsonParseException e) {
+            throw new IOException("Failed to load " + collection + " from " + factory.table + ": " + e.getMessage(), e);
+        } finally {
+            factory.pool.release(connection);
+        }
+        return entries;
+    }
+
+    @Override
+    public PendingWrite prepare(Map<String, JsonElement> entries, Set<String> dirtyKeys, boolean sync) {
+        // Serialized now, while the document is locked; every commit is durable once the database acknowledges it
+        Map<String, String> upserts = new LinkedHashMap<>();
+        List<String> deletes = new ArrayList<>();
+        for (String key : dirtyKeys) {
+            JsonElement value = entries.get(key);
+            if (value == null) {
+                deletes.add(key);
+            } else {
+                upserts.put(key, value.toString());
+            }
+        }
+        return new PendingWrite() {
+            @Override
+            public void commit() throws IOException {
+                write(upserts, deletes);
+            }
+
+            @Override
+            public StagedWrite stage() throws IOException {
+                // Shared with the other jdbc collections of the DB transaction, and committed on install
+                StagedTransaction transaction = factory.joinStaging();
+                try {
+                    writeRows(transaction.connection, upserts, deletes);
+                } catch (SQLException e) {
+                    transaction.rollback();
+                    throw new IOException("Failed to stage " + collection + " in " + factory.table + ": " + e.getMessage(), e);
+                }
+                StagedWrite staged = new StagedWrite(transaction::commit);
+                staged.addAbortAction(transaction::rollback);
+                return staged;
+            }
+        };
+    }
+
+    @Override
+    public boolean delete() throws IOException {
+        String sql = "DELETE FROM " + factory.table + " WHERE collection = ?";
+        Connection connection = factory.borrow();
+        try (PreparedStatement statement = connection.prepareStatement(sql)) {
+            statement.setString(1, collection);
+            return statement.executeUpdate() > 0;
+        } catch (SQLException e) {
+            throw new IOException("Failed to delete " + collection + " from " + factory.table + ": " + e.getMessage(), e);
+        } finally {
+            factory.pool.release(connection);
+        }
+    }
+
+    private boolean hasRows() throws IOException {
+        String sql = "SELECT 1 FROM " + factory.table + " WHERE collection = ?";
+        Connection connection = factory.borrow();
+        try (PreparedStatement statement = connection.prepareStatement(sql)) {
+            statement.setMaxRows(1);
+            statement.setString(1, collection);
+            try (ResultSet rows = statement.executeQuery()) {
+                return rows.next();
+            }
+        } catch (SQLException e) {
+            throw new IOException("Failed to read " + collection + " from " + factory.table + ": " + e.getMessage(), e);
+        } finally {
+            factory.pool.release(connection);
+        }
+    }
+
+    private void write(Map<String, String> upserts, List<String> deletes) throws IOException {
+        if (upserts.isEmpty() && deletes.isEmpty()) {
+            return;
+        }
+        Connection connection = factory.borrow();
+        try {
+            connection.setAutoCommit(false);
+            writeRows(connection, upserts, deletes);
+            connection.commit();
+        } catch (SQLException e) {
+            throw new IOException("Failed to write " + collection + " to " + factory.table + ": " + e.getMessage(), e);
+        } finally {
+            // Rolls back whatever was not committed
+            factory.pool.release(connection);
+        }
+    }
+
+    /**
+     * Writes the rows in the connection's open transaction, without committing it.
+     */
+    private void writeRows(Connection connection, Map<String, String> upserts, List<String> deletes) throws SQLException {
+        String upsertSql = factory.upsertSql;
+        if (upsertSql == null) {
+            // No native upsert: replace the rows instead
+            List<String> replaced = new ArrayList<>(deletes);
+            replaced.addAll(upserts.keySet());
+            deleteRows(connection, replaced);
+            upsertSql = "INSERT INTO " + factory.table + " (collection, doc_key, doc_value) VALUES (?, ?, ?)";
+        } else {
+            deleteRows(connection, deletes);
+        }
+        if (upserts.isEmpty()) {
+            return;
+        }
+        try (PreparedStatement statement = connection.prepareStatement(upsertSql)) {
+            int batched = 0;
+            for (Map.Entry<String, String> row : upserts.entrySet()) {
+                statement.setString(1, collection);
+                statement.setString(2, row.getKey());
+                statement.setString(3, row.getValue());
+                statement.addBatch();
+                if (++batched % BATCH_SIZE == 0) {
+                    statement.executeBatch();
+                }
+            }
+            if (batched % BATCH_SIZE != 0) {
+                statement.executeBatch();
+            }
+        }
+    }
+
+    private void deleteRows(Connection connection, List<String> keys) throws SQLException {
+        if (keys.isEmpty()) {
+            return;
+        }
+        String sql = "DELETE FROM " + factory.table + " WHERE collection = ? AND doc_key = ?";
+        try (PreparedStatement statement = connection.prepareStatement(sql)) {
+            int batched = 0;
+            for (String key : keys) {
+                statement.setString(1, collection);
+                statement.setString(2, key);
+                statement.addBatch();
+                if (++batched % BATCH_SIZE == 0) {
+                    statement.executeBatch();
+                }
+            }
+            if (batched % BATCH_SIZE != 0) {
+                statement.executeBatch();
+            }
+        }
+    }
+
+    /**
+     * The database transaction holding the staged changes of one DB
+     * transaction. The first install commits it and the first abort rolls it
+     * back; the connection goes back to the pool either way.
+     */
+    private static final class StagedTransaction {
+        private final JdbcConnectionPool pool;
+        private final Connection connection;
+        private final String table;
+        private boolean finished;
+        private SQLException failure;
+
+        StagedTransaction(JdbcConnectionPool pool, Connection connection, String table) {
+            this.pool = pool;
+            this.connection = connection;
+            this.table = table;
+        }
+
+        synchronized boolean isFinished() {
+            return finished;
+        }
+
+        /**
+         * Commits the transaction, or reports the failure of the earlier commit.
+         */
+        synchronized void commit() throws IOException {
+            if (!finished) {
+                finished = true;
+                try {
+                    connection.commit();
+                } catch (SQLException e) {
+                    failure = e;
+                } finally {
+                    // Rolls back if the commit failed
+                    pool.release(connection);
+                }
+            }
+            if (failure != null) {
+                throw new IOException("Failed to commit DB transaction to " + table + ": " + failure.getMessage(), failure);
+            }
+        }
+
+        synchronized void rollback() {
+            if (!finished) {
+                finished = true;
+                pool.release(connection);
+            }
+        }
+    }
+
+    /**
+     * Creates JDBC engines sharing one connection pool and table.
+     * Register it with {@link Database#registerEngine} under {@link #NAME}.
+     */
+    public static class Factory implements StorageEngineFactory {
+        private final JdbcConnectionPool pool;
+        private final String table;
+        private final Logger logger;
+        private final Object setupLock;
+        private volatile boolean setUp;
+        // Native upsert statement, or null to delete and insert
+        private volatile String upsertSql;
+        // Transaction of the DB transaction being staged; DB transactions commit one at a time
+        private StagedTransaction staging;
+
+        /**
+         * Creates the factory; nothing is connected until a collection is loaded.
+         * @param url The JDBC URL (e.g., "jdbc:postgresql://localhost/hytale" or "jdbc:h2:mem:test")
+         * @param user The user name, or null
+         * @param password The password, or null
+         * @param table The table holding the collections; created if missing
+         * @param poolSize The maximum number of open connections
+         * @param logger Logger for imports
+         * @throws IllegalArgumentException if the table name is not a plain identifier or the pool size is not positive
+         */
+        public Factory(@Nonnull String url, String user, String password, @Nonnull String table, int poolSize, @Nonnull Logger logger) {
+            if (!TABLE_NAME.matcher(table).matches()) {
+                throw new IllegalArgumentException("Invalid table name: " + table);
+            }
+            Properties properties = new Properties();
+            if (user != null) {
+                properties.setProperty("user", user);
+            }
+            if (password != null) {
+                properties.setProperty("password", password);
+            }
+            this.pool = new JdbcConnectionPool(url, properties, poolSize);
+            this.table = table;
+            this.logger = logger;
+            this.setupLock = new Object();
+        }
+
+        @Override
+        public StorageEngine create(@Nonnull String fileName, @Nonnull Path jsonPath, @Nonnull CollectionOptions options) {
+            return new JdbcStorageEngine(this, fileName, jsonPath);
+        }
+
+        @Override
+        public void close() {
+            pool.close();
+        }
+
+        /**
+         * Gets the JDBC URL.
+         * @return The URL
+         */
+        public String getUrl() {
+            return pool.getUrl();
+        }
+
+        /**
+         * Gets the table holding the collections.
+         * @return The table name
+         */
+        public String getTable() {
+            return table;
+        }
+
+        /**
+         * Gets the transaction staging the current DB transaction, starting one
+         * if the last has been committed or rolled back.
+         */
+        private synchronized StagedTransaction joinStaging() throws IOException {
+            if (staging == null || staging.isFinished()) {
+                Connection connection = borrow();
+                try {
+                    connection.setAutoCommit(false);
+                } catch (SQLException e) {
+                    pool.release(connection);
+                    throw new IOException("Failed to start a transaction on " + pool.getUrl() + ": " + e.getMessage(), e);
+                }
+                staging = new StagedTransaction(pool, connection, table);
+            }
+            return staging;
+        }
+
+        /**
+         * Borrows a connection, creating the table and picking the upsert
+         * statement on first use.
+         */
+        private Connection borrow() throws IOException {
+            Connection connection;
+            try {
+                connection = pool.borrow();
+            } catch (SQLException e) {
+                throw new IOException("Failed to connect to " + pool.getUrl() + ": " + e.getMessage(), e);
+            }
+            if (!setUp) {
+                try {
+                    synchronized (setupLock) {
+                        if (!setUp) {
+                            setUp(connection);
+                            setUp = true;
+                        }
+                    }
+                } catch (SQLException e) {
+                    pool.release(connection);
+                    throw new IOException("Failed to set up table " + table + ": " + e.getMessage(), e);
+                }
+            }
+            return connection;
+        }
+
+        private void setUp(Connection connection) throws SQLException {
+            try (Statement statement = connection.createStatement()) {
+                statement.execute("CREATE TABLE IF NOT EXISTS " + table + " ("
+                        + "collection VARCHAR(255) NOT NULL, "
+                        + "doc_key VARCHAR(512) NOT NULL, "
+                        + "doc_value TEXT NOT NULL, "
+                        + "PRIMARY KEY (collection, doc_key))");
+            }
+            String product = connection.getMetaData().getDatabaseProductName().toLowerCase(Locale.ROOT);
+            String insert = "INSERT INTO " + table + " (collection, doc_key, doc_value) VALUES (?, ?, ?)";
+            if (product.contains("h2")) {
+                upsertSql = "MERGE INTO " + table + " (collection, doc_key, doc_value) KEY (collection, doc_key) VALUES (?, ?, ?)";
+            } else if (product.contains("postgresql") || product.contains("sqlite")) {
+                upsertSql = insert + " ON CONFLICT (collection, doc_key) DO UPDATE SET doc_value = excluded.doc_value";
+            } else if (product.contains("mysql") || product.contains("mariadb")) {
+                upsertSql = insert + " ON DUPLICATE KEY UPDATE doc_value = VALUES(doc_value)";
+            } else {
+                upsertSql = null;
+            }
+        }
+    }
+}
@@ -0,0 +1,127 @@
+package com.hosttale.simplescripting.db;
+
+import com.google.gson.Gson;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonParser;
+import com.google.gson.stream.JsonWriter;
+
+import java.io.IOException;
+import java.io.StringWriter;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Default engine: the collection is one pretty-printed JSON object,
+ * rewritten whole on every flush. The new content is written to a temporary
+ * file that then replaces the old one, so a crash never leaves a truncated file.
+ */
+public class JsonFileEngine implements StorageEngine {
+    public static final String NAME = "json";
+    public static final String EXTENSION = ".json";
+
+    // Suffix of the file a flush writes before it replaces the collection file
+    private static final String TEMP_SUFFIX = ".tmp";
+
+    private final Path filePath;
+    private final Gson gson;
+
+    public JsonFileEngine(Path filePath, Gson gson) {
+        this.filePath = filePath;
+        this.gson = gson;
+    }
+
+    @Override
+    public String getName() {
+        return NAME;
+    }
+
+    @Override
+    public boolean exists() {
+        return Files.exists(filePath);
+    }
+
+    @Override
+    public Map<String, JsonElement> load() throws IOException {
+        return read(filePath);
+    }
+
+    @Override
+    public PendingWrite prepare(Map<String, JsonElement> entries, Set<String> dirtyKeys, boolean sync) {
+        String json = serialize(gson, entries);
+        return new PendingWrite() {
+            @Override
+            public void commit() throws IOException {
+                Path tempPath = filePath.resolveSibling(filePath.getFileName() + TEMP_SUFFIX);
+                if (sync) {
+                    StagedWrite.writeSynced(tempPath, json.getBytes(StandardCharsets.UTF_8));
+                } else {
+                    Files.writeString(tempPath, json, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING);
+                }
+                Files.move(tempPath, filePath, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            }
+
+            @Override
+            public StagedWrite stage() throws IOException {
+                // The whole file is rewritten, so the staged copy simply replaces it
+                Path stagedPath = filePath.resolveSibling(filePath.getFileName() + StagedWrite.STAGED_SUFFIX);
+                StagedWrite.writeSynced(stagedPath, json.getBytes(StandardCharsets.UTF_8));
+                return new StagedWrite(stagedPath, filePath, null);
+            }
+        };
+    }
+
+    @Override
+    public boolean delete() throws IOException {
+        return Files.deleteIfExists(filePath);
+    }
+
+    /**
+     * Reads a JSON object file.
+     * @param path The file
+     * @return The entries in file order, or an empty map if the file does not exist
+     * @throws IOException if the file cannot be read or is not a JSON object
+     */
+    static Map<String, JsonElement> read(Path path) throws IOException {
+        Map<String, JsonElement> entries = new LinkedHashMap<>();
+        if (!Files.exists(path)) {
+            return entries;
+        }
+        String content = Files.readString(path);
+        try {
+            for (Map.Entry<String, JsonElement> entry : JsonParser.parseString(content).getAsJsonObject().entrySet()) {
+                entries.put(entry.getKey(), entry.getValue());
+            }
+        } catch (RuntimeException e) {
+            throw new IOException("Invalid JSON in " + path.getFileName() + ": " + e.getMessage(), e);
+        }
+        return entries;
+    }
+
+    /**
+     * Serializes entries as one JSON object.
+     * @param gson The Gson instance (controls pretty printing)
+     * @param entries The entries
+     * @return The JSON text
+     */
+    static String serialize(Gson gson, Map<String, JsonElement> entries) {
+        StringWriter out = new StringWriter();
+        try (JsonWriter writer = gson.newJsonWriter(out)) {
+            writer.beginObject();
+            for (Map.Entry<String, JsonElement> entry : entries.entrySet()) {
+                writer.name(entry.getKey());
+                gson.toJson(entry.getValue(), writer);
+            }
+            writer.endObject();
+        } catch (IOException e) {
+            // StringWriter does not throw
+            throw new IllegalStateException(e);
+        }
+        return out.toString();
+    }
+}
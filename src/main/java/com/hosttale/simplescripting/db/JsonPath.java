@@ -0,0 +1,226 @@
+package com.hosttale.simplescripting.db;
+
+import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Paths to nested fields of a value, such as {@code homes["my base"].x} or
+ * {@code history[0]}: names separated by dots, with array indexes and quoted
+ * names (for names holding dots, brackets or quotes) in brackets.
+ * Changes copy only the objects and arrays along the path and share the rest
+ * with the old value, which stays as it was, so readers holding it and the
+ * index maintenance that compares old and new values are not affected.
+ */
+final class JsonPath {
+
+    private JsonPath() {
+    }
+
+    /**
+     * Splits a path into its steps.
+     * @param path The path
+     * @return Names as strings and array indexes as integers
+     * @throws IllegalArgumentException if the path is empty or malformed
+     */
+    static List<Object> parse(String path) {
+        List<Object> steps = new ArrayList<>();
+        int i = 0;
+        int length = path.length();
+        while (i < length) {
+            char c = path.charAt(i);
+            if (c == '[') {
+                i = parseBracket(path, i + 1, steps);
+            } else {
+                if (c == '.') {
+                    if (steps.isEmpty()) {
+                        throw invalid(path, "starts with a dot");
+                    }
+                    i++;
+                }
+                int start = i;
+                while (i < length && path.charAt(i) != '.' && path.charAt(i) != '[') {
+                    i++;
+                }
+                if (i == start) {
+                    throw invalid(path, "has an empty name");
+                }
+                steps.add(path.substring(start, i));
+            }
+        }
+        if (steps.isEmpty()) {
+            throw invalid(path, "is empty");
+        }
+        return steps;
+    }
+
+    /**
+     * Sets the field at a path, creating missing objects on the way.
+     * An index equal to an array's size appends to it.
+     * @param root The current value, or null if absent
+     * @param steps The parsed path
+     * @param value The value to set
+     * @return The new value
+     * @throws IllegalArgumentException if the path crosses a value that is not an object or array, or an index is out of range
+     */
+    static JsonElement set(JsonElement root, List<Object> steps, JsonElement value) {
+        return set(root, steps, 0, value);
+    }
+
+    /**
+     * Removes the field at a path. Array elements after a removed one move down.
+     * @param root The current value, or null if absent
+     * @param steps The parsed path
+     * @return The new value, or root itself if there was nothing to remove
+     */
+    static JsonElement remove(JsonElement root, List<Object> steps) {
+        return remove(root, steps, 0);
+    }
+
+    private static JsonElement set(JsonElement current, List<Object> steps, int depth, JsonElement value) {
+        if (depth == steps.size()) {
+            return value;
+        }
+        Object step = steps.get(depth);
+        if (step instanceof String name) {
+            if (current == null || current.isJsonNull()) {
+                current = new JsonObject();
+            }
+            if (!current.isJsonObject()) {
+                throw new IllegalArgumentException("Cannot set " + name + ": " + describe(steps, depth) + " is not an object");
+            }
+            JsonObject copy = copy(current.getAsJsonObject());
+            copy.add(name, set(copy.get(name), steps, depth + 1, value));
+            return copy;
+        }
+        int index = (Integer) step;
+        if (current == null || !current.isJsonArray()) {
+            throw new IllegalArgumentException("Cannot set [" + index + "]: " + describe(steps, depth) + " is not an array");
+        }
+        JsonArray copy = copy(current.getAsJsonArray());
+        if (index < copy.size()) {
+            copy.set(index, set(copy.get(index), steps, depth + 1, value));
+        } else if (index == copy.size()) {
+            copy.add(set(null, steps, depth + 1, value));
+        } else {
+            throw new IllegalArgumentException("Index " + index + " is out of range for " + describe(steps, depth) + " of size " + copy.size());
+        }
+        return copy;
+    }
+
+    private static JsonElement remove(JsonElement current, List<Object> steps, int depth) {
+        Object step = steps.get(depth);
+        boolean last = depth == steps.size() - 1;
+        if (step instanceof String name) {
+            if (current == null || !current.isJsonObject() || !current.getAsJsonObject().has(name)) {
+                return current;
+            }
+            JsonElement child = current.getAsJsonObject().get(name);
+            JsonElement updated = last ? null : remove(child, steps, depth + 1);
+            if (!last && updated == child) {
+                return current;
+            }
+            JsonObject copy = copy(current.getAsJsonObject());
+            if (last) {
+                copy.remove(name);
+            } else {
+                copy.add(name, updated);
+            }
+            return copy;
+        }
+        int index = (Integer) step;
+        if (current == null || !current.isJsonArray() || index >= current.getAsJsonArray().size()) {
+            return current;
+        }
+        JsonElement child = current.getAsJsonArray().get(index);
+        JsonElement updated = last ? null : remove(child, steps, depth + 1);
+        if (!last && updated == child) {
+            return current;
+        }
+        JsonArray copy = copy(current.getAsJsonArray());
+        if (last) {
+            copy.remove(index);
+        } else {
+            copy.set(index, updated);
+        }
+        return copy;
+    }
+
+    private static int parseBracket(String path, int i, List<Object> steps) {
+        if (i >= path.length()) {
+            throw invalid(path, "ends inside brackets");
+        }
+        char c = path.charAt(i);
+        int end;
+        if (c == '"' || c == '\'') {
+            StringBuilder name = new StringBuilder();
+            end = i + 1;
+            while (end < path.length() && path.charAt(end) != c) {
+                if (path.charAt(end) == '\\' && end + 1 < path.length()) {
+                    end++;
+                }
+                name.append(path.charAt(end));
+                end++;
+            }
+            if (end >= path.length()) {
+                throw invalid(path, "has an unclosed quote");
+            }
+            steps.add(name.toString());
+            end++;
+        } else {
+            end = i;
+            while (end < path.length() && Character.isDigit(path.charAt(end))) {
+                end++;
+            }
+            if (end == i || end - i > 9) {
+                throw invalid(path, "has an invalid index");
+            }
+            steps.add(Integer.parseInt(path.substring(i, end)));
+        }
+        if (end >= path.length() || path.charAt(end) != ']') {
+            throw invalid(path, "has an unclosed bracket");
+        }
+        return end + 1;
+    }
+
+    private static JsonObject copy(JsonObject object) {
+        JsonObject copy = new JsonObject();
+        for (Map.Entry<String, JsonElement> entry : object.entrySet()) {
+            copy.add(entry.getKey(), entry.getValue());
+        }
+        return copy;
+    }
+
+    private static JsonArray copy(JsonArray array) {
+        JsonArray copy = new JsonArray(array.size());
+        copy.addAll(array);
+        return copy;
+    }
+
+    private static String describe(List<Object> steps, int depth) {
+        if (depth == 0) {
+            return "the value";
+        }
+        StringBuilder path = new StringBuilder();
+        for (int i = 0; i < depth; i++) {
+            Object step = steps.get(i);
+            if (step instanceof Integer) {
+                path.append('[').append(step).append(']');
+            } else {
+                if (i > 0) {
+                    path.append('.');
+                }
+                path.append(step);
+            }
+        }
+        return path.toString();
+    }
+
+    private static IllegalArgumentException invalid(String path, String problem) {
+        return new IllegalArgumentException("Path " + path + " " + problem);
+    }
+}
@@ -0,0 +1,421 @@
+package com.hosttale.simplescripting.db;
+
+import com.google.gson.JsonElement;
+import com.hosttale.simplescripting.util.Logger;
+
+import javax.annotation.Nonnull;
+import java.io.IOException;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Keeps the DB records of each player in memory while they are online.
+ * Scripts register the collections that hold per-player records and where
+ * the player's UUID sits in their keys. When a player joins, their records
+ * are read from every registered collection on the DB I/O threads, and reads
+ * of those keys are then answered from memory. When they quit, the collections
+ * are flushed and the records move to a bounded LRU of offline players, so
+ * lookups of players who just left stay cheap while memory follows the
+ * players online.
+ * Every write to a cached key drops it from the cache, so the next read sees
+ * the new value whichever API wrote it.
+ */
+public class PlayerDataCache {
+    public static final String UUID_PLACEHOLDER = "{uuid}";
+    public static final int DEFAULT_MAX_OFFLINE_PLAYERS = 128;
+
+    private static final int UUID_LENGTH = 36;
+    private static final int PRELOAD_PAGE_SIZE = 100;
+    // Cached for keys known to be absent, so misses are not read again
+    private static final Object MISSING = new Object();
+
+    private final Database database;
+    private final Logger logger;
+    // Registered key patterns by collection
+    private final Map<String, List<KeyPattern>> patterns;
+    // Every cached player, online or not
+    private final Map<UUID, PlayerEntry> players;
+    // The offline ones, least recently used first; guards moves between online and offline
+    private final LinkedHashMap<UUID, PlayerEntry> offline;
+    private volatile int maxOfflinePlayers;
+
+    PlayerDataCache(Database database, Logger logger) {
+        this.database = database;
+        this.logger = logger;
+        this.patterns = new ConcurrentHashMap<>();
+        this.players = new ConcurrentHashMap<>();
+        this.offline = new LinkedHashMap<>(16, 0.75f, true);
+        this.maxOfflinePlayers = DEFAULT_MAX_OFFLINE_PLAYERS;
+    }
+
+    /**
+     * Registers a collection whose keys are player UUIDs.
+     * @param fileName The collection name
+     */
+    public void register(@Nonnull String fileName) {
+        register(fileName, UUID_PLACEHOLDER);
+    }
+
+    /**
+     * Registers a collection holding per-player records.
+     * @param fileName The collection name
+     * @param pattern The key with {uuid} where the player's UUID goes (e.g.,
+     *                "player:{uuid}"); a trailing * matches any rest (e.g.,
+     *                "cooldown:{uuid}:*" for one key per action)
+     * @throws IllegalArgumentException if the pattern has no {uuid}, or a * elsewhere than at the end
+     */
+    public void register(@Nonnull String fileName, @Nonnull String pattern) {
+        KeyPattern keyPattern = KeyPattern.parse(pattern);
+        List<KeyPattern> registered = patterns.computeIfAbsent(fileName, name -> new CopyOnWriteArrayList<>());
+        if (!registered.contains(keyPattern)) {
+            registered.add(keyPattern);
+        }
+    }
+
+    /**
+     * Sets how many offline players keep their records cached.
+     * @param maxOfflinePlayers The limit; 0 evicts players as soon as they quit
+     * @throws IllegalArgumentException if the limit is negative
+     */
+    public void setMaxOfflinePlayers(int maxOfflinePlayers) {
+        if (maxOfflinePlayers < 0) {
+            throw new IllegalArgumentException("Offline player limit cannot be negative: " + maxOfflinePlayers);
+        }
+        this.maxOfflinePlayers = maxOfflinePlayers;
+        synchronized (offline) {
+            evictOffline();
+        }
+    }
+
+    /**
+     * Gets how many offline players keep their records cached.
+     * @return The limit
+     */
+    public int getMaxOfflinePlayers() {
+        return maxOfflinePlayers;
+    }
+
+    /**
+     * Gets the number of players whose records are cached.
+     * @return Online players plus cached offline players
+     */
+    public int getCachedPlayerCount() {
+        return players.size();
+    }
+
+    /**
+     * Starts caching a player's records and reads them in the background.
+     * Called by the event manager when a player joins.
+     * @param uuid The player
+     */
+    public void playerJoined(@Nonnull UUID uuid) {
+        PlayerEntry entry;
+        synchronized (offline) {
+            entry = players.computeIfAbsent(uuid, id -> new PlayerEntry());
+            offline.remove(uuid);
+            entry.online = true;
+        }
+        if (patterns.isEmpty()) {
+            return;
+        }
+        PlayerEntry joined = entry;
+        try {
+            database.getIoExecutor().execute(() -> preload(uuid, joined));
+        } catch (RejectedExecutionException e) {
+            // Closing
+        }
+    }
+
+    /**
+     * Writes a player's changes and moves their records to the offline LRU.
+     * Called by the event manager when a player quits.
+     * @param uuid The player
+     */
+    public void playerQuit(@Nonnull UUID uuid) {
+        synchronized (offline) {
+            PlayerEntry entry = players.get(uuid);
+            if (entry == null || !entry.online) {
+                return;
+            }
+            entry.online = false;
+            offline.put(uuid, entry);
+            evictOffline();
+        }
+        try {
+            database.getIoExecutor().execute(() -> {
+                for (String fileName : patterns.keySet()) {
+                    database.flush(fileName);
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            // Closing: the database flushes everything itself
+        }
+    }
+
+    /**
+     * Reads a value, from the cache if the key is a registered player's.
+     * @param store The collection
+     * @param key The key
+     * @return The value, or null if not found or expired
+     */
+    JsonElement get(DocumentStore store, String key) {
+        UUID uuid = ownerOf(store.getName(), key);
+        if (uuid == null) {
+            return store.get(key);
+        }
+        PlayerEntry entry = entryOf(uuid);
+        Object cached = entry.get(store.getName(), key);
+        JsonElement stored;
+        if (cached == null) {
+            long epoch = entry.epoch.get();
+            stored = store.getStored(key);
+            entry.install(store.getName(), key, stored, epoch);
+        } else {
+            stored = cached == MISSING ? null : (JsonElement) cached;
+        }
+        return Expiry.visible(stored, System.currentTimeMillis());
+    }
+
+    /**
+     * Drops a key that was written. Called by the database on every write.
+     * @param fileName The collection name
+     * @param key The key
+     */
+    void invalidate(String fileName, String key) {
+        if (!patterns.containsKey(fileName)) {
+            return;
+        }
+        UUID uuid = ownerOf(fileName, key);
+        if (uuid == null) {
+            return;
+        }
+        PlayerEntry entry = players.get(uuid);
+        if (entry != null) {
+            entry.invalidate(fileName, key);
+        }
+    }
+
+    /**
+     * Drops every cached key of a collection, e.g., after it was deleted.
+     * @param fileName The collection name
+     */
+    void invalidateAll(String fileName) {
+        if (!patterns.containsKey(fileName)) {
+            return;
+        }
+        for (PlayerEntry entry : players.values()) {
+            entry.invalidateAll(fileName);
+        }
+    }
+
+    /**
+     * Forgets every player.
+     */
+    void clear() {
+        synchronized (offline) {
+            players.clear();
+            offline.clear();
+        }
+    }
+
+    private void preload(UUID uuid, PlayerEntry entry) {
+        for (Map.Entry<String, List<KeyPattern>> registered : patterns.entrySet()) {
+            String fileName = registered.getKey();
+            try {
+                DocumentStore store = database.open(fileName);
+                for (KeyPattern pattern : registered.getValue()) {
+                    if (!entry.online || players.get(uuid) != entry) {
+                        // Quit while loading
+                        return;
+                    }
+                    String key = pattern.keyOf(uuid);
+                    if (!pattern.prefix) {
+                        long epoch = entry.epoch.get();
+                        entry.install(fileName, key, store.getStored(key), epoch);
+                        continue;
+                    }
+                    String after = null;
+                    List<Map.Entry<String, JsonElement>> page;
+                    do {
+                        long epoch = entry.epoch.get();
+                        page = store.scanStored(key, after, PRELOAD_PAGE_SIZE);
+                        for (Map.Entry<String, JsonElement> stored : page) {
+                            entry.install(fileName, stored.getKey(), stored.getValue(), epoch);
+                            after = stored.getKey();
+                        }
+                    } while (page.size() == PRELOAD_PAGE_SIZE);
+                }
+            } catch (IOException | RuntimeException e) {
+                logger.warning("Failed to load DB collection " + fileName + " for player " + uuid + ": " + e.getMessage());
+            }
+        }
+    }
+
+    private PlayerEntry entryOf(UUID uuid) {
+        PlayerEntry entry = players.get(uuid);
+        if (entry != null && entry.online) {
+            return entry;
+        }
+        synchronized (offline) {
+            entry = players.get(uuid);
+            if (entry == null) {
+                entry = new PlayerEntry();
+                players.put(uuid, entry);
+                offline.put(uuid, entry);
+                evictOffline();
+            } else if (!entry.online) {
+                // Marks it recently used
+                offline.get(uuid);
+            }
+            return entry;
+        }
+    }
+
+    /**
+     * Removes the least recently used offline players over the limit. Caller holds the offline lock.
+     */
+    private void evictOffline() {
+        Iterator<Map.Entry<UUID, PlayerEntry>> eldest = offline.entrySet().iterator();
+        for (int excess = offline.size() - maxOfflinePlayers; excess > 0; excess--) {
+            Map.Entry<UUID, PlayerEntry> evicted = eldest.next();
+            eldest.remove();
+            players.remove(evicted.getKey(), evicted.getValue());
+        }
+    }
+
+    private UUID ownerOf(String fileName, String key) {
+        List<KeyPattern> registered = patterns.get(fileName);
+        if (registered == null) {
+            return null;
+        }
+        for (KeyPattern pattern : registered) {
+            UUID uuid = pattern.match(key);
+            if (uuid != null) {
+                return uuid;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * The cached records of one player.
+     */
+    private static class PlayerEntry {
+        // Stored values (MISSING if absent) by collection and key
+        final Map<String, Map<String, Object>> values = new ConcurrentHashMap<>();
+        // Counts invalidations, so a read that raced a write does not cache the old value
+        final AtomicLong epoch = new AtomicLong();
+        volatile boolean online;
+
+        Object get(String fileName, String key) {
+            Map<String, Object> collection = values.get(fileName);
+            return collection != null ? collection.get(key) : null;
+        }
+
+        /**
+         * Caches a value read from the store.
+         * @param epoch The epoch read before the value was
+         */
+        void install(String fileName, String key, JsonElement stored, long epoch) {
+            Map<String, Object> collection = values.computeIfAbsent(fileName, name -> new ConcurrentHashMap<>());
+            Object value = stored != null ? stored : MISSING;
+            collection.putIfAbsent(key, value);
+            // A write in between may have been dropped before this value went in: undo it
+            if (this.epoch.get() != epoch) {
+                collection.remove(key, value);
+            }
+        }
+
+        void invalidate(String fileName, String key) {
+            // Counted first, so install sees it whenever its value may outlive the removal
+            epoch.incrementAndGet();
+            Map<String, Object> collection = values.get(fileName);
+            if (collection != null) {
+                collection.remove(key);
+            }
+        }
+
+        void invalidateAll(String fileName) {
+            epoch.incrementAndGet();
+            values.remove(fileName);
+        }
+    }
+
+    /**
+     * Where the UUID sits in the keys of a collection.
+     */
+    private static class KeyPattern {
+        final String before;
+        final String after;
+        final boolean prefix;
+
+        KeyPattern(String before, String after, boolean prefix) {
+            this.before = before;
+            this.after = after;
+            this.prefix = prefix;
+        }
+
+        static KeyPattern parse(String pattern) {
+            int at = pattern.indexOf(UUID_PLACEHOLDER);
+            if (at < 0 || pattern.indexOf(UUID_PLACEHOLDER, at + 1) >= 0) {
+                throw new IllegalArgumentException("Player key pattern needs one " + UUID_PLACEHOLDER + ": " + pattern);
+            }
+            boolean prefix = pattern.endsWith("*");
+            String after = pattern.substring(at + UUID_PLACEHOLDER.length(), pattern.length() - (prefix ? 1 : 0));
+            if (pattern.substring(0, at).contains("*") || after.contains("*")) {
+                throw new IllegalArgumentException("Player key pattern may only end with *: " + pattern);
+            }
+            return new KeyPattern(pattern.substring(0, at), after, prefix);
+        }
+
+        /**
+         * Gets the key of a player; for a prefix pattern, the prefix of their keys.
+         */
+        String keyOf(UUID uuid) {
+            return before + uuid + after;
+        }
+
+        /**
+         * Finds the player a key belongs to.
+         * @return The UUID, or null if the key does not match
+         */
+        UUID match(String key) {
+            int end = before.length() + UUID_LENGTH;
+            if (key.length() < end + after.length() || !key.startsWith(before)) {
+                return null;
+            }
+            boolean rest = prefix ? key.startsWith(after, end) : key.length() == end + after.length() && key.endsWith(after);
+            if (!rest) {
+                return null;
+            }
+            try {
+                UUID uuid = UUID.fromString(key.substring(before.length(), end));
+                // Keys are compared as written: only the canonical form is the player's
+                return keyOf(uuid).regionMatches(0, key, 0, end) ? uuid : null;
+            } catch (IllegalArgumentException e) {
+                return null;
+            }
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof KeyPattern)) {
+                return false;
+            }
+            KeyPattern other = (KeyPattern) o;
+            return before.equals(other.before) && after.equals(other.after) && prefix == other.prefix;
+        }
+
+        @Override
+        public int hashCode() {
+            return (before.hashCode() * 31 + after.hashCode()) * 31 + (prefix ? 1 : 0);
+        }
+    }
+}
@@ -0,0 +1,36 @@
+package com.hosttale.simplescripting.db;
+
+import com.google.gson.JsonElement;
+
+import java.util.Collections;
+import java.util.Map;
+
+/**
+ * One page of a key scan: entries in key order and where the next page starts.
+ */
+public final class ScanPage {
+    private final Map<String, JsonElement> entries;
+    private final String cursor;
+
+    ScanPage(Map<String, JsonElement> entries, String cursor) {
+        this.entries = Collections.unmodifiableMap(entries);
+        this.cursor = cursor;
+    }
+
+    /**
+     * Gets the entries of this page. May hold fewer entries than the limit,
+     * even none, when expired keys were skipped; keep going while there is a cursor.
+     * @return Key to value, in key order
+     */
+    public Map<String, JsonElement> getEntries() {
+        return entries;
+    }
+
+    /**
+     * Gets the cursor to pass to the next scan.
+     * @return The last key looked at, or null if the scan is complete
+     */
+    public String getCursor() {
+        return cursor;
+    }
+}
@@ -0,0 +1,156 @@
+package com.hosttale.simplescripting.db;
+
+import com.google.gson.JsonElement;
+import com.google.gson.JsonPrimitive;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableSet;
+import java.util.TreeSet;
+
+/**
+ * Index of the keys of a collection by the value of one field of their documents.
+ * Only strings, numbers and booleans are indexed; for an array every element
+ * is. Numbers are indexed by value, so 5 and 5.0 match. Not thread-safe: the
+ * owning store guards it with the lock that guards its entries.
+ */
+final class SecondaryIndex {
+    private final String field;
+    private final String[] path;
+    private final Map<String, NavigableSet<String>> keysByValue;
+    private boolean built;
+
+    /**
+     * @param field Dot-separated path of the field (e.g., "location.world"),
+     *              or empty to index whole values
+     */
+    SecondaryIndex(String field) {
+        this.field = field;
+        this.path = field.isEmpty() ? new String[0] : field.split("\\.");
+        this.keysByValue = new HashMap<>();
+    }
+
+    String getField() {
+        return field;
+    }
+
+    /**
+     * Checks if the index holds every document yet. Stores fill it on the first query.
+     * @return true once built
+     */
+    boolean isBuilt() {
+        return built;
+    }
+
+    void setBuilt(boolean built) {
+        this.built = built;
+        if (!built) {
+            keysByValue.clear();
+        }
+    }
+
+    /**
+     * Updates the index for a write. Does nothing until the index is built.
+     * @param key The key
+     * @param previous The stored value before the write, or null
+     * @param value The stored value after the write, or null if deleted
+     */
+    void update(String key, JsonElement previous, JsonElement value) {
+        if (!built) {
+            return;
+        }
+        for (String indexed : indexedValues(previous)) {
+            NavigableSet<String> keys = keysByValue.get(indexed);
+            if (keys != null && keys.remove(key) && keys.isEmpty()) {
+                keysByValue.remove(indexed);
+            }
+        }
+        add(key, value);
+    }
+
+    /**
+     * Adds a document while building the index.
+     * @param key The key
+     * @param value The stored value
+     */
+    void add(String key, JsonElement value) {
+        for (String indexed : indexedValues(value)) {
+            keysByValue.computeIfAbsent(indexed, v -> new TreeSet<>()).add(key);
+        }
+    }
+
+    /**
+     * Finds the keys whose field has a value.
+     * @param value The value
+     * @return A copy of the matching keys in key order; may include expired ones
+     */
+    List<String> find(JsonElement value) {
+        String indexed = indexValue(value);
+        NavigableSet<String> keys = indexed != null ? keysByValue.get(indexed) : null;
+        return keys != null ? new ArrayList<>(keys) : Collections.emptyList();
+    }
+
+    /**
+     * Checks if a document's field has a value, without the index.
+     * @param document The value as scripts see it
+     * @param value The value to look for
+     * @return true if the document would be found by {@link #find}
+     */
+    boolean matches(JsonElement document, JsonElement value) {
+        String indexed = indexValue(value);
+        return indexed != null && indexedValues(document).contains(indexed);
+    }
+
+    private List<String> indexedValues(JsonElement stored) {
+        JsonElement value = Expiry.unwrap(stored);
+        for (String name : path) {
+            if (value == null || !value.isJsonObject()) {
+                return Collections.emptyList();
+            }
+            value = value.getAsJsonObject().get(name);
+        }
+        if (value == null) {
+            return Collections.emptyList();
+        }
+        List<String> indexed = new ArrayList<>(1);
+        if (value.isJsonArray()) {
+            for (JsonElement element : value.getAsJsonArray()) {
+                String elementValue = indexValue(element);
+                if (elementValue != null) {
+                    indexed.add(elementValue);
+                }
+            }
+        } else {
+            String single = indexValue(value);
+            if (single != null) {
+                indexed.add(single);
+            }
+        }
+        return indexed;
+    }
+
+    /**
+     * Turns a primitive into its index entry, tagged with its type so "5" and 5 differ.
+     */
+    private static String indexValue(JsonElement value) {
+        if (value == null || !value.isJsonPrimitive()) {
+            return null;
+        }
+        JsonPrimitive primitive = value.getAsJsonPrimitive();
+        if (primitive.isBoolean()) {
+            return primitive.getAsBoolean() ? "b:true" : "b:false";
+        }
+        if (primitive.isNumber()) {
+            try {
+                return "n:" + primitive.getAsBigDecimal().stripTrailingZeros().toPlainString();
+            } catch (NumberFormatException e) {
+                // NaN or infinity
+                return "n:" + primitive.getAsDouble();
+            }
+        }
+        return "s:" + primitive.getAsString();
+    }
+}
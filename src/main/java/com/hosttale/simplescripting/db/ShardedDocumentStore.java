@@ -0,0 +1,476 @@
+package com.hosttale.simplescripting.db;
+
+import com.google.gson.Gson;
+import com.google.gson.JsonElement;
+import com.hosttale.simplescripting.util.Logger;
+
+import javax.annotation.Nonnull;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeSet;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Function;
+import java.util.function.UnaryOperator;
+import java.util.stream.Stream;
+
+/**
+ * Collection split into several files by key.
+ * Shards live in a directory named after the collection and are loaded the
+ * first time one of their keys is used, so looking up a key reads one small
+ * shard instead of the whole collection. Each shard is a regular collection
+ * of the configured engine and is flushed on its own.
+ * An unsharded collection with the same name is split into shards on first
+ * load, and so are shards written with a different shard count.
+ * Each shard indexes its own keys; a query asks every shard.
+ */
+public class ShardedDocumentStore extends DocumentStore {
+    public static final String DIRECTORY_SUFFIX = ".shards";
+    public static final String SHARD_BY_HASH = "hash";
+    public static final String SHARD_BY_UUID = "uuid";
+    public static final int MAX_SHARDS = 4096;
+
+    // Records the shard count and key of a directory; written last, so a directory without it is incomplete
+    private static final String LAYOUT_FILE = ".layout";
+    // Shards of the previous layout while they are split again
+    private static final String PREVIOUS_SUFFIX = ".previous";
+
+    private final Path directory;
+    private final int shardCount;
+    private final String shardBy;
+    private final boolean byUuid;
+    // Hex digits in a shard name, and in the UUID prefix that picks it
+    private final int nameDigits;
+    private final Function<String, DocumentStore> shardFactory;
+    private final String engineName;
+    private final Gson gson;
+    private final Logger logger;
+    private final AtomicReferenceArray<DocumentStore> shards;
+    // Shards are only flushed or staged through this store, under this lock
+    private final ReentrantLock commitLock;
+    // Declared index fields, given to each shard as it loads
+    private final List<String> indexFields;
+    private volatile boolean dropped;
+
+    /**
+     * @param name The collection name
+     * @param directory Directory holding the shard files
+     * @param shardCount Number of shards
+     * @param shardBy "hash" or "uuid"
+     * @param shardFactory Creates the unloaded store of a shard (or of the unsharded collection) by name
+     * @param gson Gson used to serialize the whole collection
+     * @param logger Logger
+     * @throws IllegalArgumentException if shardBy is unknown, or "uuid" with a shard count that is not a power of 16
+     */
+    ShardedDocumentStore(String name, Path directory, int shardCount, String shardBy,
+                         Function<String, DocumentStore> shardFactory, Gson gson, Logger logger) {
+        super(name);
+        this.directory = directory;
+        this.shardCount = shardCount;
+        this.shardBy = shardBy;
+        this.shardFactory = shardFactory;
+        this.engineName = shardFactory.apply(name).getEngineName();
+        this.gson = gson;
+        this.logger = logger;
+        this.shards = new AtomicReferenceArray<>(shardCount);
+        this.commitLock = new ReentrantLock();
+        this.indexFields = new CopyOnWriteArrayList<>();
+        this.nameDigits = Math.max(1, (32 - Integer.numberOfLeadingZeros(shardCount - 1) + 3) / 4);
+
+        if (SHARD_BY_UUID.equals(shardBy)) {
+            if (1 << (4 * nameDigits) != shardCount) {
+                throw new IllegalArgumentException("Sharding by UUID needs 16, 256 or 4096 shards: " + shardCount);
+            }
+            this.byUuid = true;
+        } else if (SHARD_BY_HASH.equals(shardBy)) {
+            this.byUuid = false;
+        } else {
+            throw new IllegalArgumentException("Unknown DB shard key: " + shardBy);
+        }
+    }
+
+    @Override
+    void load() throws IOException {
+        Path layoutPath = directory.resolve(LAYOUT_FILE);
+        Path previous = directory.resolveSibling(directory.getFileName() + PREVIOUS_SUFFIX);
+        if (Files.exists(layoutPath)) {
+            if (Files.readString(layoutPath).trim().equals(layout())) {
+                // Left over if the server stopped right after splitting
+                deleteDirectory(previous);
+                return;
+            }
+            deleteDirectory(previous);
+            Files.move(directory, previous, StandardCopyOption.ATOMIC_MOVE);
+        } else {
+            // Interrupted split: redone from the source, which is still intact
+            deleteDirectory(directory);
+        }
+
+        DocumentStore source;
+        if (Files.exists(previous.resolve(LAYOUT_FILE))) {
+            String[] layout = Files.readString(previous.resolve(LAYOUT_FILE)).trim().split(" ");
+            source = new ShardedDocumentStore(getName(), previous, Integer.parseInt(layout[0]), layout[1], shardFactory, gson, logger);
+        } else {
+            source = shardFactory.apply(getName());
+        }
+        source.load();
+        Files.createDirectories(directory);
+
+        int copied = 0;
+        if (source.exists()) {
+            for (String key : source.keys()) {
+                JsonElement value = source.getStored(key);
+                if (value != null) {
+                    shardOf(key).put(key, value);
+                    copied++;
+                }
+            }
+        }
+        // Written before the source is deleted, so a failure leaves the source authoritative
+        flush();
+        StagedWrite.writeSynced(layoutPath, layout().getBytes(StandardCharsets.UTF_8));
+        source.drop();
+        if (copied > 0) {
+            logger.info("Split " + copied + " keys of DB collection " + getName() + " into " + shardCount + " shards");
+        }
+    }
+
+    @Override
+    public String getEngineName() {
+        return engineName;
+    }
+
+    @Override
+    void setDurability(Durability durability) {
+        super.setDurability(durability);
+        for (DocumentStore shard : loadedShards()) {
+            shard.setDurability(durability);
+        }
+    }
+
+    @Override
+    JsonElement getStored(@Nonnull String key) {
+        return shardOf(key).getStored(key);
+    }
+
+    @Override
+    public void put(@Nonnull String key, @Nonnull JsonElement value) {
+        shardOf(key).put(key, value);
+    }
+
+    @Override
+    public boolean remove(@Nonnull String key) {
+        return shardOf(key).remove(key);
+    }
+
+    @Override
+    JsonElement updateStored(@Nonnull String key, @Nonnull UnaryOperator<JsonElement> function) {
+        return shardOf(key).updateStored(key, function);
+    }
+
+    @Override
+    public long increment(@Nonnull String key, long delta) {
+        return shardOf(key).increment(key, delta);
+    }
+
+    @Override
+    int removeExpired(@Nonnull Collection<String> keys, long now) {
+        // Left in the reaper after a drop or migration; the shards are gone
+        return dropped ? 0 : super.removeExpired(keys, now);
+    }
+
+    @Override
+    public List<String> keys() {
+        List<String> keys = new ArrayList<>();
+        for (int i = 0; i < shardCount; i++) {
+            keys.addAll(shard(i).keys());
+        }
+        return keys;
+    }
+
+    @Override
+    List<Map.Entry<String, JsonElement>> scanStored(@Nonnull String prefix, String after, int limit) {
+        // Every shard holds part of the range: merge their first pages
+        List<Map.Entry<String, JsonElement>> merged = new ArrayList<>();
+        for (int i = 0; i < shardCount; i++) {
+            merged.addAll(shard(i).scanStored(prefix, after, limit));
+        }
+        merged.sort(Map.Entry.comparingByKey());
+        return merged.size() > limit ? new ArrayList<>(merged.subList(0, limit)) : merged;
+    }
+
+    @Override
+    void addIndex(@Nonnull String field) {
+        synchronized (shards) {
+            if (!indexFields.contains(field)) {
+                indexFields.add(field);
+            }
+            for (DocumentStore shard : loadedShards()) {
+                shard.addIndex(field);
+            }
+        }
+    }
+
+    @Override
+    List<String> queryKeys(@Nonnull String field, @Nonnull JsonElement value) {
+        if (!indexFields.contains(field)) {
+            throw new IllegalArgumentException("No index on field \"" + field + "\" of collection " + getName());
+        }
+        TreeSet<String> keys = new TreeSet<>();
+        for (int i = 0; i < shardCount; i++) {
+            keys.addAll(shard(i).queryKeys(field, value));
+        }
+        return new ArrayList<>(keys);
+    }
+
+    @Override
+    public int size() {
+        int size = 0;
+        for (int i = 0; i < shardCount; i++) {
+            size += shard(i).size();
+        }
+        return size;
+    }
+
+    @Override
+    public boolean exists() {
+        if (dropped) {
+            return false;
+        }
+        for (DocumentStore shard : loadedShards()) {
+            if (shard.exists()) {
+                return true;
+            }
+        }
+        // Unloaded shards exist if their files do
+        try (Stream<Path> files = Files.list(directory)) {
+            return files.anyMatch(path -> !path.getFileName().toString().equals(LAYOUT_FILE));
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    @Override
+    public boolean isDirty() {
+        for (DocumentStore shard : loadedShards()) {
+            if (shard.isDirty()) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    @Override
+    public String toJson() {
+        Map<String, JsonElement> entries = new LinkedHashMap<>();
+        for (int i = 0; i < shardCount; i++) {
+            DocumentStore shard = shard(i);
+            for (String key : shard.keys()) {
+                JsonElement value = shard.getStored(key);
+                if (value != null) {
+                    entries.put(key, value);
+                }
+            }
+        }
+        return JsonFileEngine.serialize(gson, entries);
+    }
+
+    @Override
+    public void flush() throws IOException {
+        commitLock.lock();
+        try {
+            IOException failure = null;
+            for (DocumentStore shard : loadedShards()) {
+                try {
+                    shard.flush();
+                } catch (IOException e) {
+                    // The other shards are still written
+                    if (failure == null) {
+                        failure = e;
+                    }
+                }
+            }
+            if (failure != null) {
+                throw failure;
+            }
+        } finally {
+            commitLock.unlock();
+        }
+    }
+
+    @Override
+    ReentrantLock commitLock() {
+        return commitLock;
+    }
+
+    @Override
+    List<StagedWrite> stage() throws IOException {
+        List<StagedWrite> staged = new ArrayList<>();
+        try {
+            for (DocumentStore shard : loadedShards()) {
+                staged.addAll(shard.stage());
+            }
+        } catch (IOException | RuntimeException e) {
+            for (StagedWrite write : staged) {
+                write.abort();
+            }
+            throw e;
+        }
+        return staged;
+    }
+
+    @Override
+    void maintain() throws IOException {
+        commitLock.lock();
+        try {
+            for (DocumentStore shard : loadedShards()) {
+                shard.maintain();
+            }
+        } finally {
+            commitLock.unlock();
+        }
+    }
+
+    @Override
+    void close() {
+        commitLock.lock();
+        try {
+            for (DocumentStore shard : loadedShards()) {
+                shard.close();
+            }
+        } finally {
+            commitLock.unlock();
+        }
+    }
+
+    @Override
+    boolean drop() throws IOException {
+        commitLock.lock();
+        try {
+            boolean existed = exists();
+            dropped = true;
+            for (DocumentStore shard : loadedShards()) {
+                shard.drop();
+            }
+            return deleteFiles(directory) || existed;
+        } finally {
+            commitLock.unlock();
+        }
+    }
+
+    /**
+     * Deletes the shards of a collection, including any left from a previous layout.
+     * @param directory The shard directory
+     * @return true if there were shards
+     * @throws IOException if they cannot be deleted
+     */
+    static boolean deleteFiles(Path directory) throws IOException {
+        boolean deleted = deleteDirectory(directory);
+        return deleteDirectory(directory.resolveSibling(directory.getFileName() + PREVIOUS_SUFFIX)) || deleted;
+    }
+
+    /**
+     * Deletes a directory and everything in it.
+     * @param directory The directory
+     * @return true if it existed
+     * @throws IOException if it cannot be deleted
+     */
+    static boolean deleteDirectory(Path directory) throws IOException {
+        if (!Files.isDirectory(directory)) {
+            return false;
+        }
+        List<Path> paths;
+        try (Stream<Path> files = Files.walk(directory)) {
+            paths = files.sorted(Comparator.reverseOrder()).toList();
+        }
+        for (Path path : paths) {
+            Files.deleteIfExists(path);
+        }
+        return true;
+    }
+
+    private DocumentStore shardOf(String key) {
+        return shard(shardIndex(key));
+    }
+
+    private int shardIndex(String key) {
+        if (byUuid && key.length() >= nameDigits) {
+            int index = 0;
+            for (int i = 0; i < nameDigits; i++) {
+                int digit = Character.digit(key.charAt(i), 16);
+                if (digit < 0) {
+                    index = -1;
+                    break;
+                }
+                index = (index << 4) | digit;
+            }
+            if (index >= 0) {
+                return index;
+            }
+        }
+        // Not a UUID: fall back to the hash
+        int hash = key.hashCode();
+        hash ^= hash >>> 16;
+        return Math.floorMod(hash, shardCount);
+    }
+
+    private DocumentStore shard(int index) {
+        DocumentStore shard = shards.get(index);
+        if (shard != null) {
+            return shard;
+        }
+        synchronized (shards) {
+            shard = shards.get(index);
+            if (shard == null) {
+                if (dropped) {
+                    throw new IllegalStateException("Collection " + getName() + " was deleted");
+                }
+                shard = shardFactory.apply(shardName(index));
+                shard.setDurability(getDurability());
+                shard.setWriteListener((changed, key) -> written(key));
+                shard.setLoadListener(getLoadListener());
+                for (String field : indexFields) {
+                    shard.addIndex(field);
+                }
+                try {
+                    shard.load();
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+                shards.set(index, shard);
+            }
+            return shard;
+        }
+    }
+
+    private String shardName(int index) {
+        String hex = Integer.toHexString(index);
+        return directory.getFileName() + "/" + "0".repeat(nameDigits - hex.length()) + hex;
+    }
+
+    private String layout() {
+        return shardCount + " " + shardBy;
+    }
+
+    private List<DocumentStore> loadedShards() {
+        List<DocumentStore> loaded = new ArrayList<>();
+        for (int i = 0; i < shardCount; i++) {
+            DocumentStore shard = shards.get(i);
+            if (shard != null) {
+                loaded.add(shard);
+            }
+        }
+        return loaded;
+    }
+}
@@ -0,0 +1,242 @@
+package com.hosttale.simplescripting.db;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.FileTime;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HexFormat;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.stream.Stream;
+
+/**
+ * Copies the DB directory into a snapshot directory.
+ * Files are copied with {@link FileChannel#transferTo}, so the data moves
+ * between files without passing through the heap. Every snapshot lists the
+ * SHA-256 of its files in a manifest (in sha256sum format); a file whose hash
+ * matches the previous snapshot is hard-linked to it instead of copied, so an
+ * incremental snapshot only costs the space of what changed while each one
+ * stays complete on its own.
+ * The snapshot is written to a ".partial" directory and renamed into place
+ * once the manifest is written, so a directory with a manifest is complete.
+ */
+final class SnapshotWriter {
+    static final String MANIFEST_FILE = "snapshot.sha256";
+    private static final String PARTIAL_SUFFIX = ".partial";
+    private static final int HASH_BUFFER_SIZE = 64 * 1024;
+
+    private final Path dbPath;
+    private final Path target;
+    private final Path partial;
+    private final Path previous;
+    private final Map<String, String> previousHashes;
+    // Hashes by path relative to the snapshot, '/'-separated
+    private final Map<String, String> hashes;
+    // Copied without hashing the source; hashed from the copy later
+    private final List<String> unhashed;
+    private int linked;
+
+    /**
+     * @param dbPath The DB directory
+     * @param target The snapshot directory to create
+     * @param previous A previous snapshot to link unchanged files to, or null
+     * @throws FileAlreadyExistsException if the target exists
+     * @throws IOException if the previous snapshot cannot be read or the target cannot be created
+     */
+    SnapshotWriter(Path dbPath, Path target, Path previous) throws IOException {
+        if (Files.exists(target)) {
+            throw new FileAlreadyExistsException(target.toString());
+        }
+        this.dbPath = dbPath;
+        this.target = target;
+        this.partial = target.resolveSibling(target.getFileName() + PARTIAL_SUFFIX);
+        this.previous = previous;
+        this.previousHashes = previous != null ? readManifest(previous) : Map.of();
+        this.hashes = new TreeMap<>();
+        this.unhashed = new ArrayList<>();
+        ShardedDocumentStore.deleteDirectory(partial);
+        Files.createDirectories(partial);
+    }
+
+    /**
+     * Copies or links every file of the DB directory. The caller keeps the
+     * files from changing until this returns.
+     * @throws IOException if a file cannot be read or written
+     */
+    void copyAll() throws IOException {
+        List<Path> files;
+        try (Stream<Path> walk = Files.walk(dbPath)) {
+            files = walk.filter(Files::isRegularFile)
+                    .filter(path -> !path.startsWith(partial) && !path.startsWith(target))
+                    .filter(SnapshotWriter::isData)
+                    .sorted()
+                    .toList();
+        }
+        for (Path file : files) {
+            String name = dbPath.relativize(file).toString().replace('\\', '/');
+            Path copy = partial.resolve(name);
+            Files.createDirectories(copy.getParent());
+
+            String previousHash = previousHashes.get(name);
+            Path previousFile = previous != null ? previous.resolve(name) : null;
+            // A file of another size has changed; only same-sized ones are worth hashing here
+            if (previousHash != null && Files.isRegularFile(previousFile) && Files.size(previousFile) == Files.size(file)) {
+                String hash = hash(file);
+                hashes.put(name, hash);
+                if (hash.equals(previousHash) && link(previousFile, copy)) {
+                    linked++;
+                    continue;
+                }
+                transfer(file, copy);
+            } else {
+                transfer(file, copy);
+                unhashed.add(name);
+            }
+        }
+    }
+
+    /**
+     * Hashes and syncs the copies, writes the manifest and moves the snapshot into place.
+     * @return The number of files in the snapshot
+     * @throws IOException if the snapshot cannot be completed
+     */
+    int finish() throws IOException {
+        for (String name : unhashed) {
+            Path copy = partial.resolve(name);
+            hashes.put(name, hash(copy));
+            try (FileChannel channel = FileChannel.open(copy, StandardOpenOption.WRITE)) {
+                channel.force(true);
+            }
+        }
+        StringBuilder manifest = new StringBuilder();
+        for (Map.Entry<String, String> entry : hashes.entrySet()) {
+            manifest.append(entry.getValue()).append("  ").append(entry.getKey()).append('\n');
+        }
+        StagedWrite.writeSynced(partial.resolve(MANIFEST_FILE), manifest.toString().getBytes(StandardCharsets.UTF_8));
+        Files.move(partial, target, StandardCopyOption.ATOMIC_MOVE);
+        return hashes.size();
+    }
+
+    /**
+     * Deletes what was written of the snapshot.
+     */
+    void abort() {
+        try {
+            ShardedDocumentStore.deleteDirectory(partial);
+        } catch (IOException e) {
+            // Left for the next snapshot with this name to clear
+        }
+    }
+
+    /**
+     * Gets the number of files linked to the previous snapshot instead of copied.
+     * @return The count
+     */
+    int getLinkedCount() {
+        return linked;
+    }
+
+    /**
+     * Finds the newest complete snapshot in a directory.
+     * @param directory The directory holding snapshots
+     * @return The snapshot, or null if there is none
+     * @throws IOException if the directory cannot be listed
+     */
+    static Path latest(Path directory) throws IOException {
+        if (!Files.isDirectory(directory)) {
+            return null;
+        }
+        Path latest = null;
+        FileTime latestTime = null;
+        try (Stream<Path> snapshots = Files.list(directory)) {
+            for (Path snapshot : (Iterable<Path>) snapshots::iterator) {
+                Path manifest = snapshot.resolve(MANIFEST_FILE);
+                if (Files.isRegularFile(manifest)) {
+                    FileTime time = Files.getLastModifiedTime(manifest);
+                    if (latestTime == null || time.compareTo(latestTime) > 0) {
+                        latest = snapshot;
+                        latestTime = time;
+                    }
+                }
+            }
+        }
+        return latest;
+    }
+
+    /**
+     * Skips temporary files: staging files of transactions in progress and
+     * half-written temp files, which the DB deletes or replaces on start anyway.
+     */
+    private static boolean isData(Path file) {
+        String name = file.getFileName().toString();
+        return !name.endsWith(".tmp") && !name.endsWith(StagedWrite.STAGED_SUFFIX);
+    }
+
+    private static Map<String, String> readManifest(Path snapshot) throws IOException {
+        Map<String, String> hashes = new HashMap<>();
+        Path manifest = snapshot.resolve(MANIFEST_FILE);
+        if (!Files.isRegularFile(manifest)) {
+            return hashes;
+        }
+        for (String line : Files.readAllLines(manifest, StandardCharsets.UTF_8)) {
+            int separator = line.indexOf("  ");
+            if (separator > 0) {
+                hashes.put(line.substring(separator + 2), line.substring(0, separator));
+            }
+        }
+        return hashes;
+    }
+
+    private static void transfer(Path source, Path target) throws IOException {
+        try (FileChannel in = FileChannel.open(source, StandardOpenOption.READ);
+             FileChannel out = FileChannel.open(target, StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE)) {
+            long size = in.size();
+            for (long position = 0; position < size; ) {
+                long transferred = in.transferTo(position, size - position, out);
+                if (transferred <= 0) {
+                    break;
+                }
+                position += transferred;
+            }
+        }
+    }
+
+    private static boolean link(Path existing, Path link) {
+        try {
+            Files.createLink(link, existing);
+            return true;
+        } catch (IOException | UnsupportedOperationException e) {
+            // Not supported by the file system: copied instead
+            return false;
+        }
+    }
+
+    private static String hash(Path file) throws IOException {
+        MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+        ByteBuffer buffer = ByteBuffer.allocateDirect(HASH_BUFFER_SIZE);
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            while (channel.read(buffer) >= 0) {
+                buffer.flip();
+                digest.update(buffer);
+                buffer.clear();
+            }
+        }
+        return HexFormat.of().formatHex(digest.digest());
+    }
+}
@@ -0,0 +1,139 @@
+package com.hosttale.simplescripting.db;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Changes of one collection written to a synced staging file, waiting to be
+ * installed by renaming the staging file over its target.
+ * Transactions stage every affected collection first and record the renames
+ * in a manifest; once the manifest is on disk the renames are all that is
+ * left, so a crash is completed on the next start by redoing them.
+ * Engines that do not keep their data in the DB directory stage their
+ * changes elsewhere (e.g., an open JDBC transaction) and are not part of the
+ * manifest: a crash after the manifest but before they are installed loses them.
+ */
+public class StagedWrite {
+    public static final String STAGED_SUFFIX = ".txn";
+
+    private final Path stagedPath;
+    private final Path targetPath;
+    private final InstallStep afterInstall;
+    private final List<Runnable> abortActions;
+
+    /**
+     * @param stagedPath The synced staging file
+     * @param targetPath The file it replaces when installed
+     * @param afterInstall Work to finish once the file is in place, or null.
+     *                     The engine must also do this work when it finds the target after a crash.
+     */
+    public StagedWrite(Path stagedPath, Path targetPath, InstallStep afterInstall) {
+        this.stagedPath = stagedPath;
+        this.targetPath = targetPath;
+        this.afterInstall = afterInstall;
+        this.abortActions = new ArrayList<>();
+    }
+
+    /**
+     * Creates a write staged outside the DB directory, with no file to rename.
+     * Use {@link #addAbortAction} to undo the staging.
+     * @param install Makes the staged changes durable
+     */
+    public StagedWrite(InstallStep install) {
+        this(null, null, install);
+    }
+
+    /**
+     * @return The staging file, or null if the write is staged outside the DB directory
+     */
+    public Path getStagedPath() {
+        return stagedPath;
+    }
+
+    /**
+     * @return The file the staging file replaces, or null if the write is staged outside the DB directory
+     */
+    public Path getTargetPath() {
+        return targetPath;
+    }
+
+    /**
+     * Checks if the write is staged to a file, which the manifest must list.
+     * @return true if installing renames a staging file
+     */
+    public boolean hasFile() {
+        return stagedPath != null;
+    }
+
+    /**
+     * Adds work to undo if the staged write is abandoned.
+     * @param action The action
+     */
+    public void addAbortAction(Runnable action) {
+        abortActions.add(action);
+    }
+
+    /**
+     * Moves the staging file into place and finishes the write.
+     * @throws IOException if the rename or the follow-up work fails
+     */
+    public void install() throws IOException {
+        if (stagedPath != null) {
+            Files.move(stagedPath, targetPath, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        }
+        if (afterInstall != null) {
+            afterInstall.run();
+        }
+    }
+
+    /**
+     * Abandons the write: deletes the staging file and runs the abort actions.
+     */
+    public void abort() {
+        if (stagedPath != null) {
+            try {
+                Files.deleteIfExists(stagedPath);
+            } catch (IOException e) {
+                // Leftover staging files are removed on the next start
+            }
+        }
+        for (Runnable action : abortActions) {
+            action.run();
+        }
+    }
+
+    /**
+     * Writes a file and syncs it to disk.
+     * @param path The file to (over)write
+     * @param data The content
+     * @throws IOException if the file cannot be written
+     */
+    static void writeSynced(Path path, byte[] data) throws IOException {
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            ByteBuffer buffer = ByteBuffer.wrap(data);
+            while (buffer.hasRemaining()) {
+                channel.write(buffer);
+            }
+            channel.force(true);
+        }
+    }
+
+    /**
+     * Work done when a staged write is installed.
+     */
+    @FunctionalInterface
+    public interface InstallStep {
+        /**
+         * Runs the step.
+         * @throws IOException if the step fails
+         */
+        void run() throws IOException;
+    }
+}
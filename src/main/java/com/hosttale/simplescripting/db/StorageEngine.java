@@ -0,0 +1,86 @@
+package com.hosttale.simplescripting.db;
+
+import com.google.gson.JsonElement;
+
+import java.io.IOException;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * On-disk format of a {@link DocumentStore}.
+ * The store keeps the data in memory and asks its engine to load it once
+ * and to persist dirty keys when it is flushed.
+ */
+public interface StorageEngine {
+
+    /**
+     * Gets the engine name used in collection options (e.g., "json").
+     * @return The engine name
+     */
+    String getName();
+
+    /**
+     * Checks if the collection has data on disk.
+     * @return true if there is something to load
+     */
+    boolean exists();
+
+    /**
+     * Loads the whole collection.
+     * @return The entries, in the order they should be iterated
+     * @throws IOException if the data cannot be read
+     */
+    Map<String, JsonElement> load() throws IOException;
+
+    /**
+     * Captures the changes to write. Called with the document locked, so it
+     * must copy or serialize whatever it needs; the returned write runs later
+     * without the lock. Writes are committed in the order they were prepared.
+     * @param entries All current entries
+     * @param dirtyKeys Keys changed since the last flush (absent from entries if deleted)
+     * @param sync Whether {@link PendingWrite#commit()} must sync the changes to disk
+     * @return The write to commit
+     */
+    PendingWrite prepare(Map<String, JsonElement> entries, Set<String> dirtyKeys, boolean sync);
+
+    /**
+     * Runs background housekeeping such as compaction. Called by the flusher.
+     * @throws IOException if housekeeping fails; the data on disk stays valid
+     */
+    default void maintain() throws IOException {
+    }
+
+    /**
+     * Deletes the collection's data from disk.
+     * @return true if there was data to delete
+     * @throws IOException if the data cannot be deleted
+     */
+    boolean delete() throws IOException;
+
+    /**
+     * Releases open files. The engine is not used afterwards.
+     */
+    default void close() {
+    }
+
+    /**
+     * A prepared write, committed outside the document lock.
+     */
+    interface PendingWrite {
+        /**
+         * Writes the changes to the collection's files. Either all of them
+         * reach the files or, after a crash, none; the previous data stays readable.
+         * @throws IOException if the changes cannot be written
+         */
+        void commit() throws IOException;
+
+        /**
+         * Stages the changes instead, for a transaction to install: file engines
+         * write a synced staging file, other engines hold them back until
+         * {@link StagedWrite#install()}. Must not be followed by {@link #commit()}.
+         * @return The staged write
+         * @throws IOException if the changes cannot be staged
+         */
+        StagedWrite stage() throws IOException;
+    }
+}
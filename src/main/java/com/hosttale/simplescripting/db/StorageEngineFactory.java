@@ -0,0 +1,32 @@
+package com.hosttale.simplescripting.db;
+
+import javax.annotation.Nonnull;
+import java.nio.file.Path;
+
+/**
+ * Creates the {@link StorageEngine} of collections configured with an engine
+ * registered through {@link Database#registerEngine}. The collection is kept
+ * in memory like with the built-in file engines; the engine only decides
+ * where it is loaded from and flushed to.
+ */
+public interface StorageEngineFactory {
+
+    /**
+     * Creates the engine of one collection. Called whenever the collection is
+     * opened or configured, so it should not do any I/O; the engine connects
+     * when it is loaded.
+     * @param fileName The collection name
+     * @param jsonPath Where a plain JSON file of the collection would be, for
+     *                 engines that import it the first time they are used
+     * @param options The collection's options
+     * @return The engine
+     */
+    StorageEngine create(@Nonnull String fileName, @Nonnull Path jsonPath, @Nonnull CollectionOptions options);
+
+    /**
+     * Releases shared resources such as connections. Called when the database
+     * is closed, after every collection was flushed.
+     */
+    default void close() {
+    }
+}
@@ -0,0 +1,54 @@
+package com.hosttale.simplescripting.db;
+
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * A fixed set of locks shared out by key hash, so every key has a lock without
+ * one being created per key. Different keys usually get different locks;
+ * when they collide they only contend, they never deadlock a single caller
+ * since the locks are reentrant.
+ */
+class StripedLock {
+    private final ReentrantLock[] stripes;
+
+    /**
+     * @param count Number of locks; rounded up to a power of two
+     */
+    StripedLock(int count) {
+        int size = Integer.highestOneBit(Math.max(1, count - 1)) << 1;
+        this.stripes = new ReentrantLock[size];
+        for (int i = 0; i < size; i++) {
+            stripes[i] = new ReentrantLock();
+        }
+    }
+
+    /**
+     * Gets the lock of a key.
+     * @param key The key
+     * @return The lock; always the same one for equal keys
+     */
+    ReentrantLock get(String key) {
+        int hash = key.hashCode();
+        // Spread the high bits so similar names (player_1, player_2) land on different stripes
+        hash ^= hash >>> 16;
+        return stripes[hash & (stripes.length - 1)];
+    }
+
+    /**
+     * Takes every lock, always in the same order, so two callers cannot deadlock.
+     */
+    void lockAll() {
+        for (ReentrantLock stripe : stripes) {
+            stripe.lock();
+        }
+    }
+
+    /**
+     * Releases the locks taken by {@link #lockAll()}.
+     */
+    void unlockAll() {
+        for (int i = stripes.length - 1; i >= 0; i--) {
+            stripes[i].unlock();
+        }
+    }
+}
@@ -0,0 +1,106 @@
+package com.hosttale.simplescripting.db;
+
+import com.google.gson.JsonElement;
+
+import javax.annotation.Nonnull;
+import java.io.IOException;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * A set of writes across one or more DB files, applied all together or not at all.
+ * Writes are buffered until {@link #commit()}; reads see the buffered writes
+ * first. Create one with {@link Database#beginTransaction()}.
+ */
+public class Transaction {
+    private final Database database;
+    // File -> key -> new value, or null to delete; files sorted so locks are always taken in the same order
+    private final Map<String, Map<String, JsonElement>> changes;
+    private boolean finished;
+
+    Transaction(Database database) {
+        this.database = database;
+        this.changes = new TreeMap<>();
+        this.finished = false;
+    }
+
+    /**
+     * Sets a key.
+     * @param fileName The name of the file (without extension)
+     * @param key The key
+     * @param value The value
+     */
+    public void put(@Nonnull String fileName, @Nonnull String key, @Nonnull JsonElement value) {
+        changesOf(fileName).put(key, value);
+    }
+
+    /**
+     * Deletes a key.
+     * @param fileName The name of the file (without extension)
+     * @param key The key
+     */
+    public void remove(@Nonnull String fileName, @Nonnull String key) {
+        changesOf(fileName).put(key, null);
+    }
+
+    /**
+     * Reads a key, including writes made earlier in this transaction.
+     * @param fileName The name of the file (without extension)
+     * @param key The key
+     * @return The value, or null if it does not exist
+     * @throws IOException if the file cannot be loaded
+     */
+    public JsonElement get(@Nonnull String fileName, @Nonnull String key) throws IOException {
+        Map<String, JsonElement> fileChanges = changes.get(fileName);
+        if (fileChanges != null && fileChanges.containsKey(key)) {
+            return fileChanges.get(key);
+        }
+        return database.open(fileName).get(key);
+    }
+
+    /**
+     * Checks if a key exists, including writes made earlier in this transaction.
+     * @param fileName The name of the file (without extension)
+     * @param key The key
+     * @return true if the key exists
+     * @throws IOException if the file cannot be loaded
+     */
+    public boolean has(@Nonnull String fileName, @Nonnull String key) throws IOException {
+        return get(fileName, key) != null;
+    }
+
+    /**
+     * Checks if the transaction has any writes.
+     * @return true if there is nothing to commit
+     */
+    public boolean isEmpty() {
+        return changes.isEmpty();
+    }
+
+    /**
+     * Applies and persists all writes: each affected file is written and synced
+     * once. On failure nothing is applied.
+     * @throws IOException if the writes cannot be made durable
+     * @throws IllegalStateException if the transaction was already committed
+     */
+    public void commit() throws IOException {
+        if (finished) {
+            throw new IllegalStateException("Transaction already committed");
+        }
+        finished = true;
+        database.commit(this);
+    }
+
+    Map<String, Map<String, JsonElement>> getChanges() {
+        return Collections.unmodifiableMap(changes);
+    }
+
+    private Map<String, JsonElement> changesOf(String fileName) {
+        if (finished) {
+            throw new IllegalStateException("Transaction already committed");
+        }
+        return changes.computeIfAbsent(fileName, name -> new LinkedHashMap<>());
+    }
+}
@@ -1,6 +1,7 @@
 package com.hosttale.simplescripting.managers;
 
 import com.hosttale.simplescripting.SimpleScriptingPlugin;
+import com.hosttale.simplescripting.db.PlayerDataCache;
 import com.hosttale.simplescripting.task.Scheduler;
 import com.hosttale.simplescripting.util.Logger;
 import com.hypixel.hytale.component.Ref;
@@ -29,6 +30,7 @@ public class EventManager {
     private final SimpleScriptingPlugin plugin;
     private final Scriptable scope;
     private final Logger logger;
+    private final ScriptRegistry scriptRegistry;
     
     // Event listeners map: eventName -> list of handlers
     private final Map<String, List<EventHandler>> listeners;
@@ -41,6 +43,9 @@ public class EventManager {
     
     // Player world tracking for world change events
     private final Map<UUID, String> playerWorlds;
+
+    // Told about joins and quits, to load and evict player records
+    private PlayerDataCache playerData;
     
     // Movement threshold for triggering move events (blocks)
     private static final double MOVE_THRESHOLD = 0.1;
@@ -48,16 +53,25 @@ public class EventManager {
     // Tick counter
     private long tickCount = 0;
 
-    public EventManager(SimpleScriptingPlugin plugin, Scriptable scope, Logger logger) {
+    public EventManager(SimpleScriptingPlugin plugin, Scriptable scope, Logger logger, ScriptRegistry scriptRegistry) {
         this.plugin = plugin;
         this.scope = scope;
         this.logger = logger;
+        this.scriptRegistry = scriptRegistry;
         this.listeners = new ConcurrentHashMap<>();
         this.knownPlayers = ConcurrentHashMap.newKeySet();
         this.playerPositions = new ConcurrentHashMap<>();
         this.playerWorlds = new ConcurrentHashMap<>();
     }
 
+    /**
+     * Sets the player data cache to notify when players join and quit.
+     * @param playerData The cache
+     */
+    public void setPlayerData(PlayerDataCache playerData) {
+        this.playerData = playerData;
+    }
+
     /**
      * Registers an event listener.
      * @param eventName The event name (e.g., "playerJoin", "playerDeath")
@@ -65,11 +79,7 @@ public class EventManager {
      * @return Handler ID that can be used to unregister
      */
     public String on(@Nonnull String eventName, @Nonnull Function handler) {
-        String handlerId = UUID.randomUUID().toString();
-        
-        listeners.computeIfAbsent(eventName, k -> new CopyOnWriteArrayList<>())
-            .add(new EventHandler(handlerId, handler, false));
-        
+        String handlerId = addHandler(eventName, handler, false);
         logger.fine("Registered event handler for: " + eventName);
         return handlerId;
     }
@@ -81,11 +91,22 @@ public class EventManager {
      * @return Handler ID
      */
     public String once(@Nonnull String eventName, @Nonnull Function handler) {
+        return addHandler(eventName, handler, true);
+    }
+
+    /**
+     * Adds a handler owned by the script currently executing on this thread.
+     */
+    private String addHandler(String eventName, Function handler, boolean once) {
         String handlerId = UUID.randomUUID().toString();
-        
+        String owner = scriptRegistry != null ? scriptRegistry.getCurrentScript() : null;
+
         listeners.computeIfAbsent(eventName, k -> new CopyOnWriteArrayList<>())
-            .add(new EventHandler(handlerId, handler, true));
-        
+            .add(new EventHandler(handlerId, handler, once, owner));
+
+        if (scriptRegistry != null) {
+            scriptRegistry.recordEventHandler(eventName, handlerId);
+        }
         return handlerId;
     }
 
@@ -97,8 +118,11 @@ public class EventManager {
      */
     public boolean off(@Nonnull String eventName, @Nonnull String handlerId) {
         List<EventHandler> handlers = listeners.get(eventName);
-        if (handlers != null) {
-            return handlers.removeIf(h -> h.id.equals(handlerId));
+        if (handlers != null && handlers.removeIf(h -> h.id.equals(handlerId))) {
+            if (scriptRegistry != null) {
+                scriptRegistry.forgetEventHandler(eventName, handlerId);
+            }
+            return true;
         }
         return false;
     }
@@ -147,12 +171,14 @@ public class EventManager {
         
         for (EventHandler handler : handlers) {
             try {
-                Context cx = Context.enter();
-                try {
-                    handler.function.call(cx, scope, scope, new Object[]{eventData});
-                } finally {
-                    Context.exit();
-                }
+                runAsOwner(handler, () -> {
+                    Context cx = Context.enter();
+                    try {
+                        handler.function.call(cx, scope, scope, new Object[]{eventData});
+                    } finally {
+                        Context.exit();
+                    }
+                });
                 
                 if (handler.once) {
                     toRemove.add(handler);
@@ -163,9 +189,26 @@ public class EventManager {
         }
         
         handlers.removeAll(toRemove);
+        if (scriptRegistry != null) {
+            for (EventHandler handler : toRemove) {
+                scriptRegistry.forgetEventHandler(eventName, handler.id);
+            }
+        }
         return cancelled[0];
     }
 
+    /**
+     * Runs a handler attributed to the script that registered it, so anything
+     * it registers (tasks, handlers, commands) belongs to that script too.
+     */
+    private void runAsOwner(EventHandler handler, Runnable action) {
+        if (scriptRegistry != null) {
+            scriptRegistry.runAs(handler.owner, action);
+        } else {
+            action.run();
+        }
+    }
+
     /**
      * Checks if an event type is cancellable.
      */
@@ -204,6 +247,9 @@ public class EventManager {
             // Check for new players (join event)
             if (!knownPlayers.contains(uuid)) {
                 knownPlayers.add(uuid);
+                if (playerData != null) {
+                    playerData.playerJoined(uuid);
+                }
                 firePlayerJoin(player);
             }
             
@@ -223,6 +269,10 @@ public class EventManager {
             playerPositions.remove(uuid);
             playerWorlds.remove(uuid);
             firePlayerQuit(uuid);
+            // After the handlers, so what they save is flushed with the rest
+            if (playerData != null) {
+                playerData.playerQuit(uuid);
+            }
         }
     }
 
@@ -446,11 +496,13 @@ public class EventManager {
         final String id;
         final Function function;
         final boolean once;
+        final String owner;
 
-        EventHandler(String id, Function function, boolean once) {
+        EventHandler(String id, Function function, boolean once, String owner) {
             this.id = id;
             this.function = function;
             this.once = once;
+            this.owner = owner;
         }
     }
 
@@ -1,6 +1,7 @@
 package com.hosttale.simplescripting.managers;
 
 import com.hosttale.simplescripting.commands.CommandManager;
+import com.hosttale.simplescripting.db.ChangeFeed;
 import com.hosttale.simplescripting.task.Scheduler;
 
 import javax.annotation.Nonnull;
@@ -10,6 +11,9 @@ import java.util.concurrent.ConcurrentHashMap;
 /**
  * Registry for tracking script resources.
  * Enables hot reload by tracking commands, events, and tasks per script.
+ * The current script is tracked per thread, so registrations made later from
+ * callbacks (events, tasks, commands) are attributed to the script that owns
+ * the callback.
  */
 public class ScriptRegistry {
     // Track commands registered by each script
@@ -20,20 +24,25 @@ public class ScriptRegistry {
     
     // Track scheduler tasks by each script
     private final Map<String, Set<Long>> scriptTasks;
+
+    // Track DB watches by each script
+    private final Map<String, Set<Long>> scriptWatches;
     
-    // Current script being loaded (set during script execution)
-    private String currentScript;
+    // Script whose code is running on each thread (set during loading and callbacks)
+    private final ThreadLocal<String> currentScript;
     
     // References to managers for cleanup
     private CommandManager commandManager;
     private EventManager eventManager;
     private Scheduler scheduler;
+    private ChangeFeed changeFeed;
 
     public ScriptRegistry() {
         this.scriptCommands = new ConcurrentHashMap<>();
         this.scriptEventHandlers = new ConcurrentHashMap<>();
         this.scriptTasks = new ConcurrentHashMap<>();
-        this.currentScript = null;
+        this.scriptWatches = new ConcurrentHashMap<>();
+        this.currentScript = new ThreadLocal<>();
     }
 
     /**
@@ -41,26 +50,51 @@ public class ScriptRegistry {
      * @param scriptName The script filename
      */
     public void setCurrentScript(@Nonnull String scriptName) {
-        this.currentScript = scriptName;
+        this.currentScript.set(scriptName);
         // Initialize tracking sets for this script
         scriptCommands.computeIfAbsent(scriptName, k -> ConcurrentHashMap.newKeySet());
         scriptEventHandlers.computeIfAbsent(scriptName, k -> new ConcurrentHashMap<>());
         scriptTasks.computeIfAbsent(scriptName, k -> ConcurrentHashMap.newKeySet());
+        scriptWatches.computeIfAbsent(scriptName, k -> ConcurrentHashMap.newKeySet());
     }
 
     /**
      * Clears the current script context.
      */
     public void clearCurrentScript() {
-        this.currentScript = null;
+        this.currentScript.remove();
     }
 
     /**
-     * Gets the current script name.
+     * Gets the script whose code is running on this thread.
      * @return Current script name, or null if none
      */
     public String getCurrentScript() {
-        return currentScript;
+        return currentScript.get();
+    }
+
+    /**
+     * Runs code on behalf of a script, so anything it registers is attributed
+     * to that script. The previous attribution is restored afterwards.
+     * @param scriptName The owning script, or null to run unattributed
+     * @param action The code to run
+     */
+    public void runAs(String scriptName, @Nonnull Runnable action) {
+        String previous = currentScript.get();
+        if (scriptName != null) {
+            currentScript.set(scriptName);
+        } else {
+            currentScript.remove();
+        }
+        try {
+            action.run();
+        } finally {
+            if (previous != null) {
+                currentScript.set(previous);
+            } else {
+                currentScript.remove();
+            }
+        }
     }
 
     /**
@@ -72,13 +106,21 @@ public class ScriptRegistry {
         this.scheduler = scheduler;
     }
 
+    /**
+     * Sets the DB change feed, so watches are removed with their script.
+     */
+    public void setChangeFeed(ChangeFeed changeFeed) {
+        this.changeFeed = changeFeed;
+    }
+
     /**
      * Records a command registration.
      * @param commandName The command name
      */
     public void recordCommand(@Nonnull String commandName) {
-        if (currentScript != null) {
-            scriptCommands.get(currentScript).add(commandName);
+        String script = currentScript.get();
+        if (script != null) {
+            scriptCommands.computeIfAbsent(script, k -> ConcurrentHashMap.newKeySet()).add(commandName);
         }
     }
 
@@ -88,20 +130,71 @@ public class ScriptRegistry {
      * @param handlerId The handler ID
      */
     public void recordEventHandler(@Nonnull String eventName, @Nonnull String handlerId) {
-        if (currentScript != null) {
-            scriptEventHandlers.get(currentScript)
+        String script = currentScript.get();
+        if (script != null) {
+            scriptEventHandlers.computeIfAbsent(script, k -> new ConcurrentHashMap<>())
                 .computeIfAbsent(eventName, k -> ConcurrentHashMap.newKeySet())
                 .add(handlerId);
         }
     }
 
+    /**
+     * Forgets an event handler that was removed (off() or a fired once() handler).
+     * @param eventName The event name
+     * @param handlerId The handler ID
+     */
+    public void forgetEventHandler(@Nonnull String eventName, @Nonnull String handlerId) {
+        for (Map<String, Set<String>> events : scriptEventHandlers.values()) {
+            Set<String> handlers = events.get(eventName);
+            if (handlers != null && handlers.remove(handlerId)) {
+                return;
+            }
+        }
+    }
+
     /**
      * Records a scheduled task.
      * @param taskId The task ID
      */
     public void recordTask(long taskId) {
-        if (currentScript != null) {
-            scriptTasks.get(currentScript).add(taskId);
+        String script = currentScript.get();
+        if (script != null) {
+            scriptTasks.computeIfAbsent(script, k -> ConcurrentHashMap.newKeySet()).add(taskId);
+        }
+    }
+
+    /**
+     * Forgets a task that completed or was cancelled.
+     * @param taskId The task ID
+     */
+    public void forgetTask(long taskId) {
+        for (Set<Long> tasks : scriptTasks.values()) {
+            if (tasks.remove(taskId)) {
+                return;
+            }
+        }
+    }
+
+    /**
+     * Records a DB watch.
+     * @param watchId The watch ID
+     */
+    public void recordWatch(long watchId) {
+        String script = currentScript.get();
+        if (script != null) {
+            scriptWatches.computeIfAbsent(script, k -> ConcurrentHashMap.newKeySet()).add(watchId);
+        }
+    }
+
+    /**
+     * Forgets a DB watch that was removed.
+     * @param watchId The watch ID
+     */
+    public void forgetWatch(long watchId) {
+        for (Set<Long> watches : scriptWatches.values()) {
+            if (watches.remove(watchId)) {
+                return;
+            }
         }
     }
 
@@ -136,6 +229,20 @@ public class ScriptRegistry {
                 scheduler.cancel(taskId);
             }
         }
+
+        // Unregister durable task handlers; their tasks wait for the next load
+        if (scheduler != null) {
+            scheduler.unregisterDurableHandlers(scriptName);
+            scheduler.removeScriptQueue(scriptName);
+        }
+
+        // Remove DB watches
+        Set<Long> watches = scriptWatches.remove(scriptName);
+        if (watches != null && changeFeed != null) {
+            for (Long watchId : watches) {
+                changeFeed.unsubscribe(watchId);
+            }
+        }
     }
 
     /**
@@ -156,6 +263,11 @@ public class ScriptRegistry {
         if (scheduler != null) {
             scheduler.cancelAll();
         }
+
+        // Remove all remaining DB watches
+        if (changeFeed != null) {
+            changeFeed.clear();
+        }
     }
 
     /**
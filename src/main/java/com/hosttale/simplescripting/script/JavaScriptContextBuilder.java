@@ -3,6 +3,7 @@ package com.hosttale.simplescripting.script;
 import com.hosttale.simplescripting.SimpleScriptingPlugin;
 import com.hosttale.simplescripting.api.Colors;
 import com.hosttale.simplescripting.commands.CommandManager;
+import com.hosttale.simplescripting.db.Database;
 import com.hosttale.simplescripting.managers.EventManager;
 import com.hosttale.simplescripting.managers.ScriptRegistry;
 import com.hosttale.simplescripting.task.Scheduler;
@@ -32,6 +33,7 @@ public class JavaScriptContextBuilder {
     private CommandManager commandManager;
     private EventManager eventManager;
     private Scheduler scheduler;
+    private Database database;
     private Logger loggerInstance;
 
     public JavaScriptContextBuilder(JavaPlugin plugin, HytaleLogger logger, ScriptRegistry scriptRegistry) {
@@ -53,21 +55,29 @@ public class JavaScriptContextBuilder {
 
         // Create core API instances
         commandManager = new CommandManager((SimpleScriptingPlugin) plugin, scope, loggerInstance, scriptRegistry);
-        eventManager = new EventManager((SimpleScriptingPlugin) plugin, scope, loggerInstance);
-        scheduler = new Scheduler(scope, loggerInstance);
+        eventManager = new EventManager((SimpleScriptingPlugin) plugin, scope, loggerInstance, scriptRegistry);
+        scheduler = new Scheduler(scope, loggerInstance, getSchedulerJournalPath(), scriptRegistry);
+        database = new Database(getDatabasePath(), loggerInstance);
+        eventManager.setPlayerData(database.getPlayerData());
 
         // Create helper instances
         TeleportHelper teleportHelper = new TeleportHelper(loggerInstance);
         PlayerHelper playerHelper = new PlayerHelper(loggerInstance);
         playerHelper.setScope(scope); // Enable JavaScript callback execution on world thread
+        playerHelper.setScriptRegistry(scriptRegistry);
         WorldHelper worldHelper = new WorldHelper(loggerInstance);
         worldHelper.setScope(scope); // Enable JavaScript callback execution
+        worldHelper.setScriptRegistry(scriptRegistry);
         PermissionHelper permissionHelper = new PermissionHelper(loggerInstance);
+        DatabaseHelper databaseHelper = new DatabaseHelper(database);
+        databaseHelper.setScope(scope); // Enable batch, transaction and async callbacks
+        databaseHelper.setScriptRegistry(scriptRegistry);
         PluginHelper pluginHelper = new PluginHelper((SimpleScriptingPlugin) plugin, loggerInstance);
         CommandExecutorHelper commandExecutorHelper = new CommandExecutorHelper(loggerInstance);
 
         // Set up script registry with managers for cleanup
         scriptRegistry.setManagers(commandManager, eventManager, scheduler);
+        scriptRegistry.setChangeFeed(database.getChangeFeed());
 
         // Expose core APIs to JavaScript
         exposeApi(scope, "Universe", Universe.get());
@@ -75,7 +85,8 @@ public class JavaScriptContextBuilder {
         exposeApi(scope, "Logger", loggerInstance);
         exposeApi(scope, "Commands", commandManager);
         exposeApi(scope, "MessageHelper", new MessageHelper());
-        exposeApi(scope, "DB", new DatabaseHelper());
+        exposeApi(scope, "DB", databaseHelper);
+        exposeApi(scope, "PlayerData", database.getPlayerData());
 
         // Expose new helper APIs
         exposeApi(scope, "Teleport", teleportHelper);
@@ -118,6 +129,14 @@ public class JavaScriptContextBuilder {
         return commandManager;
     }
 
+    /**
+     * Gets the database behind the DB API.
+     * @return The Database instance
+     */
+    public Database getDatabase() {
+        return database;
+    }
+
     /**
      * Shuts down all managed resources.
      */
@@ -128,6 +147,10 @@ public class JavaScriptContextBuilder {
         if (eventManager != null) {
             eventManager.clear();
         }
+        if (database != null) {
+            // Writes pending changes before the next scope opens the files again
+            database.close();
+        }
     }
 
     /**
@@ -140,6 +163,27 @@ public class JavaScriptContextBuilder {
                 .resolve("mods");
     }
 
+    /**
+     * Gets the database directory path.
+     * @return Path to the db directory
+     */
+    public Path getDatabasePath() {
+        return Constants.UNIVERSE_PATH
+                .resolve("SimpleScripting")
+                .resolve("db");
+    }
+
+    /**
+     * Gets the path of the durable task journal.
+     * @return Path to the journal file
+     */
+    public Path getSchedulerJournalPath() {
+        return Constants.UNIVERSE_PATH
+                .resolve("SimpleScripting")
+                .resolve("tasks")
+                .resolve("durable.journal");
+    }
+
     /**
      * Exposes a Java object to the JavaScript scope.
      * @param scope The JavaScript scope
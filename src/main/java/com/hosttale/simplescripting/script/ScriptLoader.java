@@ -191,6 +191,8 @@ public class ScriptLoader {
      */
     private void executeScript(Path file, Context context, Scriptable scope) {
         String scriptName = getRelativePath(file);
+        // A reload may be triggered from another script's callback; restore its attribution afterwards
+        String previousScript = scriptRegistry.getCurrentScript();
         
         try {
             // Set current script for resource tracking
@@ -206,7 +208,11 @@ public class ScriptLoader {
             logger.atSevere().log("Error executing script: " + scriptName + " - " + e.getMessage());
             e.printStackTrace();
         } finally {
-            scriptRegistry.clearCurrentScript();
+            if (previousScript != null) {
+                scriptRegistry.setCurrentScript(previousScript);
+            } else {
+                scriptRegistry.clearCurrentScript();
+            }
         }
     }
     
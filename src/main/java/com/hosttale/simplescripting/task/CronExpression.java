@@ -0,0 +1,197 @@
+package com.hosttale.simplescripting.task;
+
+import javax.annotation.Nonnull;
+import java.time.DayOfWeek;
+import java.time.ZonedDateTime;
+import java.time.temporal.ChronoUnit;
+import java.util.BitSet;
+import java.util.Locale;
+
+/**
+ * Parsed five-field cron expression: minute, hour, day of month, month, day of week.
+ * Supports '*', ranges (1-5), steps (*&#47;15, 0-30/5), lists (1,15,30),
+ * month and weekday names (JAN, MON), and the macros @yearly, @monthly,
+ * @weekly, @daily and @hourly.
+ * As in standard cron, when both day of month and day of week are restricted
+ * a day matches if either field matches; a field starting with '*' (such as
+ * *&#47;2) does not count as restricted, so it narrows the other field instead.
+ */
+public class CronExpression {
+    private static final String[] MONTH_NAMES = {
+        "JAN", "FEB", "MAR", "APR", "MAY", "JUN", "JUL", "AUG", "SEP", "OCT", "NOV", "DEC"
+    };
+    private static final String[] DAY_NAMES = {"SUN", "MON", "TUE", "WED", "THU", "FRI", "SAT"};
+
+    // No valid expression needs more than a few years to find its next match (e.g. Feb 29)
+    private static final int MAX_SEARCH_YEARS = 8;
+
+    private final String expression;
+    private final BitSet minutes;
+    private final BitSet hours;
+    private final BitSet daysOfMonth;
+    private final BitSet months;
+    private final BitSet daysOfWeek;
+    private final boolean dayOfMonthRestricted;
+    private final boolean dayOfWeekRestricted;
+
+    private CronExpression(String expression, String[] fields) {
+        this.expression = expression;
+        this.minutes = parseField(fields[0], 0, 59, null);
+        this.hours = parseField(fields[1], 0, 23, null);
+        this.daysOfMonth = parseField(fields[2], 1, 31, null);
+        this.months = parseField(fields[3], 1, 12, MONTH_NAMES);
+        // Accept 0-7 where both 0 and 7 mean Sunday
+        BitSet dow = parseField(fields[4], 0, 7, DAY_NAMES);
+        if (dow.get(7)) {
+            dow.set(0);
+            dow.clear(7);
+        }
+        this.daysOfWeek = dow;
+        this.dayOfMonthRestricted = !fields[2].startsWith("*") && !fields[2].equals("?");
+        this.dayOfWeekRestricted = !fields[4].startsWith("*") && !fields[4].equals("?");
+    }
+
+    /**
+     * Parses a cron expression.
+     * @param expression The expression (e.g., "0 4 * * *" for every day at 04:00)
+     * @return The parsed expression
+     * @throws IllegalArgumentException if the expression is invalid
+     */
+    public static CronExpression parse(@Nonnull String expression) {
+        String trimmed = expression.trim();
+        String expanded = switch (trimmed.toLowerCase(Locale.ROOT)) {
+            case "@yearly", "@annually" -> "0 0 1 1 *";
+            case "@monthly" -> "0 0 1 * *";
+            case "@weekly" -> "0 0 * * 0";
+            case "@daily", "@midnight" -> "0 0 * * *";
+            case "@hourly" -> "0 * * * *";
+            default -> trimmed;
+        };
+
+        String[] fields = expanded.split("\\s+");
+        if (fields.length != 5) {
+            throw new IllegalArgumentException("Cron expression must have 5 fields: " + expression);
+        }
+        return new CronExpression(trimmed, fields);
+    }
+
+    /**
+     * Computes the first fire time strictly after the given time.
+     * @param after The reference time (its zone is used for matching)
+     * @return The next matching time, truncated to the minute
+     * @throws IllegalStateException if the expression never matches (e.g., "0 0 31 2 *")
+     */
+    public ZonedDateTime next(@Nonnull ZonedDateTime after) {
+        ZonedDateTime t = after.truncatedTo(ChronoUnit.MINUTES).plusMinutes(1);
+        ZonedDateTime limit = t.plusYears(MAX_SEARCH_YEARS);
+
+        while (t.isBefore(limit)) {
+            if (!months.get(t.getMonthValue())) {
+                t = t.withDayOfMonth(1).truncatedTo(ChronoUnit.DAYS).plusMonths(1);
+                continue;
+            }
+            if (!matchesDay(t)) {
+                t = t.truncatedTo(ChronoUnit.DAYS).plusDays(1);
+                continue;
+            }
+            if (!hours.get(t.getHour())) {
+                t = t.truncatedTo(ChronoUnit.HOURS).plusHours(1);
+                continue;
+            }
+            if (!minutes.get(t.getMinute())) {
+                t = t.plusMinutes(1);
+                continue;
+            }
+            // When clocks fall back, the repeated local hour must not fire a second time
+            if (!t.toLocalDateTime().isAfter(after.toLocalDateTime())) {
+                t = t.plusMinutes(1);
+                continue;
+            }
+            return t;
+        }
+        throw new IllegalStateException("Cron expression never fires: " + expression);
+    }
+
+    /**
+     * Gets the original expression text.
+     * @return The expression
+     */
+    public String getExpression() {
+        return expression;
+    }
+
+    @Override
+    public String toString() {
+        return expression;
+    }
+
+    private boolean matchesDay(ZonedDateTime t) {
+        boolean domMatch = daysOfMonth.get(t.getDayOfMonth());
+        // java.time: MONDAY=1..SUNDAY=7; cron: SUNDAY=0..SATURDAY=6
+        DayOfWeek dayOfWeek = t.getDayOfWeek();
+        boolean dowMatch = daysOfWeek.get(dayOfWeek.getValue() % 7);
+
+        if (dayOfMonthRestricted && dayOfWeekRestricted) {
+            return domMatch || dowMatch;
+        }
+        return domMatch && dowMatch;
+    }
+
+    private static BitSet parseField(String field, int min, int max, String[] names) {
+        BitSet bits = new BitSet(max + 1);
+        for (String part : field.split(",")) {
+            int step = 1;
+            String range = part;
+            int slash = part.indexOf('/');
+            if (slash >= 0) {
+                step = parseNumber(part.substring(slash + 1), 1, max, null, field);
+                range = part.substring(0, slash);
+            }
+
+            int start;
+            int end;
+            if (range.equals("*") || range.equals("?")) {
+                start = min;
+                end = max;
+            } else {
+                int dash = range.indexOf('-');
+                if (dash >= 0) {
+                    start = parseNumber(range.substring(0, dash), min, max, names, field);
+                    end = parseNumber(range.substring(dash + 1), min, max, names, field);
+                } else {
+                    start = parseNumber(range, min, max, names, field);
+                    // "5/15" means starting at 5, every 15
+                    end = slash >= 0 ? max : start;
+                }
+            }
+            if (start > end) {
+                throw new IllegalArgumentException("Invalid cron range '" + part + "' in field: " + field);
+            }
+
+            for (int i = start; i <= end; i += step) {
+                bits.set(i);
+            }
+        }
+        return bits;
+    }
+
+    private static int parseNumber(String text, int min, int max, String[] names, String field) {
+        if (names != null) {
+            for (int i = 0; i < names.length; i++) {
+                if (names[i].equalsIgnoreCase(text)) {
+                    // Month names are 1-based, day names 0-based
+                    return min == 1 ? i + 1 : i;
+                }
+            }
+        }
+        try {
+            int value = Integer.parseInt(text);
+            if (value < min || value > max) {
+                throw new IllegalArgumentException("Cron value " + value + " out of range " + min + "-" + max + " in field: " + field);
+            }
+            return value;
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("Invalid cron value '" + text + "' in field: " + field);
+        }
+    }
+}
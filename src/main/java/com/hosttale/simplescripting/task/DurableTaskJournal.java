@@ -0,0 +1,235 @@
+package com.hosttale.simplescripting.task;
+
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+import com.hosttale.simplescripting.util.Logger;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Append-only journal for durable scheduler tasks.
+ * Each line is a compact JSON record: either a scheduled task ("S")
+ * or the completion/cancellation of a task ("D").
+ * The journal is replayed on startup and compacted when dead records pile up.
+ */
+public class DurableTaskJournal {
+    private static final String OP_SCHEDULE = "S";
+    private static final String OP_DONE = "D";
+
+    // Compact once at least this many records are dead and they outnumber live ones
+    private static final int COMPACT_MIN_DEAD_RECORDS = 256;
+
+    private final Path journalPath;
+    private final Logger logger;
+    private final Map<String, Entry> live;
+    private FileChannel channel;
+    private int deadRecords;
+
+    public DurableTaskJournal(Path journalPath, Logger logger) {
+        this.journalPath = journalPath;
+        this.logger = logger;
+        this.live = new LinkedHashMap<>();
+        this.deadRecords = 0;
+    }
+
+    /**
+     * Replays the journal from disk and opens it for appending.
+     * Only the journal is read; no script code is evaluated.
+     * @return The tasks that are still pending, in scheduling order
+     * @throws IOException if the journal cannot be read or opened
+     */
+    public synchronized List<Entry> open() throws IOException {
+        live.clear();
+        deadRecords = 0;
+
+        Files.createDirectories(journalPath.getParent());
+        if (Files.exists(journalPath)) {
+            int lineNumber = 0;
+            for (String line : Files.readAllLines(journalPath, StandardCharsets.UTF_8)) {
+                lineNumber++;
+                if (line.isBlank()) {
+                    continue;
+                }
+                try {
+                    replay(JsonParser.parseString(line).getAsJsonObject());
+                } catch (Exception e) {
+                    // A torn last line after a crash is expected; anything else is worth a warning
+                    logger.warning("Skipping unreadable task journal record at line " + lineNumber + ": " + e.getMessage());
+                    deadRecords++;
+                }
+            }
+        }
+
+        if (deadRecords > 0) {
+            rewrite();
+        }
+        channel = FileChannel.open(journalPath, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+        return new ArrayList<>(live.values());
+    }
+
+    /**
+     * Appends a scheduled task. Replaces any pending task with the same ID.
+     * @param entry The task to persist
+     * @throws IOException if the record cannot be written
+     */
+    public synchronized void recordScheduled(Entry entry) throws IOException {
+        append(toRecord(entry));
+
+        if (live.put(entry.id, entry) != null) {
+            deadRecords++;
+        }
+        compactIfNeeded();
+    }
+
+    /**
+     * Appends a completion record for a task.
+     * @param id The task ID
+     * @throws IOException if the record cannot be written
+     */
+    public synchronized void recordDone(String id) throws IOException {
+        if (live.remove(id) == null) {
+            return;
+        }
+        appendDone(id);
+    }
+
+    /**
+     * Appends a completion record for a task that ran, unless its ID was
+     * scheduled again in the meantime (for example by the task itself), in
+     * which case the new task stays pending.
+     * @param entry The task that ran
+     * @throws IOException if the record cannot be written
+     */
+    public synchronized void recordDone(Entry entry) throws IOException {
+        if (!live.remove(entry.id, entry)) {
+            return;
+        }
+        appendDone(entry.id);
+    }
+
+    private void appendDone(String id) throws IOException {
+        JsonObject record = new JsonObject();
+        record.addProperty("op", OP_DONE);
+        record.addProperty("id", id);
+        append(record);
+
+        // The schedule record and this completion record are both garbage now
+        deadRecords += 2;
+        compactIfNeeded();
+    }
+
+    /**
+     * Closes the journal. Pending tasks stay on disk for the next startup.
+     */
+    public synchronized void close() {
+        if (channel == null) {
+            return;
+        }
+        try {
+            channel.close();
+        } catch (IOException e) {
+            logger.warning("Error closing task journal: " + e.getMessage());
+        }
+        channel = null;
+    }
+
+    private void replay(JsonObject record) {
+        String op = record.get("op").getAsString();
+        String id = record.get("id").getAsString();
+
+        if (OP_SCHEDULE.equals(op)) {
+            String payload = record.has("p") ? record.get("p").getAsString() : null;
+            Entry previous = live.put(id, new Entry(id, record.get("h").getAsString(), payload, record.get("due").getAsLong()));
+            if (previous != null) {
+                deadRecords++;
+            }
+        } else if (OP_DONE.equals(op)) {
+            deadRecords += live.remove(id) != null ? 2 : 1;
+        }
+    }
+
+    private static JsonObject toRecord(Entry entry) {
+        JsonObject record = new JsonObject();
+        record.addProperty("op", OP_SCHEDULE);
+        record.addProperty("id", entry.id);
+        record.addProperty("h", entry.handlerName);
+        record.addProperty("due", entry.dueAtMs);
+        if (entry.payload != null) {
+            record.addProperty("p", entry.payload);
+        }
+        return record;
+    }
+
+    private void append(JsonObject record) throws IOException {
+        if (channel == null) {
+            throw new IOException("Task journal is not open");
+        }
+        ByteBuffer buffer = ByteBuffer.wrap((record + "\n").getBytes(StandardCharsets.UTF_8));
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+        channel.force(false);
+    }
+
+    private void compactIfNeeded() throws IOException {
+        if (deadRecords < COMPACT_MIN_DEAD_RECORDS || deadRecords <= live.size()) {
+            return;
+        }
+        channel.close();
+        try {
+            rewrite();
+        } finally {
+            // Reopened even if the rewrite failed, so later records still get appended
+            channel = FileChannel.open(journalPath, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+        }
+    }
+
+    /**
+     * Rewrites the journal with only the live records, atomically.
+     */
+    private void rewrite() throws IOException {
+        StringBuilder sb = new StringBuilder();
+        for (Entry entry : live.values()) {
+            sb.append(toRecord(entry)).append('\n');
+        }
+
+        Path tempPath = journalPath.resolveSibling(journalPath.getFileName() + ".tmp");
+        try (FileChannel out = FileChannel.open(tempPath, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            ByteBuffer buffer = ByteBuffer.wrap(sb.toString().getBytes(StandardCharsets.UTF_8));
+            while (buffer.hasRemaining()) {
+                out.write(buffer);
+            }
+            out.force(true);
+        }
+        Files.move(tempPath, journalPath, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        deadRecords = 0;
+    }
+
+    /**
+     * A persisted task: which handler to call, with what payload, and when.
+     */
+    public static class Entry {
+        final String id;
+        final String handlerName;
+        final String payload;
+        final long dueAtMs;
+
+        Entry(String id, String handlerName, String payload, long dueAtMs) {
+            this.id = id;
+            this.handlerName = handlerName;
+            this.payload = payload;
+            this.dueAtMs = dueAtMs;
+        }
+    }
+}
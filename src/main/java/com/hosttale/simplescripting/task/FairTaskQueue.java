@@ -0,0 +1,218 @@
+package com.hosttale.simplescripting.task;
+
+import com.hosttale.simplescripting.util.Logger;
+
+import javax.annotation.Nonnull;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Per-script run queues for due tasks.
+ * Queues are drained by weighted round-robin, and each script may only use
+ * its CPU-time budget per tick. Work beyond the budget stays queued until
+ * the next tick, and a script that overshoots carries the debt forward.
+ * Budgets count the drainer thread's CPU time, so time a callback spends
+ * blocked (e.g., waiting on a DB file) is not charged; where the JVM cannot
+ * measure thread CPU time, wall time is used instead.
+ * Only one thread drains at a time, so script callbacks never run concurrently;
+ * a long callback therefore still delays the callbacks queued after it in that
+ * tick, and its script pays the overshoot back in the following ticks.
+ */
+public class FairTaskQueue {
+    private static final ThreadMXBean THREADS = ManagementFactory.getThreadMXBean();
+
+    private final Executor executor;
+    private final Logger logger;
+    private final Map<String, ScriptQueue> queues;
+    private final AtomicInteger drainRequests;
+    private final AtomicInteger pendingTicks;
+    private final boolean cpuTime;
+    private volatile long budgetNanos;
+    private int rotation;
+
+    public FairTaskQueue(Executor executor, Logger logger, long budgetMs) {
+        this.executor = executor;
+        this.logger = logger;
+        this.queues = new ConcurrentHashMap<>();
+        this.drainRequests = new AtomicInteger();
+        this.pendingTicks = new AtomicInteger();
+        this.cpuTime = THREADS.isCurrentThreadCpuTimeSupported() && THREADS.isThreadCpuTimeEnabled();
+        this.budgetNanos = TimeUnit.MILLISECONDS.toNanos(budgetMs);
+    }
+
+    /**
+     * Queues a due task for a script. Runs it right away if the script
+     * still has budget left in the current tick.
+     * @param owner The owning script
+     * @param job The work to run
+     */
+    public void submit(@Nonnull String owner, @Nonnull Runnable job) {
+        ScriptQueue queue = queues.computeIfAbsent(owner, ScriptQueue::new);
+        queue.jobs.add(job);
+        if (queue.hasBudget(budgetNanos)) {
+            requestDrain();
+        }
+    }
+
+    /**
+     * Starts a new tick: refills every script's budget and drains deferred work.
+     */
+    public void onTick() {
+        // Budgets are refilled by the drainer, which owns all accounting
+        pendingTicks.incrementAndGet();
+        requestDrain();
+    }
+
+    /**
+     * Sets the base CPU-time budget per script per tick.
+     * @param budgetMs Budget in milliseconds (multiplied by each script's weight)
+     */
+    public void setBudgetMs(double budgetMs) {
+        this.budgetNanos = (long) (budgetMs * 1_000_000);
+    }
+
+    /**
+     * Gets the base CPU-time budget per script per tick.
+     * @return Budget in milliseconds
+     */
+    public double getBudgetMs() {
+        return budgetNanos / 1_000_000.0;
+    }
+
+    /**
+     * Sets a script's weight: how many jobs it runs per round and how many
+     * base budgets it receives per tick.
+     * @param owner The script name
+     * @param weight Weight, at least 1
+     */
+    public void setWeight(@Nonnull String owner, int weight) {
+        queues.computeIfAbsent(owner, ScriptQueue::new).weight = Math.max(1, weight);
+    }
+
+    /**
+     * Gets the number of due tasks waiting for a script.
+     * @param owner The script name
+     * @return Queued job count
+     */
+    public int getQueuedCount(@Nonnull String owner) {
+        ScriptQueue queue = queues.get(owner);
+        return queue != null ? queue.jobs.size() : 0;
+    }
+
+    /**
+     * Drops a script's queue along with its queued work and weight, once the
+     * script is unloaded.
+     * @param owner The script name
+     */
+    public void remove(@Nonnull String owner) {
+        queues.remove(owner);
+    }
+
+    /**
+     * Drops all queued work.
+     */
+    public void clearAll() {
+        queues.clear();
+    }
+
+    private void requestDrain() {
+        // Only the request that moves the counter off zero starts a drainer
+        if (drainRequests.getAndIncrement() == 0) {
+            try {
+                executor.execute(this::drain);
+            } catch (Exception e) {
+                // Executor is shutting down
+                drainRequests.set(0);
+            }
+        }
+    }
+
+    private void drain() {
+        int missed = 1;
+        do {
+            drainOnce();
+            missed = drainRequests.addAndGet(-missed);
+        } while (missed != 0);
+    }
+
+    private void drainOnce() {
+        long budget = budgetNanos;
+        int ticks = pendingTicks.getAndSet(0);
+        List<ScriptQueue> order = new ArrayList<>(queues.values());
+        if (order.isEmpty()) {
+            return;
+        }
+        if (ticks > 0) {
+            for (ScriptQueue queue : order) {
+                queue.refill(budget * ticks);
+            }
+        }
+        // Rotate the starting script so no one is always first after a refill
+        Collections.rotate(order, rotation++ % order.size());
+
+        boolean progress = true;
+        while (progress) {
+            progress = false;
+            for (ScriptQueue queue : order) {
+                for (int i = 0; i < queue.weight && queue.hasBudget(budget); i++) {
+                    Runnable job = queue.jobs.poll();
+                    if (job == null) {
+                        break;
+                    }
+                    long start = now();
+                    try {
+                        job.run();
+                    } catch (Exception e) {
+                        logger.severe("Error in scheduled task for " + queue.owner + ": " + e.getMessage());
+                    } finally {
+                        queue.usedNanos += now() - start;
+                    }
+                    progress = true;
+                }
+            }
+        }
+    }
+
+    /**
+     * CPU time of the current thread, or wall time if it cannot be measured.
+     */
+    private long now() {
+        return cpuTime ? THREADS.getCurrentThreadCpuTime() : System.nanoTime();
+    }
+
+    /**
+     * Queue and budget accounting for one script.
+     */
+    private static class ScriptQueue {
+        final String owner;
+        final Queue<Runnable> jobs;
+        volatile int weight;
+        // Only written by the drainer
+        volatile long usedNanos;
+
+        ScriptQueue(String owner) {
+            this.owner = owner;
+            this.jobs = new ConcurrentLinkedQueue<>();
+            this.weight = 1;
+        }
+
+        boolean hasBudget(long budgetNanos) {
+            return usedNanos < budgetNanos * weight;
+        }
+
+        void refill(long refillNanos) {
+            // Overshoot from a long callback is paid back in later ticks
+            usedNanos = Math.max(0, usedNanos - refillNanos * weight);
+        }
+    }
+}
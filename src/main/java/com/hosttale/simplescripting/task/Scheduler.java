@@ -1,13 +1,24 @@
 package com.hosttale.simplescripting.task;
 
+import com.hosttale.simplescripting.managers.ScriptRegistry;
 import com.hosttale.simplescripting.util.Logger;
 import org.mozilla.javascript.Context;
 import org.mozilla.javascript.Function;
 import org.mozilla.javascript.Scriptable;
 
 import javax.annotation.Nonnull;
+import java.io.IOException;
+import java.nio.file.Path;
+import java.time.Instant;
+import java.time.ZoneId;
+import java.time.ZonedDateTime;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Locale;
 import java.util.Map;
 import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.atomic.AtomicLong;
 
 /**
@@ -16,23 +27,107 @@ import java.util.concurrent.atomic.AtomicLong;
  */
 public class Scheduler {
     private static final int TICK_DURATION_MS = 50; // 20 ticks per second
+
+    // A cron job firing later than this is treated as a misfire (GC pause, suspend, clock jump)
+    private static final long CRON_MISFIRE_GRACE_MS = 1000;
+    // Cron timers never sleep longer than this, so wall-clock jumps are noticed quickly
+    private static final long CRON_MAX_SLEEP_MS = 60_000;
+    // Upper bound on missed runs replayed by the CATCH_UP policy
+    private static final int CRON_MAX_CATCH_UP = 16;
+
+    // Fairness defaults: CPU time per script per tick, and active task cap per script
+    private static final long DEFAULT_TICK_BUDGET_MS = 10;
+    private static final int DEFAULT_MAX_TASKS_PER_SCRIPT = 1000;
+    // Queue for script tasks whose owner could not be determined
+    private static final String UNOWNED = "<unowned>";
+
+    /**
+     * What a cron job does when it fires late and has missed one or more scheduled times.
+     */
+    public enum MisfirePolicy {
+        /** Run once for all missed times, then continue from now (default). */
+        FIRE_ONCE,
+        /** Run once for every missed time (bounded), then continue from now. */
+        CATCH_UP,
+        /** Drop missed runs and wait for the next scheduled time. */
+        SKIP
+    }
+
+    /**
+     * How a repeating task computes its next run.
+     */
+    public enum RepeatMode {
+        /** Runs are spaced one period apart from their scheduled start times. */
+        FIXED_RATE,
+        /** Runs are spaced one period apart from the end of the previous run. */
+        FIXED_DELAY
+    }
     
     private final ScheduledExecutorService executor;
     private final Map<Long, ScheduledFuture<?>> tasks;
+    private final Map<Long, RecurringTask> recurringTasks;
     private final AtomicLong nextTaskId;
     private final Scriptable scope;
     private final Logger logger;
 
+    // Per-script fairness and quotas
+    private final ScriptRegistry scriptRegistry;
+    private final FairTaskQueue fairQueue;
+    private final Map<Long, String> taskOwners;
+    private final Map<String, AtomicInteger> activeTasksPerScript;
+    private final Map<String, Integer> maxTasksOverrides;
+    private volatile int maxTasksPerScript;
+
+    // Durable tasks: persisted to a journal and restored on startup
+    private final DurableTaskJournal journal;
+    private final Map<String, Function> durableHandlers;
+    private final Map<String, String> durableHandlerOwners;
+    private final Map<String, ScheduledFuture<?>> durableTasks;
+    private final Map<String, DurableTaskJournal.Entry> awaitingHandler;
+    // Due durable tasks sitting in a fair queue, so they survive the queue being dropped
+    private final Map<String, DurableTaskJournal.Entry> queuedDurable;
+
     public Scheduler(Scriptable scope, Logger logger) {
+        this(scope, logger, null, null);
+    }
+
+    /**
+     * Creates a scheduler with durable task support.
+     * Pending durable tasks are restored from the journal immediately, but no
+     * script code runs until a task is due and its handler has been registered.
+     * @param scope The JavaScript scope for callbacks
+     * @param logger The logger
+     * @param journalPath Path of the durable task journal, or null to disable durable tasks
+     * @param scriptRegistry Registry used to attribute tasks to scripts, or null
+     */
+    public Scheduler(Scriptable scope, Logger logger, Path journalPath, ScriptRegistry scriptRegistry) {
         this.executor = Executors.newScheduledThreadPool(2, r -> {
             Thread t = new Thread(r, "SimpleScripting-Scheduler");
             t.setDaemon(true);
             return t;
         });
         this.tasks = new ConcurrentHashMap<>();
+        this.recurringTasks = new ConcurrentHashMap<>();
         this.nextTaskId = new AtomicLong(1);
         this.scope = scope;
         this.logger = logger;
+        this.scriptRegistry = scriptRegistry;
+        this.fairQueue = new FairTaskQueue(executor, logger, DEFAULT_TICK_BUDGET_MS);
+        this.taskOwners = new ConcurrentHashMap<>();
+        this.activeTasksPerScript = new ConcurrentHashMap<>();
+        this.maxTasksOverrides = new ConcurrentHashMap<>();
+        this.maxTasksPerScript = DEFAULT_MAX_TASKS_PER_SCRIPT;
+        this.durableHandlers = new ConcurrentHashMap<>();
+        this.durableHandlerOwners = new ConcurrentHashMap<>();
+        this.durableTasks = new ConcurrentHashMap<>();
+        this.awaitingHandler = new ConcurrentHashMap<>();
+        this.queuedDurable = new ConcurrentHashMap<>();
+        this.journal = journalPath != null ? new DurableTaskJournal(journalPath, logger) : null;
+
+        // Per-tick budget refill for the fair queue
+        executor.scheduleAtFixedRate(fairQueue::onTick, TICK_DURATION_MS, TICK_DURATION_MS, TimeUnit.MILLISECONDS);
+
+        restoreDurableTasks();
     }
 
     /**
@@ -42,74 +137,361 @@ public class Scheduler {
      * @return Task ID that can be used to cancel the task
      */
     public long runLater(@Nonnull Function callback, int delayTicks) {
-        long taskId = nextTaskId.getAndIncrement();
-        long delayMs = delayTicks * TICK_DURATION_MS;
-
-        ScheduledFuture<?> future = executor.schedule(() -> {
-            executeCallback(callback, taskId);
-            tasks.remove(taskId);
-        }, delayMs, TimeUnit.MILLISECONDS);
-
-        tasks.put(taskId, future);
-        return taskId;
+        return runLaterMs(callback, (long) delayTicks * TICK_DURATION_MS);
     }
 
     /**
      * Schedules a task to run after a delay in milliseconds.
      * @param callback The JavaScript function to execute
      * @param delayMs Delay in milliseconds
-     * @return Task ID that can be used to cancel the task
+     * @return Task ID that can be used to cancel the task, or -1 if the script is over its task quota
      */
     public long runLaterMs(@Nonnull Function callback, long delayMs) {
-        long taskId = nextTaskId.getAndIncrement();
+        String owner = currentOwner();
+        long taskId = reserveTask(owner);
+        if (taskId < 0) {
+            return -1;
+        }
 
-        ScheduledFuture<?> future = executor.schedule(() -> {
-            executeCallback(callback, taskId);
-            tasks.remove(taskId);
-        }, delayMs, TimeUnit.MILLISECONDS);
+        ScheduledFuture<?> future = executor.schedule(() -> dispatch(owner, () -> {
+            // Skip if cancelled while waiting in the queue
+            if (taskOwners.containsKey(taskId)) {
+                executeCallback(callback, taskId);
+                release(taskId);
+            }
+        }), delayMs, TimeUnit.MILLISECONDS);
 
         tasks.put(taskId, future);
         return taskId;
     }
 
     /**
-     * Schedules a repeating task.
+     * Schedules a repeating task at a fixed rate.
+     * Runs never overlap; if a run overruns its period, the missed runs are
+     * skipped and counted instead of being queued.
      * @param callback The JavaScript function to execute
      * @param delayTicks Initial delay in game ticks
      * @param periodTicks Period between executions in game ticks
      * @return Task ID that can be used to cancel the task
      */
     public long runRepeating(@Nonnull Function callback, int delayTicks, int periodTicks) {
-        long taskId = nextTaskId.getAndIncrement();
-        long delayMs = delayTicks * TICK_DURATION_MS;
-        long periodMs = periodTicks * TICK_DURATION_MS;
-
-        ScheduledFuture<?> future = executor.scheduleAtFixedRate(() -> {
-            executeCallback(callback, taskId);
-        }, delayMs, periodMs, TimeUnit.MILLISECONDS);
+        return runRepeating(callback, delayTicks, periodTicks, RepeatMode.FIXED_RATE.name());
+    }
 
-        tasks.put(taskId, future);
-        return taskId;
+    /**
+     * Schedules a repeating task with an explicit repeat mode.
+     * @param callback The JavaScript function to execute
+     * @param delayTicks Initial delay in game ticks
+     * @param periodTicks Period in game ticks
+     * @param mode "fixed_rate" or "fixed_delay"
+     * @return Task ID that can be used to cancel the task
+     */
+    public long runRepeating(@Nonnull Function callback, int delayTicks, int periodTicks, @Nonnull String mode) {
+        return runRepeatingMs(callback, (long) delayTicks * TICK_DURATION_MS, (long) periodTicks * TICK_DURATION_MS, mode);
     }
 
     /**
-     * Schedules a repeating task with millisecond precision.
+     * Schedules a repeating task with millisecond precision, at a fixed rate.
      * @param callback The JavaScript function to execute
      * @param delayMs Initial delay in milliseconds
      * @param periodMs Period between executions in milliseconds
      * @return Task ID that can be used to cancel the task
      */
     public long runRepeatingMs(@Nonnull Function callback, long delayMs, long periodMs) {
-        long taskId = nextTaskId.getAndIncrement();
+        return runRepeatingMs(callback, delayMs, periodMs, RepeatMode.FIXED_RATE.name());
+    }
+
+    /**
+     * Schedules a repeating task with millisecond precision and an explicit repeat mode.
+     * @param callback The JavaScript function to execute
+     * @param delayMs Initial delay in milliseconds
+     * @param periodMs Period in milliseconds
+     * @param mode "fixed_rate" or "fixed_delay"
+     * @return Task ID that can be used to cancel the task
+     */
+    public long runRepeatingMs(@Nonnull Function callback, long delayMs, long periodMs, @Nonnull String mode) {
+        RepeatMode repeatMode;
+        try {
+            repeatMode = RepeatMode.valueOf(mode.toUpperCase(Locale.ROOT));
+        } catch (IllegalArgumentException e) {
+            throw new IllegalArgumentException("Unknown repeat mode: " + mode);
+        }
 
-        ScheduledFuture<?> future = executor.scheduleAtFixedRate(() -> {
-            executeCallback(callback, taskId);
-        }, delayMs, periodMs, TimeUnit.MILLISECONDS);
+        String owner = currentOwner();
+        long taskId = reserveTask(owner);
+        if (taskId < 0) {
+            return -1;
+        }
+        return startRepeating(new RepeatingTask(taskId, owner, () -> executeCallback(callback, taskId),
+                repeatMode, delayMs, periodMs));
+    }
 
-        tasks.put(taskId, future);
+    /**
+     * Gets runtime statistics for a repeating or cron task.
+     * @param taskId The task ID
+     * @return The statistics, or null if the task is not a scheduled recurring task
+     */
+    public TaskStats getTaskStats(long taskId) {
+        RecurringTask task = recurringTasks.get(taskId);
+        return task != null ? task.stats : null;
+    }
+
+    /**
+     * Gets how many runs of a recurring task were skipped because it overran its period.
+     * @param taskId The task ID
+     * @return Overrun count, or 0 if unknown
+     */
+    public long getOverrunCount(long taskId) {
+        TaskStats stats = getTaskStats(taskId);
+        return stats != null ? stats.getOverruns() : 0;
+    }
+
+    /**
+     * Gets the average runtime of a recurring task.
+     * @param taskId The task ID
+     * @return Average runtime in milliseconds, or 0 if unknown
+     */
+    public double getAverageRuntimeMs(long taskId) {
+        TaskStats stats = getTaskStats(taskId);
+        return stats != null ? stats.getAverageRuntimeMs() : 0;
+    }
+
+    private long startRepeating(RepeatingTask task) {
+        if (task.periodNanos <= 0) {
+            throw new IllegalArgumentException("Repeating task period must be positive");
+        }
+        task.nextRunNanos = System.nanoTime() + task.initialDelayNanos;
+        recurringTasks.put(task.taskId, task);
+        rearm(task, task.initialDelayNanos, () -> runRepeatingTask(task));
+        return task.taskId;
+    }
+
+    private void runRepeatingTask(RepeatingTask task) {
+        if (!recurringTasks.containsKey(task.taskId)) {
+            return; // Cancelled while waiting in the queue
+        }
+        if (!task.running.compareAndSet(false, true)) {
+            // Never overlap: a run that is still in progress swallows this one
+            task.stats.recordOverruns(1);
+            return;
+        }
+        long start = System.nanoTime();
+        long end;
+        try {
+            task.action.run();
+        } finally {
+            end = System.nanoTime();
+            task.stats.recordRun(end - start);
+            task.running.set(false);
+        }
+
+        long next;
+        if (task.mode == RepeatMode.FIXED_DELAY) {
+            next = end + task.periodNanos;
+        } else {
+            next = task.nextRunNanos + task.periodNanos;
+            if (next - end <= 0) {
+                // Overran: skip every run whose slot has already passed
+                long missed = (end - next) / task.periodNanos + 1;
+                task.stats.recordOverruns(missed);
+                next += missed * task.periodNanos;
+            }
+        }
+        task.nextRunNanos = next;
+        rearm(task, next - System.nanoTime(), () -> runRepeatingTask(task));
+    }
+
+    /**
+     * Arms the next run of a recurring task unless it was cancelled meanwhile.
+     */
+    private void rearm(RecurringTask task, long delayNanos, Runnable run) {
+        synchronized (task) {
+            if (recurringTasks.containsKey(task.taskId)) {
+                tasks.put(task.taskId, executor.schedule(() -> dispatch(task.owner, run),
+                        Math.max(0, delayNanos), TimeUnit.NANOSECONDS));
+            }
+        }
+    }
+
+    /**
+     * Base class for tasks that re-arm themselves after every run.
+     */
+    private abstract static class RecurringTask {
+        final long taskId;
+        final String owner;
+        final TaskStats stats;
+
+        RecurringTask(long taskId, String owner) {
+            this.taskId = taskId;
+            this.owner = owner;
+            this.stats = new TaskStats();
+        }
+    }
+
+    /**
+     * A fixed-rate or fixed-delay repeating task.
+     */
+    private static class RepeatingTask extends RecurringTask {
+        final Runnable action;
+        final RepeatMode mode;
+        final long initialDelayNanos;
+        final long periodNanos;
+        final AtomicBoolean running;
+        volatile long nextRunNanos;
+
+        RepeatingTask(long taskId, String owner, Runnable action, RepeatMode mode, long delayMs, long periodMs) {
+            super(taskId, owner);
+            this.action = action;
+            this.mode = mode;
+            this.initialDelayNanos = TimeUnit.MILLISECONDS.toNanos(Math.max(0, delayMs));
+            this.periodNanos = TimeUnit.MILLISECONDS.toNanos(periodMs);
+            this.running = new AtomicBoolean(false);
+        }
+    }
+
+    // ========================================================================
+    // CRON / WALL-CLOCK SCHEDULES
+    // ========================================================================
+
+    /**
+     * Schedules a task on a cron expression, evaluated against the wall clock.
+     * Unlike runRepeatingMs, cron jobs do not drift and are not reset by reloads.
+     * @param expression Five-field cron expression (e.g., "0 4 * * *" for 04:00 every day)
+     * @param callback The JavaScript function to execute
+     * @return Task ID that can be used to cancel the task
+     */
+    public long cron(@Nonnull String expression, @Nonnull Function callback) {
+        return cron(expression, callback, MisfirePolicy.FIRE_ONCE.name());
+    }
+
+    /**
+     * Schedules a cron task with an explicit misfire policy.
+     * @param expression Five-field cron expression
+     * @param callback The JavaScript function to execute
+     * @param misfirePolicy "fire_once", "catch_up" or "skip"
+     * @return Task ID that can be used to cancel the task, or -1 if the script is over its task quota
+     */
+    public long cron(@Nonnull String expression, @Nonnull Function callback, @Nonnull String misfirePolicy) {
+        CronExpression cronExpression = CronExpression.parse(expression);
+        MisfirePolicy policy;
+        try {
+            policy = MisfirePolicy.valueOf(misfirePolicy.toUpperCase(Locale.ROOT));
+        } catch (IllegalArgumentException e) {
+            throw new IllegalArgumentException("Unknown misfire policy: " + misfirePolicy);
+        }
+
+        String owner = currentOwner();
+        long taskId = reserveTask(owner);
+        if (taskId < 0) {
+            return -1;
+        }
+        CronJob job = new CronJob(taskId, owner, cronExpression, callback, policy, ZoneId.systemDefault());
+        job.nextFireMs = job.nextAfter(System.currentTimeMillis());
+
+        recurringTasks.put(taskId, job);
+        armCron(job);
         return taskId;
     }
 
+    /**
+     * Gets the next precomputed fire time of a cron task.
+     * @param taskId The task ID returned by cron
+     * @return Epoch milliseconds of the next run, or -1 if not a scheduled cron task
+     */
+    public long getNextFireTime(long taskId) {
+        return recurringTasks.get(taskId) instanceof CronJob job ? job.nextFireMs : -1;
+    }
+
+    /**
+     * Gets how many runs of a cron task were dropped by the SKIP policy.
+     * @param taskId The task ID returned by cron
+     * @return Number of skipped runs, or 0 if unknown
+     */
+    public long getSkippedRuns(long taskId) {
+        return recurringTasks.get(taskId) instanceof CronJob job ? job.skippedRuns : 0;
+    }
+
+    private void armCron(CronJob job) {
+        long delayMs = Math.min(job.nextFireMs - System.currentTimeMillis(), CRON_MAX_SLEEP_MS);
+        rearm(job, TimeUnit.MILLISECONDS.toNanos(delayMs), () -> fireCron(job));
+    }
+
+    private void fireCron(CronJob job) {
+        if (!recurringTasks.containsKey(job.taskId)) {
+            return; // Cancelled while waiting in the queue
+        }
+        long now = System.currentTimeMillis();
+
+        // Woke up early: either an intermediate wake-up or the wall clock moved backwards
+        if (now >= job.nextFireMs) {
+            long lateMs = now - job.nextFireMs;
+            if (lateMs <= CRON_MISFIRE_GRACE_MS) {
+                runCron(job);
+                job.nextFireMs = job.nextAfter(job.nextFireMs);
+            } else {
+                handleCronMisfire(job, now);
+            }
+        }
+
+        armCron(job);
+    }
+
+    private void runCron(CronJob job) {
+        long start = System.nanoTime();
+        executeCallback(job.callback, job.taskId);
+        job.stats.recordRun(System.nanoTime() - start);
+    }
+
+    private void handleCronMisfire(CronJob job, long now) {
+        switch (job.policy) {
+            case FIRE_ONCE -> runCron(job);
+            case CATCH_UP -> {
+                int runs = 0;
+                for (long t = job.nextFireMs; t <= now && runs < CRON_MAX_CATCH_UP; t = job.nextAfter(t)) {
+                    // Queued one by one, so runs over the script's budget wait for the next tick
+                    dispatch(job.owner, () -> {
+                        if (recurringTasks.containsKey(job.taskId)) {
+                            runCron(job);
+                        }
+                    });
+                    runs++;
+                }
+            }
+            case SKIP -> {
+                for (long t = job.nextFireMs; t <= now; t = job.nextAfter(t)) {
+                    job.skippedRuns++;
+                }
+                logger.fine("Cron task " + job.taskId + " skipped missed runs (" + job.expression + ")");
+            }
+        }
+        job.nextFireMs = job.nextAfter(System.currentTimeMillis());
+    }
+
+    /**
+     * A cron schedule and its precomputed next fire time.
+     */
+    private static class CronJob extends RecurringTask {
+        final CronExpression expression;
+        final Function callback;
+        final MisfirePolicy policy;
+        final ZoneId zone;
+        volatile long nextFireMs;
+        volatile long skippedRuns;
+
+        CronJob(long taskId, String owner, CronExpression expression, Function callback, MisfirePolicy policy, ZoneId zone) {
+            super(taskId, owner);
+            this.expression = expression;
+            this.callback = callback;
+            this.policy = policy;
+            this.zone = zone;
+        }
+
+        long nextAfter(long epochMs) {
+            ZonedDateTime after = ZonedDateTime.ofInstant(Instant.ofEpochMilli(epochMs), zone);
+            return expression.next(after).toInstant().toEpochMilli();
+        }
+    }
+
     // ========================================================================
     // JAVA RUNNABLE OVERLOADS (for internal use)
     // ========================================================================
@@ -121,7 +503,7 @@ public class Scheduler {
      * @return Task ID that can be used to cancel the task
      */
     public long runLaterMs(@Nonnull Runnable runnable, long delayMs) {
-        long taskId = nextTaskId.getAndIncrement();
+        long taskId = reserveTask(null);
 
         ScheduledFuture<?> future = executor.schedule(() -> {
             try {
@@ -129,7 +511,7 @@ public class Scheduler {
             } catch (Exception e) {
                 logger.severe("Error in scheduled task: " + e.getMessage());
             }
-            tasks.remove(taskId);
+            release(taskId);
         }, delayMs, TimeUnit.MILLISECONDS);
 
         tasks.put(taskId, future);
@@ -137,24 +519,21 @@ public class Scheduler {
     }
 
     /**
-     * Schedules a Java Runnable to run repeatedly.
+     * Schedules a Java Runnable to run repeatedly at a fixed rate.
+     * Overrunning runs are skipped rather than queued.
      * @param runnable The Java Runnable to execute
      * @param periodMs Period between executions in milliseconds
      * @return Task ID that can be used to cancel the task
      */
     public long runRepeatingMs(@Nonnull Runnable runnable, long periodMs) {
-        long taskId = nextTaskId.getAndIncrement();
-
-        ScheduledFuture<?> future = executor.scheduleAtFixedRate(() -> {
+        long taskId = reserveTask(null);
+        return startRepeating(new RepeatingTask(taskId, null, () -> {
             try {
                 runnable.run();
             } catch (Exception e) {
                 logger.severe("Error in repeating task: " + e.getMessage());
             }
-        }, 0, periodMs, TimeUnit.MILLISECONDS);
-
-        tasks.put(taskId, future);
-        return taskId;
+        }, RepeatMode.FIXED_RATE, 0, periodMs));
     }
 
     /**
@@ -163,7 +542,17 @@ public class Scheduler {
      * @return true if the task was cancelled, false if not found
      */
     public boolean cancel(long taskId) {
-        ScheduledFuture<?> future = tasks.remove(taskId);
+        ScheduledFuture<?> future;
+        RecurringTask recurring = recurringTasks.remove(taskId);
+        if (recurring != null) {
+            // Recurring tasks re-arm themselves under this lock
+            synchronized (recurring) {
+                future = tasks.remove(taskId);
+            }
+        } else {
+            future = tasks.remove(taskId);
+        }
+        release(taskId);
         if (future != null) {
             future.cancel(false);
             return true;
@@ -173,12 +562,24 @@ public class Scheduler {
 
     /**
      * Cancels all scheduled tasks.
+     * Durable tasks are not affected; use cancelDurable for those.
      */
     public void cancelAll() {
+        recurringTasks.clear();
         for (ScheduledFuture<?> future : tasks.values()) {
             future.cancel(false);
         }
         tasks.clear();
+        taskOwners.clear();
+        activeTasksPerScript.clear();
+        fairQueue.clearAll();
+        // Queued durable tasks were dropped with the queues; they wait for their handlers
+        for (DurableTaskJournal.Entry entry : queuedDurable.values()) {
+            if (!durableTasks.containsKey(entry.id)) {
+                awaitingHandler.putIfAbsent(entry.id, entry);
+            }
+        }
+        queuedDurable.clear();
     }
 
     /**
@@ -187,6 +588,9 @@ public class Scheduler {
      * @return true if the task exists and hasn't completed
      */
     public boolean isScheduled(long taskId) {
+        if (recurringTasks.containsKey(taskId)) {
+            return true;
+        }
         ScheduledFuture<?> future = tasks.get(taskId);
         return future != null && !future.isDone() && !future.isCancelled();
     }
@@ -199,6 +603,368 @@ public class Scheduler {
         return tasks.size();
     }
 
+    // ========================================================================
+    // PER-SCRIPT FAIRNESS AND QUOTAS
+    // ========================================================================
+
+    /**
+     * Sets the default maximum number of active tasks per script.
+     * Scheduling beyond the limit fails and returns -1.
+     * @param maxTasks Maximum active tasks
+     */
+    public void setMaxTasksPerScript(int maxTasks) {
+        this.maxTasksPerScript = maxTasks;
+    }
+
+    /**
+     * Overrides the maximum number of active tasks for one script.
+     * @param scriptName The script name (e.g., "homes.js")
+     * @param maxTasks Maximum active tasks
+     */
+    public void setMaxTasksForScript(@Nonnull String scriptName, int maxTasks) {
+        maxTasksOverrides.put(scriptName, maxTasks);
+    }
+
+    /**
+     * Sets a script's scheduling weight. A script with weight 2 runs twice as
+     * many due tasks per round and gets twice the CPU budget per tick.
+     * @param scriptName The script name
+     * @param weight Weight, at least 1
+     */
+    public void setScriptWeight(@Nonnull String scriptName, int weight) {
+        fairQueue.setWeight(scriptName, weight);
+    }
+
+    /**
+     * Sets the CPU-time budget each script gets per tick (scaled by weight).
+     * Due tasks beyond the budget are deferred to the next tick.
+     * @param budgetMs Budget in milliseconds
+     */
+    public void setTickBudgetMs(double budgetMs) {
+        fairQueue.setBudgetMs(budgetMs);
+    }
+
+    /**
+     * Gets the CPU-time budget each script gets per tick.
+     * @return Budget in milliseconds
+     */
+    public double getTickBudgetMs() {
+        return fairQueue.getBudgetMs();
+    }
+
+    /**
+     * Gets the number of active tasks owned by a script.
+     * @param scriptName The script name
+     * @return Active task count
+     */
+    public int getActiveTaskCount(@Nonnull String scriptName) {
+        AtomicInteger count = activeTasksPerScript.get(scriptName);
+        return count != null ? count.get() : 0;
+    }
+
+    /**
+     * Drops an unloaded script's fair queue and the due tasks waiting in it.
+     * Durable tasks among them wait for their handler to be registered again
+     * instead of being lost; call after {@link #unregisterDurableHandlers}.
+     * @param scriptName The script name
+     */
+    public void removeScriptQueue(@Nonnull String scriptName) {
+        fairQueue.remove(scriptName);
+        queuedDurable.values().removeIf(entry -> {
+            if (durableHandlers.containsKey(entry.handlerName)) {
+                return false;
+            }
+            if (!durableTasks.containsKey(entry.id)) {
+                awaitingHandler.putIfAbsent(entry.id, entry);
+            }
+            return true;
+        });
+    }
+
+    /**
+     * Gets the number of due tasks deferred for a script because it used up its budget.
+     * @param scriptName The script name
+     * @return Queued task count
+     */
+    public int getQueuedTaskCount(@Nonnull String scriptName) {
+        return fairQueue.getQueuedCount(scriptName);
+    }
+
+    /**
+     * Determines which script is scheduling a task: the script being loaded,
+     * or the script whose callback is running on this thread.
+     */
+    private String currentOwner() {
+        String owner = scriptRegistry != null ? scriptRegistry.getCurrentScript() : null;
+        return owner != null ? owner : UNOWNED;
+    }
+
+    /**
+     * Allocates a task ID and counts it against the owner's quota.
+     * @param owner The owning script, or null for internal tasks
+     * @return The task ID, or -1 if the owner is over quota
+     */
+    private long reserveTask(String owner) {
+        long taskId = nextTaskId.getAndIncrement();
+        if (owner == null) {
+            return taskId;
+        }
+
+        int limit = maxTasksOverrides.getOrDefault(owner, maxTasksPerScript);
+        AtomicInteger count = activeTasksPerScript.computeIfAbsent(owner, k -> new AtomicInteger());
+        if (count.incrementAndGet() > limit) {
+            count.decrementAndGet();
+            logger.warning("Script " + owner + " reached its limit of " + limit + " active tasks");
+            return -1;
+        }
+        taskOwners.put(taskId, owner);
+        if (scriptRegistry != null && !UNOWNED.equals(owner)) {
+            // Recorded against the current script, which is the owner
+            scriptRegistry.recordTask(taskId);
+        }
+        return taskId;
+    }
+
+    /**
+     * Forgets a finished or cancelled task and returns its quota slot.
+     */
+    private void release(long taskId) {
+        tasks.remove(taskId);
+        String owner = taskOwners.remove(taskId);
+        if (owner != null) {
+            AtomicInteger count = activeTasksPerScript.get(owner);
+            if (count != null) {
+                count.decrementAndGet();
+            }
+            if (scriptRegistry != null) {
+                scriptRegistry.forgetTask(taskId);
+            }
+        }
+    }
+
+    /**
+     * Runs a due task: script tasks go through their owner's fair queue and
+     * run attributed to that script, internal tasks run directly on the timer thread.
+     */
+    private void dispatch(String owner, Runnable job) {
+        if (owner == null) {
+            job.run();
+            return;
+        }
+        if (scriptRegistry == null || UNOWNED.equals(owner)) {
+            fairQueue.submit(owner, job);
+            return;
+        }
+        fairQueue.submit(owner, () -> scriptRegistry.runAs(owner, job));
+    }
+
+    // ========================================================================
+    // DURABLE TASKS
+    // ========================================================================
+
+    /**
+     * Registers the handler that runs durable tasks with the given name.
+     * Scripts must register their handlers on every load; durable tasks that
+     * came due before their handler was registered run as soon as it is.
+     * @param handlerName The handler name used in runLaterDurable
+     * @param handler The JavaScript function, called with (payload, id)
+     */
+    public void registerDurableHandler(@Nonnull String handlerName, @Nonnull Function handler) {
+        durableHandlers.put(handlerName, handler);
+        durableHandlerOwners.put(handlerName, currentOwner());
+
+        Iterator<DurableTaskJournal.Entry> it = awaitingHandler.values().iterator();
+        while (it.hasNext()) {
+            DurableTaskJournal.Entry entry = it.next();
+            if (entry.handlerName.equals(handlerName)) {
+                it.remove();
+                executor.execute(() -> dispatchDurable(entry));
+            }
+        }
+    }
+
+    /**
+     * Unregisters the durable handlers a script registered, so its old
+     * functions no longer run after it is unloaded. Its pending tasks stay
+     * in the journal and run once it registers its handlers again.
+     * @param scriptName The script filename
+     */
+    public void unregisterDurableHandlers(@Nonnull String scriptName) {
+        durableHandlerOwners.entrySet().removeIf(entry -> {
+            if (!entry.getValue().equals(scriptName)) {
+                return false;
+            }
+            durableHandlers.remove(entry.getKey());
+            return true;
+        });
+    }
+
+    /**
+     * Schedules a task that survives server restarts and script reloads.
+     * Scheduling again with an existing ID replaces the pending task.
+     * @param id Unique task ID chosen by the script (e.g., "unban:" + uuid)
+     * @param handlerName Name of a handler registered with registerDurableHandler
+     * @param payload String payload passed to the handler (e.g., a JSON string)
+     * @param delayTicks Delay in game ticks (20 ticks = 1 second)
+     * @return true if the task was persisted and scheduled
+     */
+    public boolean runLaterDurable(@Nonnull String id, @Nonnull String handlerName, String payload, int delayTicks) {
+        return runLaterDurableMs(id, handlerName, payload, (long) delayTicks * TICK_DURATION_MS);
+    }
+
+    /**
+     * Schedules a task that survives server restarts, with millisecond precision.
+     * @param id Unique task ID chosen by the script
+     * @param handlerName Name of a handler registered with registerDurableHandler
+     * @param payload String payload passed to the handler
+     * @param delayMs Delay in milliseconds
+     * @return true if the task was persisted and scheduled
+     */
+    public boolean runLaterDurableMs(@Nonnull String id, @Nonnull String handlerName, String payload, long delayMs) {
+        if (journal == null) {
+            logger.warning("Durable tasks are not available - scheduling " + id + " failed");
+            return false;
+        }
+
+        DurableTaskJournal.Entry entry = new DurableTaskJournal.Entry(id, handlerName, payload,
+                System.currentTimeMillis() + delayMs);
+        try {
+            journal.recordScheduled(entry);
+        } catch (IOException e) {
+            logger.severe("Error persisting durable task " + id + ": " + e.getMessage());
+            return false;
+        }
+
+        // A due run of the old task that is still queued is dropped as well
+        awaitingHandler.remove(id);
+        queuedDurable.remove(id);
+        scheduleDurable(entry);
+        return true;
+    }
+
+    /**
+     * Cancels a durable task and removes it from the journal, also when it
+     * is already due and waiting in its script's queue.
+     * @param id The durable task ID
+     * @return true if the task was pending
+     */
+    public boolean cancelDurable(@Nonnull String id) {
+        ScheduledFuture<?> future = durableTasks.remove(id);
+        boolean queued = queuedDurable.remove(id) != null;
+        boolean pending = awaitingHandler.remove(id) != null || queued || future != null;
+        if (future != null) {
+            future.cancel(false);
+        }
+        if (pending) {
+            markDurableDone(id);
+        }
+        return pending;
+    }
+
+    /**
+     * Checks if a durable task is still pending.
+     * @param id The durable task ID
+     * @return true if the task is scheduled, queued to run, or waiting for its handler
+     */
+    public boolean isDurableScheduled(@Nonnull String id) {
+        return durableTasks.containsKey(id) || queuedDurable.containsKey(id) || awaitingHandler.containsKey(id);
+    }
+
+    /**
+     * Gets the number of pending durable tasks.
+     * @return Count of durable tasks
+     */
+    public int getDurableTaskCount() {
+        return durableTasks.size() + queuedDurable.size() + awaitingHandler.size();
+    }
+
+    /**
+     * Replays the journal and arms a timer for every pending durable task.
+     */
+    private void restoreDurableTasks() {
+        if (journal == null) {
+            return;
+        }
+        try {
+            List<DurableTaskJournal.Entry> pending = journal.open();
+            for (DurableTaskJournal.Entry entry : pending) {
+                scheduleDurable(entry);
+            }
+            if (!pending.isEmpty()) {
+                logger.info("Restored " + pending.size() + " durable tasks");
+            }
+        } catch (IOException e) {
+            logger.severe("Error restoring durable tasks: " + e.getMessage());
+        }
+    }
+
+    private void scheduleDurable(DurableTaskJournal.Entry entry) {
+        long delayMs = Math.max(0, entry.dueAtMs - System.currentTimeMillis());
+        ScheduledFuture<?> future = executor.schedule(() -> {
+            if (durableTasks.remove(entry.id) != null) {
+                dispatchDurable(entry);
+            }
+        }, delayMs, TimeUnit.MILLISECONDS);
+
+        ScheduledFuture<?> previous = durableTasks.put(entry.id, future);
+        if (previous != null) {
+            previous.cancel(false);
+        }
+    }
+
+    /**
+     * Runs a due durable task in its handler's script queue, or parks it
+     * until its handler is registered.
+     */
+    private void dispatchDurable(DurableTaskJournal.Entry entry) {
+        Function handler = durableHandlers.get(entry.handlerName);
+        if (handler == null) {
+            awaitingHandler.put(entry.id, entry);
+            return;
+        }
+        queuedDurable.put(entry.id, entry);
+        dispatch(durableHandlerOwners.getOrDefault(entry.handlerName, UNOWNED), () -> runDurable(entry));
+    }
+
+    private void runDurable(DurableTaskJournal.Entry entry) {
+        if (!queuedDurable.remove(entry.id, entry)) {
+            // Cancelled, replaced or parked while it was queued
+            return;
+        }
+        // Looked up again: the handler may have been replaced or unregistered while the task was queued
+        Function handler = durableHandlers.get(entry.handlerName);
+        if (handler == null) {
+            if (!durableTasks.containsKey(entry.id)) {
+                awaitingHandler.putIfAbsent(entry.id, entry);
+            }
+            return;
+        }
+        try {
+            Context cx = Context.enter();
+            try {
+                handler.call(cx, scope, scope, new Object[]{entry.payload, entry.id});
+            } finally {
+                Context.exit();
+            }
+        } catch (Exception e) {
+            logger.severe("Error executing durable task " + entry.id + ": " + e.getMessage());
+        }
+        // Only this run is done; a task the handler scheduled again under the same ID stays in the journal
+        try {
+            journal.recordDone(entry);
+        } catch (IOException e) {
+            logger.severe("Error updating task journal for " + entry.id + ": " + e.getMessage());
+        }
+    }
+
+    private void markDurableDone(String id) {
+        try {
+            journal.recordDone(id);
+        } catch (IOException e) {
+            logger.severe("Error updating task journal for " + id + ": " + e.getMessage());
+        }
+    }
+
     /**
      * Converts seconds to ticks.
      * @param seconds Number of seconds
@@ -239,6 +1005,13 @@ public class Scheduler {
      */
     public void shutdown() {
         cancelAll();
+
+        // Durable tasks stay in the journal and are restored by the next scheduler
+        for (ScheduledFuture<?> future : durableTasks.values()) {
+            future.cancel(false);
+        }
+        durableTasks.clear();
+        awaitingHandler.clear();
         executor.shutdown();
         try {
             if (!executor.awaitTermination(5, TimeUnit.SECONDS)) {
@@ -248,5 +1021,9 @@ public class Scheduler {
             executor.shutdownNow();
             Thread.currentThread().interrupt();
         }
+
+        if (journal != null) {
+            journal.close();
+        }
     }
 }
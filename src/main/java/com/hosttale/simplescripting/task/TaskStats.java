@@ -0,0 +1,71 @@
+package com.hosttale.simplescripting.task;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Runtime statistics for a recurring task.
+ * Updated by the scheduler threads and readable from any thread.
+ */
+public class TaskStats {
+    private final AtomicLong runs = new AtomicLong();
+    private final AtomicLong overruns = new AtomicLong();
+    private final AtomicLong totalRuntimeNanos = new AtomicLong();
+    private final AtomicLong maxRuntimeNanos = new AtomicLong();
+
+    /**
+     * Records one completed execution.
+     * @param runtimeNanos How long the execution took
+     */
+    void recordRun(long runtimeNanos) {
+        runs.incrementAndGet();
+        totalRuntimeNanos.addAndGet(runtimeNanos);
+        maxRuntimeNanos.accumulateAndGet(runtimeNanos, Math::max);
+    }
+
+    /**
+     * Records executions that were skipped because the task overran its period.
+     * @param missed Number of skipped executions
+     */
+    void recordOverruns(long missed) {
+        overruns.addAndGet(missed);
+    }
+
+    /**
+     * Gets the number of completed executions.
+     * @return Run count
+     */
+    public long getRuns() {
+        return runs.get();
+    }
+
+    /**
+     * Gets the number of executions skipped because a previous run overran.
+     * @return Overrun count
+     */
+    public long getOverruns() {
+        return overruns.get();
+    }
+
+    /**
+     * Gets the average execution time.
+     * @return Average runtime in milliseconds, or 0 if the task has not run yet
+     */
+    public double getAverageRuntimeMs() {
+        long count = runs.get();
+        return count == 0 ? 0 : totalRuntimeNanos.get() / (count * 1_000_000.0);
+    }
+
+    /**
+     * Gets the longest execution time.
+     * @return Maximum runtime in milliseconds
+     */
+    public double getMaxRuntimeMs() {
+        return maxRuntimeNanos.get() / 1_000_000.0;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("runs=%d, overruns=%d, avg=%.2fms, max=%.2fms",
+                getRuns(), getOverruns(), getAverageRuntimeMs(), getMaxRuntimeMs());
+    }
+}
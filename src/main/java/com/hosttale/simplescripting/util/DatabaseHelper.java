@@ -3,39 +3,75 @@ package com.hosttale.simplescripting.util;
 import com.google.gson.Gson;
 import com.google.gson.GsonBuilder;
 import com.google.gson.JsonElement;
-import com.google.gson.JsonObject;
 import com.google.gson.JsonParser;
-import com.hypixel.hytale.server.core.Constants;
+import com.google.gson.JsonPrimitive;
+import com.hosttale.simplescripting.db.ChangeFeed;
+import com.hosttale.simplescripting.db.CollectionOptions;
+import com.hosttale.simplescripting.db.Database;
+import com.hosttale.simplescripting.db.DocumentStore;
+import com.hosttale.simplescripting.db.JdbcStorageEngine;
+import com.hosttale.simplescripting.db.ScanPage;
+import com.hosttale.simplescripting.db.StorageEngineFactory;
+import com.hosttale.simplescripting.db.Durability;
+import com.hosttale.simplescripting.db.Transaction;
+import com.hosttale.simplescripting.managers.ScriptRegistry;
+import com.hypixel.hytale.server.core.universe.Universe;
+import com.hypixel.hytale.server.core.universe.world.World;
+import org.mozilla.javascript.Context;
+import org.mozilla.javascript.Function;
+import org.mozilla.javascript.Scriptable;
+import org.mozilla.javascript.ScriptableObject;
+import org.mozilla.javascript.Undefined;
 
 import java.io.IOException;
-import java.nio.file.Files;
 import java.nio.file.Path;
-import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
 import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.function.Supplier;
 
 /**
  * Helper class for persisting data in JSON files from JavaScript.
  * Provides simple database-like functionality using JSON files.
+ * Files are cached in memory by {@link Database}; changes are written back
+ * in the background, so reads and writes never touch the disk directly.
+ * Safe to call from any thread; use {@link #update} for read-modify-write.
  */
 public class DatabaseHelper {
-    private final Path dbPath;
+    private static final String EXPORT_DIRECTORY = "exports";
+    // Next to the db directory, so a backup never contains the earlier ones
+    private static final String BACKUP_DIRECTORY = "backups";
+    private static final int DEFAULT_SCAN_LIMIT = 100;
+    private static final String CURSOR_MARK = ">";
+
+    private final Database database;
     private final Gson gson;
+    private Scriptable scope;
+    private ScriptRegistry scriptRegistry;
 
-    public DatabaseHelper() {
-        // Create db folder in SimpleScripting directory
-        this.dbPath = Constants.UNIVERSE_PATH
-                .resolve("SimpleScripting")
-                .resolve("db");
+    public DatabaseHelper(Database database) {
+        this.database = database;
         this.gson = new GsonBuilder().setPrettyPrinting().create();
-        
-        // Ensure db directory exists
-        try {
-            if (!Files.exists(dbPath)) {
-                Files.createDirectories(dbPath);
-            }
-        } catch (IOException e) {
-            throw new RuntimeException("Failed to create database directory", e);
-        }
+    }
+
+    /**
+     * Sets the JavaScript scope for callback execution.
+     * @param scope The Rhino scope
+     */
+    public void setScope(Scriptable scope) {
+        this.scope = scope;
+    }
+
+    /**
+     * Sets the script registry so async callbacks are attributed to the calling script.
+     * @param scriptRegistry The script registry
+     */
+    public void setScriptRegistry(ScriptRegistry scriptRegistry) {
+        this.scriptRegistry = scriptRegistry;
     }
 
     /**
@@ -47,47 +83,31 @@ public class DatabaseHelper {
      */
     public boolean save(String fileName, String key, Object value) {
         try {
-            Path filePath = dbPath.resolve(fileName + ".json");
-            
-            // Read existing data or create new object
-            JsonObject data;
-            if (Files.exists(filePath)) {
-                String content = Files.readString(filePath);
-                data = JsonParser.parseString(content).getAsJsonObject();
-            } else {
-                data = new JsonObject();
-            }
-            
-            // Add or update the key-value pair
-            if (value instanceof String) {
-                String strValue = (String) value;
-                // Try to parse as JSON if it looks like JSON
-                if (strValue.trim().startsWith("{") || strValue.trim().startsWith("[")) {
-                    try {
-                        JsonElement jsonValue = JsonParser.parseString(strValue);
-                        data.add(key, jsonValue);
-                    } catch (Exception e) {
-                        // If not valid JSON, store as string
-                        data.addProperty(key, strValue);
-                    }
-                } else {
-                    data.addProperty(key, strValue);
-                }
-            } else if (value instanceof Number) {
-                data.addProperty(key, (Number) value);
-            } else if (value instanceof Boolean) {
-                data.addProperty(key, (Boolean) value);
-            } else {
-                // Try to convert to JSON
-                String jsonStr = gson.toJson(value);
-                JsonElement jsonValue = JsonParser.parseString(jsonStr);
-                data.add(key, jsonValue);
-            }
-            
-            // Write to file
-            String json = gson.toJson(data);
-            Files.writeString(filePath, json, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING);
-            
+            DocumentStore store = database.open(fileName);
+            store.put(key, toJsonElement(value));
+            database.awaitDurable(store);
+            return true;
+        } catch (Exception e) {
+            e.printStackTrace();
+            return false;
+        }
+    }
+
+    /**
+     * Saves data that expires after a number of seconds. Once expired the key
+     * reads as missing and is removed in the background; saving it again
+     * without a time to live makes it permanent.
+     * @param fileName The name of the file (without .json extension)
+     * @param key The key to store the data under
+     * @param value The value to store (can be String, Number, Boolean, or JSON string)
+     * @param seconds Time to live in seconds
+     * @return true if successful, false otherwise
+     */
+    public boolean saveWithTtl(String fileName, String key, Object value, double seconds) {
+        try {
+            DocumentStore store = database.open(fileName);
+            database.putExpiring(store, key, toJsonElement(value), Math.round(seconds * 1000));
+            database.awaitDurable(store);
             return true;
         } catch (Exception e) {
             e.printStackTrace();
@@ -103,21 +123,12 @@ public class DatabaseHelper {
      */
     public String get(String fileName, String key) {
         try {
-            Path filePath = dbPath.resolve(fileName + ".json");
+            JsonElement element = database.get(fileName, key);
             
-            if (!Files.exists(filePath)) {
+            if (element == null) {
                 return null;
             }
             
-            String content = Files.readString(filePath);
-            JsonObject data = JsonParser.parseString(content).getAsJsonObject();
-            
-            if (!data.has(key)) {
-                return null;
-            }
-            
-            JsonElement element = data.get(key);
-            
             // Return the element as string
             if (element.isJsonPrimitive()) {
                 return element.getAsString();
@@ -131,6 +142,235 @@ public class DatabaseHelper {
         }
     }
 
+    /**
+     * Saves a script object, array or other value as is, without converting it to a
+     * JSON string first (unlike {@link #save}, strings are never parsed as JSON).
+     * @param fileName The name of the file (without .json extension)
+     * @param key The key to store the data under
+     * @param value The value to store
+     * @return true if successful, false otherwise
+     */
+    public boolean putObject(String fileName, String key, Object value) {
+        try {
+            DocumentStore store = database.open(fileName);
+            store.put(key, Database.requirePlainValue(JsonConverter.fromScript(value)));
+            database.awaitDurable(store);
+            return true;
+        } catch (Exception e) {
+            e.printStackTrace();
+            return false;
+        }
+    }
+
+    /**
+     * Reads data as a script value: objects and arrays come back as script
+     * objects and arrays, without a JSON string to parse.
+     * @param fileName The name of the file (without .json extension)
+     * @param key The key to read
+     * @return The value, or null if not found
+     */
+    public Object getObject(String fileName, String key) {
+        try {
+            JsonElement element = database.get(fileName, key);
+            if (element == null) {
+                return null;
+            }
+            Context cx = Context.enter();
+            try {
+                return JsonConverter.toScript(cx, scope, element);
+            } finally {
+                Context.exit();
+            }
+        } catch (Exception e) {
+            e.printStackTrace();
+            return null;
+        }
+    }
+
+    /**
+     * Reads data on the DB I/O thread instead of the caller's.
+     * @param fileName The name of the file (without .json extension)
+     * @param key The key to read
+     * @return Future with the value as get returns it, completed on the calling world's thread
+     */
+    public CompletableFuture<String> getAsync(String fileName, String key) {
+        return getAsync(fileName, key, null);
+    }
+
+    /**
+     * Reads data on the DB I/O thread instead of the caller's.
+     * @param fileName The name of the file (without .json extension)
+     * @param key The key to read
+     * @param callback JavaScript function receiving the value, called on the calling world's thread
+     * @return Future with the value as get returns it, completed on the calling world's thread
+     */
+    public CompletableFuture<String> getAsync(String fileName, String key, Function callback) {
+        return runAsync(() -> get(fileName, key), callback);
+    }
+
+    /**
+     * Saves data on the DB I/O thread instead of the caller's.
+     * @param fileName The name of the file (without .json extension)
+     * @param key The key to store the data under
+     * @param value The value to store
+     * @return Future with true if successful, completed on the calling world's thread
+     */
+    public CompletableFuture<Boolean> saveAsync(String fileName, String key, Object value) {
+        return saveAsync(fileName, key, value, null);
+    }
+
+    /**
+     * Saves data on the DB I/O thread instead of the caller's. With "sync"
+     * durability the callback runs once the write is on disk.
+     * @param fileName The name of the file (without .json extension)
+     * @param key The key to store the data under
+     * @param value The value to store
+     * @param callback JavaScript function receiving true if successful, called on the calling world's thread
+     * @return Future with true if successful, completed on the calling world's thread
+     */
+    public CompletableFuture<Boolean> saveAsync(String fileName, String key, Object value, Function callback) {
+        // Converted now: script objects must not be read from another thread
+        JsonElement element = toJsonElement(value);
+        return runAsync(() -> save(fileName, key, element), callback);
+    }
+
+    /**
+     * Deletes a key on the DB I/O thread instead of the caller's.
+     * @param fileName The name of the file (without .json extension)
+     * @param key The key to delete
+     * @return Future with true if the key existed, completed on the calling world's thread
+     */
+    public CompletableFuture<Boolean> deleteAsync(String fileName, String key) {
+        return deleteAsync(fileName, key, null);
+    }
+
+    /**
+     * Deletes a key on the DB I/O thread instead of the caller's.
+     * @param fileName The name of the file (without .json extension)
+     * @param key The key to delete
+     * @param callback JavaScript function receiving true if the key existed, called on the calling world's thread
+     * @return Future with true if the key existed, completed on the calling world's thread
+     */
+    public CompletableFuture<Boolean> deleteAsync(String fileName, String key, Function callback) {
+        return runAsync(() -> delete(fileName, key), callback);
+    }
+
+    /**
+     * Atomically adds to a counter. Counters are kept in memory and written
+     * with the next flush, so incrementing costs no file write. A missing key
+     * starts at 0; a string holding a whole number (e.g., saved with
+     * String(count)) is converted.
+     * @param fileName The name of the file (without .json extension)
+     * @param key The counter key
+     * @param delta The whole amount to add
+     * @return The new value, or NaN on error (e.g., the value is not a whole number)
+     */
+    public double incr(String fileName, String key, double delta) {
+        try {
+            DocumentStore store = database.open(fileName);
+            long value = store.increment(key, toCounterDelta(delta));
+            database.awaitDurable(store);
+            return value;
+        } catch (Exception e) {
+            e.printStackTrace();
+            return Double.NaN;
+        }
+    }
+
+    /**
+     * Atomically adds 1 to a counter.
+     * @param fileName The name of the file (without .json extension)
+     * @param key The counter key
+     * @return The new value, or NaN on error
+     */
+    public double incr(String fileName, String key) {
+        return incr(fileName, key, 1);
+    }
+
+    /**
+     * Atomically subtracts from a counter.
+     * @param fileName The name of the file (without .json extension)
+     * @param key The counter key
+     * @param delta The whole amount to subtract
+     * @return The new value, or NaN on error
+     */
+    public double decr(String fileName, String key, double delta) {
+        return incr(fileName, key, -delta);
+    }
+
+    /**
+     * Atomically subtracts 1 from a counter.
+     * @param fileName The name of the file (without .json extension)
+     * @param key The counter key
+     * @return The new value, or NaN on error
+     */
+    public double decr(String fileName, String key) {
+        return incr(fileName, key, -1);
+    }
+
+    /**
+     * Atomically replaces a value only if it still equals the expected one,
+     * e.g., to spend a balance read earlier without losing concurrent changes.
+     * Values are compared as JSON; numbers compare by value.
+     * @param fileName The name of the file (without .json extension)
+     * @param key The key
+     * @param expected The expected value (as for save), or null to expect the key to be missing
+     * @param value The new value (as for save), or null to delete the key
+     * @return true if the value matched and was replaced, false otherwise or on error
+     */
+    public boolean compareAndSet(String fileName, String key, Object expected, Object value) {
+        try {
+            DocumentStore store = database.open(fileName);
+            boolean swapped = store.compareAndSet(key, toOptionalJsonElement(expected), toOptionalJsonElement(value));
+            if (swapped) {
+                database.awaitDurable(store);
+            }
+            return swapped;
+        } catch (Exception e) {
+            e.printStackTrace();
+            return false;
+        }
+    }
+
+    /**
+     * Atomically updates a value: no other write to the file can happen between
+     * reading the current value and saving the new one, so concurrent updates
+     * (e.g., from scheduled tasks and commands) are never lost.
+     * Keep the callback short; other writers of the file wait for it.
+     * @param fileName The name of the file (without .json extension)
+     * @param key The key to update
+     * @param callback JavaScript function receiving the current value (as get
+     *                 returns it, null if absent) and returning the new value;
+     *                 return null to delete the key or undefined to leave it unchanged
+     * @return The new value as get would return it, or null if deleted or on error
+     */
+    public String update(String fileName, String key, Function callback) {
+        try {
+            DocumentStore store = database.open(fileName);
+            JsonElement value = store.update(key, current -> {
+                Object result;
+                Context cx = Context.enter();
+                try {
+                    result = callback.call(cx, scope, scope, new Object[]{toScriptValue(current)});
+                } finally {
+                    Context.exit();
+                }
+                if (result instanceof Undefined) {
+                    return current;
+                }
+                if (result instanceof CharSequence) {
+                    result = result.toString();
+                }
+                return result == null ? null : toJsonElement(result);
+            });
+            database.awaitDurable(store);
+            return toScriptValue(value);
+        } catch (Exception e) {
+            e.printStackTrace();
+            return null;
+        }
+    }
+
     /**
      * Checks if a key exists in a file.
      * @param fileName The name of the file (without .json extension)
@@ -139,16 +379,49 @@ public class DatabaseHelper {
      */
     public boolean has(String fileName, String key) {
         try {
-            Path filePath = dbPath.resolve(fileName + ".json");
-            
-            if (!Files.exists(filePath)) {
-                return false;
-            }
-            
-            String content = Files.readString(filePath);
-            JsonObject data = JsonParser.parseString(content).getAsJsonObject();
-            
-            return data.has(key);
+            return database.get(fileName, key) != null;
+        } catch (Exception e) {
+            e.printStackTrace();
+            return false;
+        }
+    }
+
+    /**
+     * Atomically sets one nested field of a value, without reading, parsing and
+     * saving the whole value in the script. Missing objects on the way are
+     * created, and an index equal to an array's length appends to it.
+     * @param fileName The name of the file (without .json extension)
+     * @param key The key of the value
+     * @param path The field, e.g., 'homes.base.x', 'history[0]' or 'homes["my base"]'
+     * @param value The value to set, stored as is like {@link #putObject}
+     * @return true if successful, false otherwise
+     */
+    public boolean update(String fileName, String key, String path, Object value) {
+        try {
+            DocumentStore store = database.open(fileName);
+            store.setPath(key, path, JsonConverter.fromScript(value));
+            database.awaitDurable(store);
+            return true;
+        } catch (Exception e) {
+            e.printStackTrace();
+            return false;
+        }
+    }
+
+    /**
+     * Atomically removes one nested field of a value, see {@link #update(String, String, String, Object)}.
+     * Removing an array element moves the following ones down.
+     * @param fileName The name of the file (without .json extension)
+     * @param key The key of the value
+     * @param path The field
+     * @return true if the field existed and was removed, false otherwise
+     */
+    public boolean remove(String fileName, String key, String path) {
+        try {
+            DocumentStore store = database.open(fileName);
+            boolean removed = store.removePath(key, path);
+            database.awaitDurable(store);
+            return removed;
         } catch (Exception e) {
             e.printStackTrace();
             return false;
@@ -163,25 +436,148 @@ public class DatabaseHelper {
      */
     public boolean delete(String fileName, String key) {
         try {
-            Path filePath = dbPath.resolve(fileName + ".json");
-            
-            if (!Files.exists(filePath)) {
-                return false;
+            DocumentStore store = database.open(fileName);
+            boolean removed = store.remove(key);
+            database.awaitDurable(store);
+            return removed;
+        } catch (Exception e) {
+            e.printStackTrace();
+            return false;
+        }
+    }
+
+    /**
+     * Gets all data from a file. Expired keys are left out, and values saved
+     * with a time to live appear as the plain value.
+     * @param fileName The name of the file (without .json extension)
+     * @return JSON string of all data, or null if file doesn't exist
+     */
+    public String getAll(String fileName) {
+        try {
+            DocumentStore store = database.open(fileName);
+            // As get returns them: expired values left out, expiry metadata removed
+            return store.exists() ? gson.toJson(store.visibleEntries()) : null;
+        } catch (Exception e) {
+            e.printStackTrace();
+            return null;
+        }
+    }
+
+    /**
+     * Reads the first page of keys starting with a prefix, in key order.
+     * @param fileName The name of the file (without .json extension)
+     * @param prefix The key prefix; empty for all keys
+     * @return Page object, see {@link #scan(String, String, int, String)}
+     */
+    public Object scan(String fileName, String prefix) {
+        return scan(fileName, prefix, DEFAULT_SCAN_LIMIT, (String) null);
+    }
+
+    /**
+     * Reads the first page of keys starting with a prefix, in key order.
+     * @param fileName The name of the file (without .json extension)
+     * @param prefix The key prefix; empty for all keys
+     * @param limit Maximum number of keys per page
+     * @return Page object, see {@link #scan(String, String, int, String)}
+     */
+    public Object scan(String fileName, String prefix, int limit) {
+        return scan(fileName, prefix, limit, (String) null);
+    }
+
+    /**
+     * Reads one page of keys starting with a prefix, in key order, without
+     * loading the rest of the file into the script. Pass the returned cursor
+     * to get the next page; it is null once all keys were seen.
+     * @param fileName The name of the file (without .json extension)
+     * @param prefix The key prefix; empty for all keys
+     * @param limit Maximum number of keys per page
+     * @param cursor The cursor of the previous page, or null/undefined for the first page
+     * @return { entries: [{ key, value }], cursor }, with values as getObject returns
+     *         them, or null on error
+     */
+    public Object scan(String fileName, String prefix, int limit, String cursor) {
+        try {
+            ScanPage page = database.open(fileName).scan(prefix, fromCursor(cursor), limit);
+            Context cx = Context.enter();
+            try {
+                Scriptable result = cx.newObject(scope);
+                ScriptableObject.putProperty(result, "entries", toScriptEntries(cx, page.getEntries()));
+                ScriptableObject.putProperty(result, "cursor", page.getCursor() != null ? CURSOR_MARK + page.getCursor() : null);
+                return result;
+            } finally {
+                Context.exit();
             }
-            
-            String content = Files.readString(filePath);
-            JsonObject data = JsonParser.parseString(content).getAsJsonObject();
-            
-            if (!data.has(key)) {
-                return false;
+        } catch (Exception e) {
+            e.printStackTrace();
+            return null;
+        }
+    }
+
+    /**
+     * Calls a function whenever keys of a file change, see {@link #watch(String, String, Function)}.
+     * @param fileName The name of the file (without .json extension)
+     * @param callback Called with an array of {key, value}
+     * @return The watch ID for {@link #unwatch}, or -1 on error
+     */
+    public long watch(String fileName, Function callback) {
+        return watch(fileName, "", callback);
+    }
+
+    /**
+     * Calls a function whenever keys starting with a prefix change, instead of
+     * polling them. Changes are collected for a tick (50 ms) and delivered
+     * together on the calling world's thread as an array of {key, value}, one
+     * entry per key with its latest value; value is null if the key was
+     * deleted or expired. Watches are removed when the script is unloaded.
+     * @param fileName The name of the file (without .json extension)
+     * @param keyPrefix The key prefix; empty for all keys
+     * @param callback Called with the changes
+     * @return The watch ID for {@link #unwatch}, or -1 on error
+     */
+    public long watch(String fileName, String keyPrefix, Function callback) {
+        try {
+            ChangeFeed changeFeed = database.getChangeFeed();
+            Executor callerThread = callerWorldExecutor();
+            String owner = scriptRegistry != null ? scriptRegistry.getCurrentScript() : null;
+            long id = changeFeed.subscribe(fileName, keyPrefix, (watchId, changes) -> callerThread.execute(() -> {
+                // Changes already in flight when the watch was removed are dropped
+                if (changeFeed.isSubscribed(watchId)) {
+                    runAs(owner, () -> callWatcher(callback, changes));
+                }
+            }));
+            if (scriptRegistry != null) {
+                scriptRegistry.recordWatch(id);
             }
-            
-            data.remove(key);
-            
-            // Write back to file
-            String json = gson.toJson(data);
-            Files.writeString(filePath, json, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING);
-            
+            return id;
+        } catch (Exception e) {
+            e.printStackTrace();
+            return -1;
+        }
+    }
+
+    /**
+     * Stops a watch.
+     * @param watchId The ID returned by {@link #watch}
+     * @return true if the watch existed
+     */
+    public boolean unwatch(long watchId) {
+        if (scriptRegistry != null) {
+            scriptRegistry.forgetWatch(watchId);
+        }
+        return database.getChangeFeed().unsubscribe(watchId);
+    }
+
+    /**
+     * Declares an index on a field of the documents in a file, for {@link #query}.
+     * Indexes are kept in memory, so declare them each time the script loads.
+     * @param fileName The name of the file (without .json extension)
+     * @param field The field, with dots for nested fields (e.g., "location.world"),
+     *              or "" to index values that are not objects, like rank ids
+     * @return true if successful, false otherwise
+     */
+    public boolean createIndex(String fileName, String field) {
+        try {
+            database.createIndex(fileName, field);
             return true;
         } catch (Exception e) {
             e.printStackTrace();
@@ -190,19 +586,24 @@ public class DatabaseHelper {
     }
 
     /**
-     * Gets all data from a file.
+     * Finds the documents whose field has a value, through the field's index,
+     * without reading the other documents. A field holding an array matches
+     * if any of its elements does.
      * @param fileName The name of the file (without .json extension)
-     * @return JSON string of all data, or null if file doesn't exist
+     * @param field A field declared with {@link #createIndex}
+     * @param value The value to look for; a string, number or boolean
+     * @return Array of { key, value } in key order, with values as getObject
+     *         returns them, or null on error (e.g., the field has no index)
      */
-    public String getAll(String fileName) {
+    public Object query(String fileName, String field, Object value) {
         try {
-            Path filePath = dbPath.resolve(fileName + ".json");
-            
-            if (!Files.exists(filePath)) {
-                return null;
+            Map<String, JsonElement> documents = database.open(fileName).query(field, JsonConverter.fromScript(value));
+            Context cx = Context.enter();
+            try {
+                return toScriptEntries(cx, documents);
+            } finally {
+                Context.exit();
             }
-            
-            return Files.readString(filePath);
         } catch (Exception e) {
             e.printStackTrace();
             return null;
@@ -216,13 +617,60 @@ public class DatabaseHelper {
      */
     public boolean deleteFile(String fileName) {
         try {
-            Path filePath = dbPath.resolve(fileName + ".json");
-            
-            if (!Files.exists(filePath)) {
-                return false;
+            return database.drop(fileName);
+        } catch (Exception e) {
+            e.printStackTrace();
+            return false;
+        }
+    }
+
+    /**
+     * Sets storage options for a file. Call before the file is first used;
+     * an already loaded file is migrated to the new engine.
+     * Options: engine - "json" (default, one JSON file), "binary" (one compact
+     * binary file, smaller and faster to load), "log" (append-only log,
+     * cheaper writes for large files) or "btree" (on-disk B+tree for very large
+     * files, not loaded into memory); an existing JSON file is imported.
+     * cacheSizeMb - how much of a "btree" file may be mapped in memory (default 32).
+     * durability - "lazy" (default, written by the background flush), "group"
+     * (synced to disk a few milliseconds after each write, shared with other writes)
+     * or "sync" (like "group", but save and delete wait until the write is on disk).
+     * commitDelayMs - how long "group" and "sync" writes are collected before syncing (default 5).
+     * shards - split the file into this many files, each loaded only when one of
+     * its keys is used (default 1; not for "btree"). shardBy - "hash" (default)
+     * or "uuid" to pick the shard by the leading hex digits of UUID keys (16, 256 or 4096 shards).
+     * @param fileName The name of the file (without extension)
+     * @param options JavaScript object with the options
+     * @return true if successful, false otherwise
+     */
+    public boolean configure(String fileName, Map<?, ?> options) {
+        try {
+            CollectionOptions collectionOptions = new CollectionOptions();
+            Object engine = options.get("engine");
+            if (engine != null) {
+                collectionOptions.setEngine(engine.toString());
             }
-            
-            Files.delete(filePath);
+            Object cacheSizeMb = options.get("cacheSizeMb");
+            if (cacheSizeMb instanceof Number) {
+                collectionOptions.setCacheSizeMb(((Number) cacheSizeMb).intValue());
+            }
+            Object durability = options.get("durability");
+            if (durability != null) {
+                collectionOptions.setDurability(Durability.fromName(durability.toString()));
+            }
+            Object commitDelayMs = options.get("commitDelayMs");
+            if (commitDelayMs instanceof Number) {
+                collectionOptions.setCommitDelayMs(((Number) commitDelayMs).longValue());
+            }
+            Object shards = options.get("shards");
+            if (shards instanceof Number) {
+                collectionOptions.setShards(((Number) shards).intValue());
+            }
+            Object shardBy = options.get("shardBy");
+            if (shardBy != null) {
+                collectionOptions.setShardBy(shardBy.toString());
+            }
+            database.configure(fileName, collectionOptions);
             return true;
         } catch (Exception e) {
             e.printStackTrace();
@@ -230,12 +678,184 @@ public class DatabaseHelper {
         }
     }
 
+    /**
+     * Connects the DB to a SQL database, so files can be configured with
+     * engine 'jdbc' and kept in a table there instead of on disk. The JDBC
+     * driver must be on the server's classpath. Calling it again with the same
+     * URL and table (e.g., after a script reload) keeps the existing connection.
+     * @param options url (required), user, password, table (default
+     *                "simplescripting_documents"), poolSize (default 4) and
+     *                driver (class to load, for drivers that do not register themselves)
+     * @return true if the engine is available
+     */
+    public boolean connectJdbc(Map<?, ?> options) {
+        try {
+            Object url = options.get("url");
+            if (url == null) {
+                throw new IllegalArgumentException("Missing url");
+            }
+            Object table = options.get("table");
+            String tableName = table != null ? table.toString() : JdbcStorageEngine.DEFAULT_TABLE;
+            StorageEngineFactory existing = database.getEngine(JdbcStorageEngine.NAME);
+            if (existing != null) {
+                if (existing instanceof JdbcStorageEngine.Factory factory
+                        && factory.getUrl().equals(url.toString()) && factory.getTable().equals(tableName)) {
+                    return true;
+                }
+                throw new IllegalStateException("Already connected to another database; restart the server to change it");
+            }
+            Object driver = options.get("driver");
+            if (driver != null) {
+                Class.forName(driver.toString());
+            }
+            Object user = options.get("user");
+            Object password = options.get("password");
+            Object poolSize = options.get("poolSize");
+            database.registerEngine(JdbcStorageEngine.NAME, new JdbcStorageEngine.Factory(url.toString(),
+                    user != null ? user.toString() : null, password != null ? password.toString() : null, tableName,
+                    poolSize instanceof Number ? ((Number) poolSize).intValue() : JdbcStorageEngine.DEFAULT_POOL_SIZE,
+                    database.getLogger()));
+            return true;
+        } catch (Exception e) {
+            e.printStackTrace();
+            return false;
+        }
+    }
+
+    /**
+     * Runs several writes to one file as a single atomic write.
+     * The callback receives a batch with save, delete, get and has (same as DB,
+     * without the file name). The writes are applied together and written to
+     * disk at once when the callback returns; if it throws or returns false,
+     * none of them are applied.
+     * @param fileName The name of the file (without .json extension)
+     * @param callback JavaScript function receiving the batch
+     * @return true if the writes were applied and are on disk
+     */
+    public boolean batch(String fileName, Function callback) {
+        Transaction transaction = database.beginTransaction();
+        return runTransaction(transaction, callback, new BatchApi(transaction, fileName));
+    }
+
+    /**
+     * Runs writes to several files as one transaction: all of them are applied
+     * and written to disk, or none are. The callback receives a transaction with
+     * save, delete, get and has taking the same arguments as DB; reads see the
+     * transaction's own writes. If the callback throws or returns false,
+     * nothing is applied.
+     * @param callback JavaScript function receiving the transaction
+     * @return true if the writes were applied and are on disk
+     */
+    public boolean transaction(Function callback) {
+        Transaction transaction = database.beginTransaction();
+        return runTransaction(transaction, callback, new TransactionApi(transaction));
+    }
+
+    /**
+     * Exports a file as plain JSON to db/exports/&lt;file&gt;.json, whatever its engine.
+     * @param fileName The name of the file (without extension)
+     * @return The path of the exported file, or null on error
+     */
+    public String exportJson(String fileName) {
+        try {
+            Path target = exportPath(fileName);
+            database.exportJson(fileName, target);
+            return target.toString();
+        } catch (Exception e) {
+            e.printStackTrace();
+            return null;
+        }
+    }
+
+    /**
+     * Imports every key of db/exports/&lt;source&gt;.json into a file, whatever its
+     * engine. All keys are written at once; existing keys not in the JSON are kept.
+     * @param fileName The name of the file to import into (without extension)
+     * @param sourceName The name of the JSON file in db/exports (without extension)
+     * @return The number of keys imported, or -1 on error
+     */
+    public int importJson(String fileName, String sourceName) {
+        try {
+            return database.importJson(fileName, exportPath(sourceName));
+        } catch (Exception e) {
+            e.printStackTrace();
+            return -1;
+        }
+    }
+
+    /**
+     * Writes a consistent copy of all files to backups/&lt;name&gt;, next to the db
+     * directory. Files unchanged since the newest backup are linked to it
+     * instead of copied, so each backup only takes the space of what changed.
+     * Scripts keep writing while it runs.
+     * @param name The name of the snapshot directory
+     * @return The path of the snapshot, or null on error
+     */
+    public String snapshot(String name) {
+        try {
+            Path directory = backupDirectory();
+            Path target = directory.resolve(checkName(name, "snapshot"));
+            database.snapshot(target, Database.latestSnapshot(directory));
+            return target.toString();
+        } catch (Exception e) {
+            e.printStackTrace();
+            return null;
+        }
+    }
+
+    /**
+     * Writes a backup named after the current time, like {@link #snapshot(String)}.
+     * @return The path of the backup, or null on error
+     */
+    public String backup() {
+        try {
+            return database.backup(backupDirectory()).toString();
+        } catch (Exception e) {
+            e.printStackTrace();
+            return null;
+        }
+    }
+
+    /**
+     * Writes a backup on the I/O executor, then calls back on the calling world's thread.
+     * @param callback Called with the path of the backup, or null on error
+     * @return A future of the path
+     */
+    public CompletableFuture<String> backupAsync(Function callback) {
+        return runAsync(this::backup, callback);
+    }
+
+    /**
+     * Writes pending changes of a file to disk now instead of waiting for the flusher.
+     * @param fileName The name of the file (without .json extension)
+     * @return true if the file is up to date on disk
+     */
+    public boolean flush(String fileName) {
+        return database.flush(fileName);
+    }
+
+    /**
+     * Writes pending changes of all files to disk now.
+     * @return true if all files are up to date on disk
+     */
+    public boolean flushAll() {
+        return database.flushAll();
+    }
+
+    /**
+     * Sets how often pending changes are written to disk.
+     * @param intervalMs Interval in milliseconds
+     */
+    public void setFlushInterval(long intervalMs) {
+        database.setFlushIntervalMs(intervalMs);
+    }
+
     /**
      * Gets the database directory path.
      * @return The path to the db directory
      */
     public String getDbPath() {
-        return dbPath.toString();
+        return database.getPath().toString();
     }
 
     /**
@@ -244,4 +864,272 @@ public class DatabaseHelper {
     public UUID castStringToUUID(String str) {
         return UUID.fromString(str);
     }
+
+    private Path exportPath(String name) {
+        return database.getPath().resolve(EXPORT_DIRECTORY).resolve(checkName(name, "export") + ".json");
+    }
+
+    private Path backupDirectory() {
+        return database.getPath().toAbsolutePath().resolveSibling(BACKUP_DIRECTORY);
+    }
+
+    private static String checkName(String name, String kind) {
+        if (name.isEmpty() || name.contains("/") || name.contains("\\") || name.contains("..")) {
+            throw new IllegalArgumentException("Invalid " + kind + " name: " + name);
+        }
+        return name;
+    }
+
+    /**
+     * Runs a DB call on the I/O executor, then hands the result back to the
+     * calling world's thread (the first world if not called from one).
+     * Both run attributed to the calling script, so whatever the callback
+     * registers is removed with it. The returned future fails if the call
+     * throws or the database is closed, and then the callback is not called.
+     */
+    private <T> CompletableFuture<T> runAsync(Supplier<T> operation, Function callback) {
+        CompletableFuture<T> result = new CompletableFuture<>();
+        Executor callerThread = callerWorldExecutor();
+        String owner = scriptRegistry != null ? scriptRegistry.getCurrentScript() : null;
+        Runnable complete = () -> runAs(owner, () -> {
+            T value;
+            try {
+                value = operation.get();
+            } catch (RuntimeException e) {
+                e.printStackTrace();
+                result.completeExceptionally(e);
+                return;
+            }
+            try {
+                callerThread.execute(() -> {
+                    try {
+                        if (callback != null) {
+                            runAs(owner, () -> callAsyncCallback(callback, value));
+                        }
+                    } finally {
+                        result.complete(value);
+                    }
+                });
+            } catch (RuntimeException e) {
+                // The world is shutting down: the result is still available to Java callers
+                result.complete(value);
+            }
+        });
+        try {
+            database.getIoExecutor().execute(complete);
+        } catch (RejectedExecutionException e) {
+            // Database closed: fail rather than block this world's thread on the call
+            e.printStackTrace();
+            result.completeExceptionally(e);
+        }
+        return result;
+    }
+
+    private Executor callerWorldExecutor() {
+        World fallback = null;
+        for (World world : Universe.get().getWorlds().values()) {
+            if (world.isInThread()) {
+                return world::execute;
+            }
+            if (fallback == null) {
+                fallback = world;
+            }
+        }
+        return fallback != null ? fallback::execute : Runnable::run;
+    }
+
+    private void callAsyncCallback(Function callback, Object value) {
+        try {
+            Context cx = Context.enter();
+            try {
+                callback.call(cx, scope, scope, new Object[]{value});
+            } finally {
+                Context.exit();
+            }
+        } catch (Exception e) {
+            e.printStackTrace();
+        }
+    }
+
+    private void runAs(String owner, Runnable action) {
+        if (scriptRegistry != null) {
+            scriptRegistry.runAs(owner, action);
+        } else {
+            action.run();
+        }
+    }
+
+    private void callWatcher(Function callback, Map<String, JsonElement> changes) {
+        try {
+            Context cx = Context.enter();
+            try {
+                callback.call(cx, scope, scope, new Object[]{toScriptEntries(cx, changes)});
+            } finally {
+                Context.exit();
+            }
+        } catch (Exception e) {
+            e.printStackTrace();
+        }
+    }
+
+    private boolean runTransaction(Transaction transaction, Function callback, Object api) {
+        try {
+            Object result;
+            Context cx = Context.enter();
+            try {
+                result = callback.call(cx, scope, scope, new Object[]{Context.javaToJS(api, scope)});
+            } finally {
+                Context.exit();
+            }
+            if (Boolean.FALSE.equals(result)) {
+                return false;
+            }
+            transaction.commit();
+            return true;
+        } catch (Exception e) {
+            e.printStackTrace();
+            return false;
+        }
+    }
+
+    /**
+     * Converts a DB value to what get returns: primitives as strings, objects as JSON.
+     */
+    private String toScriptValue(JsonElement element) {
+        if (element == null) {
+            return null;
+        }
+        return element.isJsonPrimitive() ? element.getAsString() : gson.toJson(element);
+    }
+
+    /**
+     * Writes of {@link #transaction}, across files.
+     */
+    public class TransactionApi {
+        private final Transaction transaction;
+
+        TransactionApi(Transaction transaction) {
+            this.transaction = transaction;
+        }
+
+        public void save(String fileName, String key, Object value) {
+            transaction.put(fileName, key, toJsonElement(value));
+        }
+
+        public void delete(String fileName, String key) {
+            transaction.remove(fileName, key);
+        }
+
+        public String get(String fileName, String key) throws IOException {
+            return toScriptValue(transaction.get(fileName, key));
+        }
+
+        public boolean has(String fileName, String key) throws IOException {
+            return transaction.has(fileName, key);
+        }
+    }
+
+    /**
+     * Writes of {@link #batch}, bound to one file.
+     */
+    public class BatchApi {
+        private final Transaction transaction;
+        private final String fileName;
+
+        BatchApi(Transaction transaction, String fileName) {
+            this.transaction = transaction;
+            this.fileName = fileName;
+        }
+
+        public void save(String key, Object value) {
+            transaction.put(fileName, key, toJsonElement(value));
+        }
+
+        public void delete(String key) {
+            transaction.remove(fileName, key);
+        }
+
+        public String get(String key) throws IOException {
+            return toScriptValue(transaction.get(fileName, key));
+        }
+
+        public boolean has(String key) throws IOException {
+            return transaction.has(fileName, key);
+        }
+    }
+
+    /**
+     * Converts documents to a script array of {key, value} objects.
+     */
+    private Scriptable toScriptEntries(Context cx, Map<String, JsonElement> documents) {
+        List<Object> entries = new ArrayList<>();
+        for (Map.Entry<String, JsonElement> entry : documents.entrySet()) {
+            Scriptable item = cx.newObject(scope);
+            ScriptableObject.putProperty(item, "key", entry.getKey());
+            ScriptableObject.putProperty(item, "value", JsonConverter.toScript(cx, scope, entry.getValue()));
+            entries.add(item);
+        }
+        return cx.newArray(scope, entries.toArray());
+    }
+
+    /**
+     * Reads a cursor returned by scan. Cursors are marked, since Rhino passes an
+     * undefined argument as the string "undefined", which could also be a key.
+     */
+    private static String fromCursor(String cursor) {
+        if (cursor == null || cursor.equals("undefined")) {
+            return null;
+        }
+        if (!cursor.startsWith(CURSOR_MARK)) {
+            throw new IllegalArgumentException("Not a scan cursor: " + cursor);
+        }
+        return cursor.substring(CURSOR_MARK.length());
+    }
+
+    private static long toCounterDelta(double delta) {
+        if (delta != Math.rint(delta) || Math.abs(delta) >= 0x1p63) {
+            throw new IllegalArgumentException("Counter delta must be a whole number: " + delta);
+        }
+        return (long) delta;
+    }
+
+    /**
+     * Converts a script value to JSON; null and undefined stand for a missing key.
+     */
+    private JsonElement toOptionalJsonElement(Object value) {
+        return value == null || value instanceof Undefined ? null : toJsonElement(value);
+    }
+
+    /**
+     * Converts a script value to JSON. Strings that look like JSON are stored as JSON.
+     * @throws IllegalArgumentException if the value is shaped like a value with a time to live
+     */
+    private JsonElement toJsonElement(Object value) {
+        return Database.requirePlainValue(toJsonTree(value));
+    }
+
+    private JsonElement toJsonTree(Object value) {
+        if (value instanceof JsonElement) {
+            return (JsonElement) value;
+        } else if (value instanceof String) {
+            String strValue = (String) value;
+            // Try to parse as JSON if it looks like JSON
+            if (strValue.trim().startsWith("{") || strValue.trim().startsWith("[")) {
+                try {
+                    return JsonParser.parseString(strValue);
+                } catch (Exception e) {
+                    // If not valid JSON, store as string
+                    return new JsonPrimitive(strValue);
+                }
+            }
+            return new JsonPrimitive(strValue);
+        } else if (value instanceof Number) {
+            return new JsonPrimitive((Number) value);
+        } else if (value instanceof Boolean) {
+            return new JsonPrimitive((Boolean) value);
+        } else {
+            // Try to convert to JSON
+            return gson.toJsonTree(value);
+        }
+    }
 }
@@ -0,0 +1,151 @@
+package com.hosttale.simplescripting.util;
+
+import com.google.gson.Gson;
+import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonNull;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonPrimitive;
+import org.mozilla.javascript.Context;
+import org.mozilla.javascript.Function;
+import org.mozilla.javascript.NativeArray;
+import org.mozilla.javascript.Scriptable;
+import org.mozilla.javascript.ScriptableObject;
+import org.mozilla.javascript.Undefined;
+import org.mozilla.javascript.Wrapper;
+
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Converts between Gson JSON values and JavaScript values directly, without
+ * going through JSON text. Follows the rules of JSON.stringify: functions and
+ * undefined properties are skipped, undefined array elements become null.
+ */
+public final class JsonConverter {
+    private static final Gson GSON = new Gson();
+    // Largest magnitude below which every whole double is exact
+    private static final double MAX_EXACT_DOUBLE = 9.007199254740992E15;
+
+    private JsonConverter() {
+    }
+
+    /**
+     * Converts a JSON value to a JavaScript value.
+     * @param cx The current context
+     * @param scope The scope new objects and arrays belong to
+     * @param element The JSON value
+     * @return An object, array, string, number or boolean; null for JSON null or a null element
+     */
+    public static Object toScript(Context cx, Scriptable scope, JsonElement element) {
+        if (element == null || element.isJsonNull()) {
+            return null;
+        }
+        if (element.isJsonObject()) {
+            Scriptable object = cx.newObject(scope);
+            for (Map.Entry<String, JsonElement> entry : element.getAsJsonObject().entrySet()) {
+                ScriptableObject.putProperty(object, entry.getKey(), toScript(cx, scope, entry.getValue()));
+            }
+            return object;
+        }
+        if (element.isJsonArray()) {
+            JsonArray array = element.getAsJsonArray();
+            Object[] elements = new Object[array.size()];
+            for (int i = 0; i < elements.length; i++) {
+                elements[i] = toScript(cx, scope, array.get(i));
+            }
+            return cx.newArray(scope, elements);
+        }
+        JsonPrimitive primitive = element.getAsJsonPrimitive();
+        if (primitive.isBoolean()) {
+            return primitive.getAsBoolean();
+        }
+        if (primitive.isNumber()) {
+            // All script numbers are doubles
+            return primitive.getAsDouble();
+        }
+        return primitive.getAsString();
+    }
+
+    /**
+     * Converts a JavaScript value to a JSON value.
+     * @param value The value, e.g., a script object, array, string or number
+     * @return The JSON value; JSON null for null or undefined
+     * @throws IllegalArgumentException if the value contains itself
+     */
+    public static JsonElement fromScript(Object value) {
+        return fromScript(value, Collections.newSetFromMap(new IdentityHashMap<>()));
+    }
+
+    private static JsonElement fromScript(Object value, Set<Object> parents) {
+        if (value instanceof Wrapper) {
+            value = ((Wrapper) value).unwrap();
+        }
+        if (value == null || value instanceof Undefined) {
+            return JsonNull.INSTANCE;
+        }
+        if (value instanceof JsonElement) {
+            return (JsonElement) value;
+        }
+        if (value instanceof CharSequence || value instanceof Character) {
+            // Script strings may be ConsStrings
+            return new JsonPrimitive(value.toString());
+        }
+        if (value instanceof Boolean) {
+            return new JsonPrimitive((Boolean) value);
+        }
+        if (value instanceof Number) {
+            return toJsonNumber((Number) value);
+        }
+        if (!(value instanceof Scriptable)) {
+            return GSON.toJsonTree(value);
+        }
+        if (!parents.add(value)) {
+            throw new IllegalArgumentException("Cannot store a value that contains itself");
+        }
+        try {
+            Scriptable object = (Scriptable) value;
+            if (object instanceof NativeArray) {
+                NativeArray array = (NativeArray) object;
+                JsonArray json = new JsonArray();
+                long length = array.getLength();
+                for (int i = 0; i < length; i++) {
+                    Object element = array.get(i, array);
+                    json.add(element instanceof Function || element == Scriptable.NOT_FOUND
+                            ? JsonNull.INSTANCE : fromScript(element, parents));
+                }
+                return json;
+            }
+            JsonObject json = new JsonObject();
+            for (Object id : object.getIds()) {
+                Object property = id instanceof Integer
+                        ? ScriptableObject.getProperty(object, (Integer) id)
+                        : ScriptableObject.getProperty(object, id.toString());
+                if (property instanceof Function || property instanceof Undefined || property == Scriptable.NOT_FOUND) {
+                    continue;
+                }
+                json.add(id.toString(), fromScript(property, parents));
+            }
+            return json;
+        } finally {
+            parents.remove(value);
+        }
+    }
+
+    private static JsonElement toJsonNumber(Number number) {
+        if (number instanceof Double || number instanceof Float) {
+            double value = number.doubleValue();
+            if (Double.isNaN(value) || Double.isInfinite(value)) {
+                // As in JSON.stringify
+                return JsonNull.INSTANCE;
+            }
+            // Whole numbers are stored without a fraction, e.g., 64 instead of 64.0
+            if (value == Math.rint(value) && Math.abs(value) <= MAX_EXACT_DOUBLE) {
+                return new JsonPrimitive((long) value);
+            }
+        }
+        return new JsonPrimitive(number);
+    }
+}
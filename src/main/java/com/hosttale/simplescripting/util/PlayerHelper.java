@@ -1,5 +1,6 @@
 package com.hosttale.simplescripting.util;
 
+import com.hosttale.simplescripting.managers.ScriptRegistry;
 import com.hypixel.hytale.component.Ref;
 import com.hypixel.hytale.component.Store;
 import com.hypixel.hytale.math.vector.Vector3d;
@@ -28,6 +29,7 @@ import java.util.UUID;
 public class PlayerHelper {
     private final Logger logger;
     private Scriptable scope;
+    private ScriptRegistry scriptRegistry;
 
     public PlayerHelper(Logger logger) {
         this.logger = logger;
@@ -41,6 +43,14 @@ public class PlayerHelper {
         this.scope = scope;
     }
 
+    /**
+     * Sets the script registry so callbacks stay attributed to the calling script.
+     * @param scriptRegistry The script registry
+     */
+    public void setScriptRegistry(ScriptRegistry scriptRegistry) {
+        this.scriptRegistry = scriptRegistry;
+    }
+
     // ========================================================================
     // WORLD THREAD EXECUTION
     // ========================================================================
@@ -60,7 +70,7 @@ public class PlayerHelper {
             return;
         }
         
-        world.execute(() -> {
+        world.execute(bindToCurrentScript(() -> {
             try {
                 Context cx = Context.enter();
                 try {
@@ -71,7 +81,7 @@ public class PlayerHelper {
             } catch (Exception e) {
                 logger.severe("Error executing callback on world thread: " + e.getMessage());
             }
-        });
+        }));
     }
     
     /**
@@ -97,7 +107,7 @@ public class PlayerHelper {
         }
         
         final World finalWorld = world;
-        finalWorld.execute(() -> {
+        finalWorld.execute(bindToCurrentScript(() -> {
             try {
                 Context cx = Context.enter();
                 try {
@@ -108,7 +118,7 @@ public class PlayerHelper {
             } catch (Exception e) {
                 logger.severe("Error executing callback on world thread: " + e.getMessage());
             }
-        });
+        }));
     }
     
     /**
@@ -121,6 +131,17 @@ public class PlayerHelper {
         runOnWorldThread("default", callback);
     }
     
+    /**
+     * Wraps a callback so it runs attributed to the script calling this method.
+     */
+    private Runnable bindToCurrentScript(Runnable action) {
+        if (scriptRegistry == null) {
+            return action;
+        }
+        String owner = scriptRegistry.getCurrentScript();
+        return () -> scriptRegistry.runAs(owner, action);
+    }
+
     /**
      * Gets the World object for a player safely.
      * Uses the player's EntityStore to get their current world.
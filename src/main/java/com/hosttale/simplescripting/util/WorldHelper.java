@@ -1,5 +1,6 @@
 package com.hosttale.simplescripting.util;
 
+import com.hosttale.simplescripting.managers.ScriptRegistry;
 import com.hypixel.hytale.math.util.ChunkUtil;
 import com.hypixel.hytale.server.core.universe.Universe;
 import com.hypixel.hytale.server.core.universe.world.World;
@@ -20,6 +21,7 @@ import java.util.concurrent.CompletableFuture;
 public class WorldHelper {
     private final Logger logger;
     private Scriptable scope;
+    private ScriptRegistry scriptRegistry;
 
     public WorldHelper(Logger logger) {
         this.logger = logger;
@@ -33,6 +35,14 @@ public class WorldHelper {
         this.scope = scope;
     }
 
+    /**
+     * Sets the script registry so callbacks stay attributed to the calling script.
+     * @param scriptRegistry The script registry
+     */
+    public void setScriptRegistry(ScriptRegistry scriptRegistry) {
+        this.scriptRegistry = scriptRegistry;
+    }
+
     /**
      * Gets a world by name.
      * @param name The world name
@@ -311,6 +321,7 @@ public class WorldHelper {
      */
     public void findSafeTeleportY(@Nonnull World world, int x, int z, int maxY, @Nonnull Function callback) {
         String worldName = world.getName();
+        String owner = scriptRegistry != null ? scriptRegistry.getCurrentScript() : null;
         
         preloadChunk(worldName, x, z).thenCompose(loaded -> {
             if (!loaded) {
@@ -320,16 +331,23 @@ public class WorldHelper {
         }).thenAccept(safeY -> {
             // Call JavaScript callback with result
             if (scope != null) {
-                try {
-                    Context cx = Context.enter();
+                Runnable invoke = () -> {
                     try {
-                        Object result = (safeY != null && safeY > 0) ? safeY : null;
-                        callback.call(cx, scope, scope, new Object[]{result});
-                    } finally {
-                        Context.exit();
+                        Context cx = Context.enter();
+                        try {
+                            Object result = (safeY != null && safeY > 0) ? safeY : null;
+                            callback.call(cx, scope, scope, new Object[]{result});
+                        } finally {
+                            Context.exit();
+                        }
+                    } catch (Exception e) {
+                        logger.severe("Error calling findSafeTeleportY callback: " + e.getMessage());
                     }
-                } catch (Exception e) {
-                    logger.severe("Error calling findSafeTeleportY callback: " + e.getMessage());
+                };
+                if (scriptRegistry != null) {
+                    scriptRegistry.runAs(owner, invoke);
+                } else {
+                    invoke.run();
                 }
             }
         });
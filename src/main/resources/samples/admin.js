@@ -5,6 +5,7 @@
  * Commands:
  *   /simplescripting reload  - Reload all scripts
  *   /simplescripting info    - Show plugin info
+ *   /simplescripting backup  - Back up the database
  *   /tp <player>             - Teleport to a player
  *   /tphere <player>         - Teleport a player to you
  *   /playerinfo <player>     - Show player information
@@ -20,7 +21,7 @@
     Commands.register()
         .setName('simplescripting')
         .setDescription('SimpleScripting admin commands')
-        .addRequiredStringArg('action', 'Action: reload or info')
+        .addRequiredStringArg('action', 'Action: reload, info or backup')
         .setHandler(function(ctx) {
             var action = ctx.getArgAsString('action');
             
@@ -41,6 +42,11 @@
                 return;
             }
 
+            if (action === 'backup') {
+                handleBackup(ctx);
+                return;
+            }
+
             showPluginUsage(ctx);
         });
     
@@ -48,6 +54,7 @@
         ctx.sendMessage('&6=== SimpleScripting Commands ===');
         ctx.sendMessage('&f/simplescripting reload&7 - Reload all scripts');
         ctx.sendMessage('&f/simplescripting info&7 - Show plugin info');
+        ctx.sendMessage('&f/simplescripting backup&7 - Back up the database');
     }
     
     function handleReload(ctx) {
@@ -74,6 +81,26 @@
         }
     }
     
+    function handleBackup(ctx) {
+        // Check permission
+        var player = Utils.getPlayerFromContext(ctx);
+        if (player && !Permissions.has(player, 'simplescripting.admin')) {
+            ctx.sendMessage('&cYou don\'t have permission to back up the database.');
+            return;
+        }
+
+        ctx.sendMessage('&eBacking up the database...');
+
+        // Copied off the world thread; files unchanged since the last backup are linked, not copied
+        DB.backupAsync(function(path) {
+            if (path) {
+                ctx.sendMessage('&aDatabase backed up to &f' + path);
+            } else {
+                ctx.sendMessage('&cBackup failed, see the server log.');
+            }
+        });
+    }
+    
     function handleInfo(ctx) {
         ctx.sendMessage('&6=== SimpleScripting ===');
         ctx.sendMessage('&7Version: &f1.0.0');
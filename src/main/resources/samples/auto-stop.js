@@ -1,6 +1,6 @@
 /**
  * Auto-Stop System
- * Automatically stops server every hour.
+ * Automatically stops server every hour, on the hour.
  *
  */
 
@@ -11,12 +11,9 @@
      * Before activating this script, please add a bash script to auto-start the server.
 	 * 
 	 * Example:
- 	Scheduler.runRepeatingMs(
-		function () {
-			CommandExecutor.executeAsConsole("stop");
-		},
-		1000 * 60 * 60,
-	);
+ 	Scheduler.cron("0 * * * *", function () {
+		CommandExecutor.executeAsConsole("stop");
+	});
 
 	Logger.info("Auto-Stop script loaded.");
 	*/
@@ -10,6 +10,10 @@
     'use strict';
     
     var DB_FILE = 'back_locations';
+    // One small file per UUID prefix instead of one file holding every player
+    DB.configure(DB_FILE, { shards: 16, shardBy: 'uuid' });
+    // Keys are player UUIDs: served from memory while the player is online
+    PlayerData.register(DB_FILE);
     var cooldowns = Utils.createCooldownTracker('cooldowns', 'back');
     
     // In-memory cache for faster access (also persisted for restart survival)
@@ -31,19 +35,9 @@
         }
         
         // Load from DB
-        var data = DB.get(DB_FILE, playerId);
-        if (!data) {
-            locationHistory[playerId] = [];
-            return [];
-        }
-        try {
-            var history = JSON.parse(data);
-            locationHistory[playerId] = history;
-            return history;
-        } catch (e) {
-            locationHistory[playerId] = [];
-            return [];
-        }
+        var history = DB.getObject(DB_FILE, playerId) || [];
+        locationHistory[playerId] = history;
+        return history;
     }
     
     /**
@@ -53,7 +47,7 @@
      */
     function saveHistory(playerId, history) {
         locationHistory[playerId] = history;
-        DB.save(DB_FILE, playerId, JSON.stringify(history));
+        DB.putObject(DB_FILE, playerId, history);
     }
     
     /**
@@ -140,7 +134,7 @@
             var warmupSeconds = Config.getPlayerSetting(playerId, 'back.warmupSeconds');
             
             // Set cooldown
-            cooldowns.setCooldown(playerId, 'teleport');
+            cooldowns.setCooldown(playerId, 'teleport', cooldownSeconds);
             
             // Teleport with warmup
             var reasonText = location.reason === 'death' ? 'your death location' : 'your previous location';
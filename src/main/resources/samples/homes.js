@@ -13,6 +13,10 @@
     'use strict';
     
     var DB_FILE = 'player_homes';
+    // One small file per UUID prefix instead of one file holding every player
+    DB.configure(DB_FILE, { shards: 16, shardBy: 'uuid' });
+    // Keys are player UUIDs: served from memory while the player is online
+    PlayerData.register(DB_FILE);
     var cooldowns = Utils.createCooldownTracker('cooldowns', 'home');
     
     // ========================================================================
@@ -25,24 +29,35 @@
      * @returns {Object} Map of home name to location data
      */
     function getPlayerHomes(playerId) {
-        var data = DB.get(DB_FILE, playerId);
-        if (!data) {
-            return {};
-        }
-        try {
-            return JSON.parse(data);
-        } catch (e) {
-            return {};
-        }
+        return DB.getObject(DB_FILE, playerId) || {};
     }
     
     /**
-     * Saves all homes for a player.
+     * Saves one home of a player, leaving the others untouched.
      * @param {string} playerId - Player UUID
-     * @param {Object} homes - Map of home name to location data
+     * @param {string} homeName - Home name
+     * @param {Object} home - Location data
      */
-    function savePlayerHomes(playerId, homes) {
-        DB.save(DB_FILE, playerId, JSON.stringify(homes));
+    function savePlayerHome(playerId, homeName, home) {
+        DB.update(DB_FILE, playerId, homePath(homeName), home);
+    }
+    
+    /**
+     * Deletes one home of a player.
+     * @param {string} playerId - Player UUID
+     * @param {string} homeName - Home name
+     */
+    function deletePlayerHome(playerId, homeName) {
+        DB.remove(DB_FILE, playerId, homePath(homeName));
+    }
+    
+    /**
+     * Gets the DB path of a home; quoted, since names may contain dots.
+     * @param {string} homeName - Home name
+     * @returns {string} Path such as ["base"]
+     */
+    function homePath(homeName) {
+        return '[' + JSON.stringify(homeName) + ']';
     }
     
     /**
@@ -100,7 +115,7 @@
             }
             
             // Save home
-            homes[homeName] = {
+            savePlayerHome(playerId, homeName, {
                 x: location.x,
                 y: location.y,
                 z: location.z,
@@ -108,9 +123,7 @@
                 yaw: location.yaw,
                 worldName: location.worldName,
                 createdAt: java.lang.System.currentTimeMillis()
-            };
-            
-            savePlayerHomes(playerId, homes);
+            });
             
             var posStr = Utils.formatPosition(location.x, location.y, location.z);
             if (isUpdate) {
@@ -161,7 +174,7 @@
             var warmupSeconds = Config.getPlayerSetting(playerId, 'homes.warmupSeconds');
             
             // Set cooldown before teleport
-            cooldowns.setCooldown(playerId, 'teleport');
+            cooldowns.setCooldown(playerId, 'teleport', cooldownSeconds);
             
             // Teleport with warmup
             Utils.teleportWithWarmup(player, home, warmupSeconds, 'home \'' + homeName + '\'', null);
@@ -196,8 +209,7 @@
             }
             
             // Delete home
-            delete homes[homeName];
-            savePlayerHomes(playerId, homes);
+            deletePlayerHome(playerId, homeName);
             
             ctx.sendMessage('&aHome \'&f' + homeName + '&a\' deleted.');
         });
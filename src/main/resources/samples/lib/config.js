@@ -136,6 +136,7 @@ var Config = (function() {
     
     // Rank configuration storage
     var RANKS_FILE = 'ranks';
+    PlayerData.register(RANKS_FILE, 'player:{uuid}');
     
     /**
      * Gets a player's rank ID.
@@ -65,6 +65,7 @@ var Utils = (function() {
      * @returns {Object} Cooldown tracker with check, set, and remaining methods
      */
     function createCooldownTracker(dbFile, prefix) {
+        PlayerData.register(dbFile, prefix + ':{uuid}:*');
         return {
             /**
              * Checks if a player is on cooldown.
@@ -115,11 +116,16 @@ var Utils = (function() {
              * Starts/resets a cooldown for a player.
              * @param {string} playerId - Player UUID
              * @param {string} action - Action name
+             * @param {number} [cooldownSeconds] - Cooldown duration; the entry is removed once it has passed
              */
-            setCooldown: function(playerId, action) {
+            setCooldown: function(playerId, action, cooldownSeconds) {
                 var key = prefix + ':' + playerId + ':' + action;
                 var now = java.lang.System.currentTimeMillis();
-                DB.save(dbFile, key, String(now));
+                if (cooldownSeconds > 0) {
+                    DB.saveWithTtl(dbFile, key, String(now), cooldownSeconds);
+                } else {
+                    DB.save(dbFile, key, String(now));
+                }
             },
             
             /**
@@ -323,7 +329,7 @@ var Utils = (function() {
      * @param {Object} location - Location with x, y, z, pitch, yaw, worldName
      */
     function saveLocation(dbFile, key, location) {
-        var data = JSON.stringify({
+        DB.putObject(dbFile, key, {
             x: location.x,
             y: location.y,
             z: location.z,
@@ -332,7 +338,6 @@ var Utils = (function() {
             worldName: location.worldName,
             timestamp: java.lang.System.currentTimeMillis()
         });
-        DB.save(dbFile, key, data);
     }
     
     /**
@@ -342,16 +347,7 @@ var Utils = (function() {
      * @returns {Object|null} Location object or null if not found
      */
     function loadLocation(dbFile, key) {
-        var data = DB.get(dbFile, key);
-        if (!data) {
-            return null;
-        }
-        try {
-            return JSON.parse(data);
-        } catch (e) {
-            Logger.warning('Failed to parse location data: ' + e.message);
-            return null;
-        }
+        return DB.getObject(dbFile, key);
     }
     
     /**
@@ -114,7 +114,7 @@
         ctx.sendMessage('&eFinding a random location...');
         
         // Set cooldown immediately to prevent spam
-        cooldowns.setCooldown(playerId, 'teleport');
+        cooldowns.setCooldown(playerId, 'teleport', cooldownSeconds);
         
         findRandomLocation(player, minDistance, maxDistance, maxAttempts, function(success, location) {
             // Re-verify player is still online
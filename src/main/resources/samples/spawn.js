@@ -22,15 +22,7 @@
      * @returns {Object|null} Spawn location or null if not set
      */
     function getSpawn() {
-        var data = DB.get(DB_FILE, 'spawn');
-        if (!data) {
-            return null;
-        }
-        try {
-            return JSON.parse(data);
-        } catch (e) {
-            return null;
-        }
+        return DB.getObject(DB_FILE, 'spawn');
     }
     
     /**
@@ -38,7 +30,7 @@
      * @param {Object} spawn - Spawn location data
      */
     function saveSpawn(spawn) {
-        DB.save(DB_FILE, 'spawn', JSON.stringify(spawn));
+        DB.putObject(DB_FILE, 'spawn', spawn);
     }
     
     // ========================================================================
@@ -115,7 +107,7 @@
             var warmupSeconds = Config.getPlayerSetting(playerId, 'spawn.warmupSeconds');
             
             // Set cooldown
-            cooldowns.setCooldown(playerId, 'teleport');
+            cooldowns.setCooldown(playerId, 'teleport', cooldownSeconds);
             
             // Teleport with warmup
             Utils.teleportWithWarmup(player, spawn, warmupSeconds, 'spawn', null);
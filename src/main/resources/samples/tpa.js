@@ -145,7 +145,7 @@
             
             // Create the request
             createRequest(playerId, playerName, targetId, false);
-            cooldowns.setCooldown(playerId, 'request');
+            cooldowns.setCooldown(playerId, 'request', cooldownSeconds);
             
             var timeoutSeconds = Config.get('tpa.timeoutSeconds');
             
@@ -209,7 +209,7 @@
             
             // Create the request (toRequester = true)
             createRequest(playerId, playerName, targetId, true);
-            cooldowns.setCooldown(playerId, 'request');
+            cooldowns.setCooldown(playerId, 'request', cooldownSeconds);
             
             var timeoutSeconds = Config.get('tpa.timeoutSeconds');
             
@@ -24,15 +24,7 @@
      * @returns {Object} Map of warp name to location data
      */
     function getWarps() {
-        var data = DB.get(DB_FILE, 'warps');
-        if (!data) {
-            return {};
-        }
-        try {
-            return JSON.parse(data);
-        } catch (e) {
-            return {};
-        }
+        return DB.getObject(DB_FILE, 'warps') || {};
     }
     
     /**
@@ -40,7 +32,7 @@
      * @param {Object} warps - Map of warp name to location data
      */
     function saveWarps(warps) {
-        DB.save(DB_FILE, 'warps', JSON.stringify(warps));
+        DB.putObject(DB_FILE, 'warps', warps);
     }
     
     // ========================================================================
@@ -146,7 +138,7 @@
             var warmupSeconds = Config.getPlayerSetting(playerId, 'warps.warmupSeconds');
             
             // Set cooldown
-            cooldowns.setCooldown(playerId, 'teleport');
+            cooldowns.setCooldown(playerId, 'teleport', cooldownSeconds);
             
             // Teleport with warmup
             Utils.teleportWithWarmup(player, warp, warmupSeconds, 'warp \'' + warpName + '\'', null);
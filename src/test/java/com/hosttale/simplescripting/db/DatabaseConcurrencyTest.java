@@ -0,0 +1,172 @@
+package com.hosttale.simplescripting.db;
+
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonPrimitive;
+import com.hosttale.simplescripting.util.Logger;
+import org.junit.jupiter.api.io.TempDir;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.ValueSource;
+
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Stress tests for the DB locks: 16 threads updating, saving and reading the
+ * same files at once, with flushes running in the background.
+ */
+class DatabaseConcurrencyTest {
+    private static final int THREADS = 16;
+    private static final int ROUNDS = 2000;
+    private static final int FILES = 8;
+
+    @TempDir
+    Path dir;
+
+    @ParameterizedTest
+    @ValueSource(strings = {JsonFileEngine.NAME, BTreeDocumentStore.NAME})
+    void concurrentUpdatesAreNotLost(String engine) throws Exception {
+        Database database = open(engine);
+        try {
+            DocumentStore counters = database.open("counters");
+            runThreads(thread -> {
+                for (int i = 0; i < ROUNDS; i++) {
+                    counters.update("shared", DatabaseConcurrencyTest::increment);
+                    database.open("file" + (i % FILES)).update("count", DatabaseConcurrencyTest::increment);
+                    // Plain saves and reads of the same files in between
+                    database.open("file" + (i % FILES)).put("thread" + thread, new JsonPrimitive(i));
+                    counters.get("shared");
+                    database.open("file" + ((i + 3) % FILES)).has("count");
+                }
+            });
+
+            assertEquals(THREADS * ROUNDS, counters.get("shared").getAsInt());
+            assertEquals(THREADS * ROUNDS, sumOfFileCounts(database));
+        } finally {
+            database.close();
+        }
+
+        // Every increment was also written back
+        Database reopened = open(engine);
+        try {
+            assertEquals(THREADS * ROUNDS, reopened.open("counters").get("shared").getAsInt());
+            assertEquals(THREADS * ROUNDS, sumOfFileCounts(reopened));
+        } finally {
+            reopened.close();
+        }
+    }
+
+    @ParameterizedTest
+    @ValueSource(strings = {JsonFileEngine.NAME, BTreeDocumentStore.NAME})
+    void concurrentReadsSeeNoTornValues(String engine) throws Exception {
+        Database database = open(engine);
+        try {
+            DocumentStore store = database.open("positions");
+            store.put("player", position(0));
+            AtomicBoolean writing = new AtomicBoolean(true);
+            AtomicInteger torn = new AtomicInteger();
+            AtomicInteger reads = new AtomicInteger();
+
+            // Half the threads write values whose fields all match; the other half check them
+            runThreads(thread -> {
+                if (thread < THREADS / 2) {
+                    for (int i = 1; i <= ROUNDS; i++) {
+                        int value = thread * ROUNDS + i;
+                        if (i % 2 == 0) {
+                            store.put("player", position(value));
+                        } else {
+                            store.update("player", current -> position(value));
+                        }
+                    }
+                    writing.set(false);
+                } else {
+                    while (writing.get() || reads.get() < ROUNDS) {
+                        JsonObject position = store.get("player").getAsJsonObject();
+                        int x = position.get("x").getAsInt();
+                        if (position.get("y").getAsInt() != x || position.get("z").getAsInt() != x) {
+                            torn.incrementAndGet();
+                        }
+                        reads.incrementAndGet();
+                    }
+                }
+            });
+
+            assertEquals(0, torn.get(), "reads saw values mixed from several writes");
+            assertTrue(reads.get() >= ROUNDS);
+        } finally {
+            database.close();
+        }
+    }
+
+    private Database open(String engine) throws Exception {
+        Database database = new Database(dir, new Logger(null));
+        // Flush often, so writes race with flushes too
+        database.setFlushIntervalMs(5);
+        database.configure("counters", new CollectionOptions().setEngine(engine));
+        database.configure("positions", new CollectionOptions().setEngine(engine));
+        for (int i = 0; i < FILES; i++) {
+            database.configure("file" + i, new CollectionOptions().setEngine(engine));
+        }
+        return database;
+    }
+
+    private static int sumOfFileCounts(Database database) throws Exception {
+        int sum = 0;
+        for (int i = 0; i < FILES; i++) {
+            sum += database.open("file" + i).get("count").getAsInt();
+        }
+        return sum;
+    }
+
+    private static JsonElement increment(JsonElement current) {
+        return new JsonPrimitive(current == null ? 1 : current.getAsInt() + 1);
+    }
+
+    private static JsonObject position(int value) {
+        JsonObject position = new JsonObject();
+        position.addProperty("x", value);
+        position.addProperty("y", value);
+        position.addProperty("z", value);
+        return position;
+    }
+
+    /**
+     * Runs the work on every thread at once and rethrows the first failure.
+     */
+    private static void runThreads(ThreadWork work) throws Exception {
+        ExecutorService executor = Executors.newFixedThreadPool(THREADS);
+        CountDownLatch start = new CountDownLatch(1);
+        try {
+            List<Future<?>> futures = new ArrayList<>();
+            for (int t = 0; t < THREADS; t++) {
+                int thread = t;
+                futures.add(executor.submit(() -> {
+                    start.await();
+                    work.run(thread);
+                    return null;
+                }));
+            }
+            start.countDown();
+            for (Future<?> future : futures) {
+                future.get(2, TimeUnit.MINUTES);
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    private interface ThreadWork {
+        void run(int thread) throws Exception;
+    }
+}
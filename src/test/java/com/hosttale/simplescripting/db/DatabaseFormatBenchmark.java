@@ -0,0 +1,120 @@
+package com.hosttale.simplescripting.db;
+
+import com.google.gson.JsonObject;
+import com.hosttale.simplescripting.util.Logger;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Random;
+import java.util.UUID;
+import java.util.stream.Stream;
+
+/**
+ * Compares the json and binary engines on a generated collection of home-like
+ * records (100k keys by default): file size, and the time to load the file
+ * into memory. Run with {@code ./gradlew dbBenchmark}, or pass another key
+ * count with {@code --args=250000}.
+ */
+public final class DatabaseFormatBenchmark {
+    private static final String COLLECTION = "homes";
+    private static final int DEFAULT_KEYS = 100_000;
+    private static final int WARMUP_RUNS = 2;
+    private static final int MEASURED_RUNS = 5;
+
+    private DatabaseFormatBenchmark() {
+    }
+
+    public static void main(String[] args) throws IOException {
+        int keys = args.length > 0 ? Integer.parseInt(args[0]) : DEFAULT_KEYS;
+        Path root = Files.createTempDirectory("simplescripting-benchmark");
+        try {
+            System.out.printf("%d keys%n", keys);
+            for (String engine : new String[]{JsonFileEngine.NAME, BinaryFileEngine.NAME}) {
+                Path dir = root.resolve(engine);
+                write(dir, engine, keys);
+                long size = fileSize(dir);
+                double loadMs = medianLoadMs(dir, engine, keys);
+                System.out.printf("%-7s %,12d bytes  %8.1f ms load (median of %d)%n",
+                        engine, size, loadMs, MEASURED_RUNS);
+            }
+        } finally {
+            deleteTree(root);
+        }
+    }
+
+    private static void write(Path dir, String engine, int keys) throws IOException {
+        Database database = open(dir, engine);
+        try {
+            DocumentStore store = database.open(COLLECTION);
+            // Same seed for every engine, so both get the same records
+            Random random = new Random(1);
+            for (int i = 0; i < keys; i++) {
+                store.put("homes:" + new UUID(random.nextLong(), random.nextLong()), home(random));
+            }
+        } finally {
+            database.close();
+        }
+    }
+
+    private static JsonObject home(Random random) {
+        JsonObject home = new JsonObject();
+        home.addProperty("world", "default");
+        home.addProperty("x", random.nextInt(20_000) - 10_000 + 0.5);
+        home.addProperty("y", 64 + random.nextInt(64));
+        home.addProperty("z", random.nextInt(20_000) - 10_000 + 0.5);
+        home.addProperty("yaw", random.nextInt(360));
+        home.addProperty("createdAt", 1_700_000_000_000L + random.nextInt(1_000_000_000));
+        return home;
+    }
+
+    private static double medianLoadMs(Path dir, String engine, int keys) throws IOException {
+        long[] times = new long[MEASURED_RUNS];
+        for (int run = -WARMUP_RUNS; run < MEASURED_RUNS; run++) {
+            Database database = open(dir, engine);
+            try {
+                long start = System.nanoTime();
+                int size = database.open(COLLECTION).size();
+                long elapsed = System.nanoTime() - start;
+                if (size != keys) {
+                    throw new IllegalStateException("Loaded " + size + " keys instead of " + keys);
+                }
+                if (run >= 0) {
+                    times[run] = elapsed;
+                }
+            } finally {
+                database.close();
+            }
+        }
+        Arrays.sort(times);
+        return times[MEASURED_RUNS / 2] / 1_000_000.0;
+    }
+
+    private static Database open(Path dir, String engine) throws IOException {
+        Database database = new Database(dir, new Logger(null));
+        database.configure(COLLECTION, new CollectionOptions().setEngine(engine));
+        return database;
+    }
+
+    private static long fileSize(Path dir) throws IOException {
+        try (Stream<Path> files = Files.list(dir)) {
+            long size = 0;
+            for (Path file : (Iterable<Path>) files::iterator) {
+                if (file.getFileName().toString().startsWith(COLLECTION + ".")) {
+                    size += Files.size(file);
+                }
+            }
+            return size;
+        }
+    }
+
+    private static void deleteTree(Path root) throws IOException {
+        try (Stream<Path> files = Files.walk(root)) {
+            for (Path file : (Iterable<Path>) files.sorted(Comparator.reverseOrder())::iterator) {
+                Files.delete(file);
+            }
+        }
+    }
+}
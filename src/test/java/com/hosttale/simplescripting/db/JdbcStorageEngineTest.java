@@ -0,0 +1,237 @@
+package com.hosttale.simplescripting.db;
+
+import com.google.gson.JsonObject;
+import com.google.gson.JsonPrimitive;
+import com.hosttale.simplescripting.util.Logger;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.Statement;
+import java.util.UUID;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Tests the jdbc engine against an in-memory H2 database, which outlives
+ * each Database so reopening reads back what was flushed.
+ */
+class JdbcStorageEngineTest {
+    // More than one batch of upserts and deletes
+    private static final int KEYS = 1200;
+
+    @TempDir
+    Path dir;
+
+    private String url;
+
+    @BeforeEach
+    void createUrl() {
+        url = "jdbc:h2:mem:" + UUID.randomUUID() + ";DB_CLOSE_DELAY=-1";
+    }
+
+    @AfterEach
+    void dropDatabase() throws Exception {
+        try (Connection connection = DriverManager.getConnection(url);
+             Statement statement = connection.createStatement()) {
+            statement.execute("SHUTDOWN");
+        }
+    }
+
+    @Test
+    void batchedUpsertsAndDeletesSurviveReopen() throws Exception {
+        Database database = open();
+        try {
+            DocumentStore homes = database.open("homes");
+            assertEquals(0, homes.size());
+            for (int i = 0; i < KEYS; i++) {
+                homes.put("home" + i, home(i));
+            }
+            assertTrue(database.flush("homes"));
+            assertEquals(KEYS, countRows("homes"));
+
+            // Deletes and overwrites in the same flush
+            for (int i = 0; i < KEYS; i += 2) {
+                homes.remove("home" + i);
+            }
+            for (int i = 1; i < KEYS; i += 4) {
+                homes.put("home" + i, home(-i));
+            }
+            assertTrue(database.flush("homes"));
+            assertEquals(KEYS / 2, countRows("homes"));
+        } finally {
+            database.close();
+        }
+
+        Database reopened = open();
+        try {
+            DocumentStore homes = reopened.open("homes");
+            assertEquals(KEYS / 2, homes.size());
+            assertNull(homes.get("home0"));
+            assertEquals(home(-1), homes.get("home1"));
+            assertEquals(home(3), homes.get("home3"));
+            assertEquals(home(-(KEYS - 3)), homes.get("home" + (KEYS - 3)));
+        } finally {
+            reopened.close();
+        }
+    }
+
+    @Test
+    void collectionsShareTheTableWithoutMixing() throws Exception {
+        Database database = open();
+        try {
+            database.configure("warps", new CollectionOptions().setEngine(JdbcStorageEngine.NAME));
+            database.open("homes").put("spawn", new JsonPrimitive("home"));
+            database.open("warps").put("spawn", new JsonPrimitive("warp"));
+            database.flushAll();
+        } finally {
+            database.close();
+        }
+
+        Database reopened = open();
+        try {
+            reopened.configure("warps", new CollectionOptions().setEngine(JdbcStorageEngine.NAME));
+            assertEquals("home", reopened.open("homes").get("spawn").getAsString());
+            assertEquals("warp", reopened.open("warps").get("spawn").getAsString());
+            assertTrue(reopened.drop("warps"));
+            assertEquals(0, countRows("warps"));
+            assertEquals(1, countRows("homes"));
+        } finally {
+            reopened.close();
+        }
+    }
+
+    @Test
+    void transactionsCommitJdbcAndFileCollectionsTogether() throws Exception {
+        Database database = open();
+        try {
+            database.configure("warps", new CollectionOptions().setEngine(JdbcStorageEngine.NAME));
+            database.open("homes").put("old", new JsonPrimitive(1));
+            database.flush("homes");
+
+            // More transactions than pooled connections, so a leaked connection would stall them
+            for (int i = 0; i < 5; i++) {
+                Transaction transaction = database.beginTransaction();
+                transaction.put("homes", "home" + i, home(i));
+                transaction.put("warps", "warp" + i, home(-i));
+                transaction.put("bank", "balance", new JsonPrimitive(i));
+                transaction.remove("homes", "old");
+                transaction.commit();
+            }
+            // Written by the commit, not by a flush
+            assertEquals(5, countRows("homes"));
+            assertEquals(5, countRows("warps"));
+        } finally {
+            database.close();
+        }
+
+        Database reopened = open();
+        try {
+            reopened.configure("warps", new CollectionOptions().setEngine(JdbcStorageEngine.NAME));
+            assertNull(reopened.open("homes").get("old"));
+            assertEquals(home(4), reopened.open("homes").get("home4"));
+            assertEquals(home(-4), reopened.open("warps").get("warp4"));
+            assertEquals(4, reopened.open("bank").get("balance").getAsInt());
+        } finally {
+            reopened.close();
+        }
+    }
+
+    @Test
+    void failedTransactionLeavesNoRows() throws Exception {
+        Database database = open();
+        try {
+            database.configure("warps", new CollectionOptions().setEngine(JdbcStorageEngine.NAME));
+            Transaction transaction = database.beginTransaction();
+            transaction.put("homes", "spawn", home(1));
+            // Longer than the doc_key column, so staging the second collection fails
+            transaction.put("warps", "w".repeat(600), home(2));
+            assertThrows(IOException.class, transaction::commit);
+            assertNull(database.open("homes").get("spawn"));
+            assertEquals(0, countRows("homes"));
+
+            Transaction retry = database.beginTransaction();
+            retry.put("homes", "spawn", home(1));
+            retry.put("warps", "spawn", home(2));
+            retry.commit();
+            assertEquals(1, countRows("homes"));
+            assertEquals(1, countRows("warps"));
+        } finally {
+            database.close();
+        }
+    }
+
+    @Test
+    void importsJsonFileOnFirstLoad() throws Exception {
+        JsonObject file = new JsonObject();
+        for (int i = 0; i < KEYS; i++) {
+            file.add("home" + i, home(i));
+        }
+        Files.writeString(dir.resolve("homes.json"), file.toString());
+
+        Database database = open();
+        try {
+            DocumentStore homes = database.open("homes");
+            assertEquals(KEYS, homes.size());
+            assertEquals(home(7), homes.get("home7"));
+        } finally {
+            database.close();
+        }
+        assertFalse(Files.exists(dir.resolve("homes.json")));
+        assertTrue(Files.exists(dir.resolve("homes.json.imported")));
+        assertEquals(KEYS, countRows("homes"));
+
+        // Loaded from the table from now on, not imported again
+        Files.writeString(dir.resolve("homes.json"), "{\"other\": 1}");
+        Database reopened = open();
+        try {
+            DocumentStore homes = reopened.open("homes");
+            assertEquals(KEYS, homes.size());
+            assertNull(homes.get("other"));
+        } finally {
+            reopened.close();
+        }
+    }
+
+    private Database open() throws Exception {
+        Logger logger = new Logger(null);
+        Database database = new Database(dir, logger);
+        database.registerEngine(JdbcStorageEngine.NAME,
+                new JdbcStorageEngine.Factory(url, null, null, JdbcStorageEngine.DEFAULT_TABLE, 2, logger));
+        database.configure("homes", new CollectionOptions().setEngine(JdbcStorageEngine.NAME));
+        return database;
+    }
+
+    private int countRows(String collection) throws Exception {
+        String sql = "SELECT COUNT(*) FROM " + JdbcStorageEngine.DEFAULT_TABLE + " WHERE collection = ?";
+        try (Connection connection = DriverManager.getConnection(url);
+             PreparedStatement statement = connection.prepareStatement(sql)) {
+            statement.setString(1, collection);
+            try (ResultSet rows = statement.executeQuery()) {
+                rows.next();
+                return rows.getInt(1);
+            }
+        }
+    }
+
+    private static JsonObject home(int value) {
+        JsonObject home = new JsonObject();
+        home.addProperty("world", "default");
+        home.addProperty("x", value);
+        home.addProperty("y", 64);
+        home.addProperty("z", value * 2);
+        return home;
+    }
+}
@@ -0,0 +1,61 @@
+package com.hosttale.simplescripting.task;
+
+import org.junit.jupiter.api.Test;
+
+import java.time.ZoneId;
+import java.time.ZonedDateTime;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+/**
+ * Tests how the day of month and day of week fields combine.
+ */
+class CronExpressionTest {
+    private static final ZoneId ZONE = ZoneId.of("UTC");
+    // A Sunday
+    private static final ZonedDateTime START = ZonedDateTime.of(2026, 10, 18, 12, 0, 0, 0, ZONE);
+
+    @Test
+    void bothDayFieldsRestrictedMatchEither() {
+        // The 13th, or any Friday
+        assertEquals(List.of(day(10, 23), day(10, 30), day(11, 6), day(11, 13)),
+                nextRuns("0 0 13 * FRI", 4));
+    }
+
+    @Test
+    void dayFieldStartingWithStarNarrowsTheOther() {
+        // Odd days of the month that are Mondays, not odd days or Mondays
+        assertEquals(List.of(day(10, 19), day(11, 9), day(11, 23), day(12, 7)),
+                nextRuns("0 0 */2 * 1", 4));
+        // Same with the star in the day of week field: the 1st, on a Sunday, Tuesday, Thursday or Saturday
+        assertEquals(List.of(day(11, 1), day(12, 1), day(2027, 4, 1), day(2027, 5, 1)),
+                nextRuns("0 0 1 * */2", 4));
+    }
+
+    @Test
+    void unrestrictedDayFieldsMatchEveryDay() {
+        assertEquals(List.of(day(10, 19), day(10, 20), day(10, 21)),
+                nextRuns("0 0 * * ?", 3));
+    }
+
+    private static List<ZonedDateTime> nextRuns(String expression, int count) {
+        CronExpression cron = CronExpression.parse(expression);
+        List<ZonedDateTime> runs = new ArrayList<>();
+        ZonedDateTime t = START;
+        for (int i = 0; i < count; i++) {
+            t = cron.next(t);
+            runs.add(t);
+        }
+        return runs;
+    }
+
+    private static ZonedDateTime day(int month, int dayOfMonth) {
+        return day(2026, month, dayOfMonth);
+    }
+
+    private static ZonedDateTime day(int year, int month, int dayOfMonth) {
+        return ZonedDateTime.of(year, month, dayOfMonth, 0, 0, 0, 0, ZONE);
+    }
+}